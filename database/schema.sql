@@ -3,6 +3,10 @@ CREATE DATABASE IF NOT EXISTS db_progetto2425;
 USE db_progetto2425;
 
 -- Drop delle tabelle in ordine inverso rispetto alle dipendenze (per evitare errori di chiavi esterne)
+DROP TABLE IF EXISTS ChangeLog;
+DROP TABLE IF EXISTS FileTombstone;
+DROP TABLE IF EXISTS Job;
+DROP TABLE IF EXISTS MediaBlob;
 DROP TABLE IF EXISTS PlaylistSong;
 DROP TABLE IF EXISTS Playlist;
 DROP TABLE IF EXISTS Song;
@@ -15,7 +19,8 @@ CREATE TABLE IF NOT EXISTS User (
     username VARCHAR(50) NOT NULL UNIQUE,
     password VARCHAR(255) NOT NULL,
     name VARCHAR(100) NOT NULL,
-    surname VARCHAR(100) NOT NULL
+    surname VARCHAR(100) NOT NULL,
+    changeVersion BIGINT NOT NULL DEFAULT 0 -- Versione della libreria dell'utente (ultima riga di ChangeLog)
 );
 
 -- Creazione della tabella Genre
@@ -35,6 +40,12 @@ CREATE TABLE IF NOT EXISTS Song (
     albumName VARCHAR(100) NOT NULL,
     albumArtist VARCHAR(100) NOT NULL,
     albumReleaseYear INT NOT NULL,
+    durationMs INT NULL, -- Metadati letti dall'header del file audio al caricamento (NULL se non ricavabili)
+    bitrate INT NULL, -- kbps
+    sampleRate INT NULL, -- Hz
+    channels TINYINT NULL,
+    codec VARCHAR(16) NULL,
+    hlsPlaylist VARCHAR(255) NULL, -- Playlist HLS generata in background (NULL finché non è pronta o se disattivata)
     FOREIGN KEY (userID) REFERENCES User(ID) ON DELETE CASCADE,
     FOREIGN KEY (genreID) REFERENCES Genre(ID) ON DELETE RESTRICT -- Keep RESTRICT if genres are fixed and essential
 );
@@ -58,12 +69,58 @@ CREATE TABLE IF NOT EXISTS PlaylistSong (
     FOREIGN KEY (songID) REFERENCES Song(ID) ON DELETE CASCADE
 );
 
+-- Creazione della tabella MediaBlob (conteggio dei riferimenti ai file indirizzati per contenuto)
+CREATE TABLE IF NOT EXISTS MediaBlob (
+    path VARCHAR(255) PRIMARY KEY, -- es. /songs/ab/cd/<sha256>.mp3, come in Song.file/albumCover
+    sha256 CHAR(64) NOT NULL,
+    size BIGINT NOT NULL,
+    refCount INT NOT NULL DEFAULT 0
+);
+
+-- Creazione della tabella Job (lavori in background dopo gli upload, eseguiti da JobQueue)
+CREATE TABLE IF NOT EXISTS Job (
+    ID BIGINT AUTO_INCREMENT PRIMARY KEY,
+    type VARCHAR(32) NOT NULL, -- thumbnails, waveform, hls
+    payload VARCHAR(255) NOT NULL, -- percorso relativo del file
+    status ENUM('PENDING', 'RUNNING', 'FAILED') NOT NULL DEFAULT 'PENDING', -- i lavori completati vengono eliminati
+    attempts INT NOT NULL DEFAULT 0,
+    runAfter DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3), -- prossimo tentativo
+    lockedBy VARCHAR(255) NULL, -- istanza che sta eseguendo il lavoro
+    lockedAt DATETIME(3) NULL,
+    lastError VARCHAR(1000) NULL,
+    createdAt DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3)
+);
+
+-- Creazione della tabella FileTombstone (file da eliminare dopo il commit, rimossi a blocchi da StorageSweeper)
+CREATE TABLE IF NOT EXISTS FileTombstone (
+    ID BIGINT AUTO_INCREMENT PRIMARY KEY,
+    path VARCHAR(255) NOT NULL, -- percorso relativo del file (nome del blob staccato se detachedBlob)
+    detachedBlob BOOLEAN NOT NULL DEFAULT FALSE,
+    createdAt DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3)
+);
+
+-- Creazione della tabella ChangeLog (modifiche a canzoni e playlist, per la sincronizzazione incrementale del client RIA)
+CREATE TABLE IF NOT EXISTS ChangeLog (
+    userID INT NOT NULL,
+    version BIGINT NOT NULL, -- User.changeVersion dopo la modifica: consecutive per ogni utente
+    entity ENUM('song', 'playlist') NOT NULL,
+    entityID INT NOT NULL,
+    action ENUM('upsert', 'delete') NOT NULL,
+    createdAt DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+    PRIMARY KEY (userID, version),
+    FOREIGN KEY (userID) REFERENCES User(ID) ON DELETE CASCADE
+);
+
 -- Indici per migliorare le performance
 CREATE INDEX idx_song_name ON Song(name);
 CREATE INDEX idx_song_album ON Song(albumName, albumArtist);
 CREATE INDEX idx_playlist_name ON Playlist(name);
 CREATE INDEX idx_playlist_creation ON Playlist(creationDate);
 CREATE INDEX idx_playlistsong_customorder ON PlaylistSong(playlistID, customOrder); -- Index for ordered fetching
+CREATE INDEX idx_job_claim ON Job(status, type, runAfter); -- Ricerca del prossimo lavoro pronto
+CREATE INDEX idx_song_file ON Song(file); -- Ricerca dei file orfani
+CREATE INDEX idx_song_cover ON Song(albumCover);
+CREATE INDEX idx_song_user_artist_year ON Song(userID, albumArtist, albumReleaseYear, ID); -- Libreria ordinata e paginazione per artista/anno
 
 -- Inserimento utente con blocco tabella
 LOCK TABLES `User` WRITE;
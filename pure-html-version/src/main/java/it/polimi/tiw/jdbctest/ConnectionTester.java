@@ -13,15 +13,16 @@ import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 public class ConnectionTester extends HttpServlet {
-	private Connection connection = null;
-	
 	private static final long serialVersionUID = 1L;
 	protected void doGet(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
 		ServletContext servletContext = getServletContext();
 		String result = "Connection worked";
-		try {
-			connection = ConnectionHandler.getConnection(servletContext);
+		// La connessione viene verificata e subito restituita al pool
+		try (Connection connection = ConnectionHandler.getConnection(servletContext)) {
+			if (!connection.isValid(2)) {
+				result = "Connection failed";
+			}
 		}catch (Exception e){
 			result = "Connection failed";
 			e.printStackTrace();
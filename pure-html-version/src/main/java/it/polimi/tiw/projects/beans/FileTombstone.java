@@ -0,0 +1,31 @@
+package it.polimi.tiw.projects.beans;
+
+public class FileTombstone {
+	private long ID;
+	private String path;
+	private boolean detachedBlob;
+
+	public long getID() {
+		return ID;
+	}
+
+	public void setID(long ID) {
+		this.ID = ID;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public boolean isDetachedBlob() {
+		return detachedBlob;
+	}
+
+	public void setDetachedBlob(boolean detachedBlob) {
+		this.detachedBlob = detachedBlob;
+	}
+}
@@ -1,5 +1,7 @@
 package it.polimi.tiw.projects.beans;
 
+import it.polimi.tiw.projects.utils.AudioMetadataParser;
+
 public class Song {
 	private int ID;
 	private int userID;
@@ -10,6 +12,12 @@ public class Song {
     private String genre;
     private String albumCoverPath;
     private String audioFilePath;
+    private Integer durationMs;
+    private Integer bitrate;
+    private Integer sampleRate;
+    private Integer channels;
+    private String codec;
+    private String hlsPlaylistPath;
     
     
     public int getID() {
@@ -75,6 +83,53 @@ public class Song {
 	public void setAudioFilePath(String audioFilePath) {
 		this.audioFilePath = audioFilePath;
 	}
+
+	public Integer getDurationMs() {
+		return durationMs;
+	}
+	public void setDurationMs(Integer durationMs) {
+		this.durationMs = durationMs;
+	}
+
+	public Integer getBitrate() {
+		return bitrate;
+	}
+	public void setBitrate(Integer bitrate) {
+		this.bitrate = bitrate;
+	}
+
+	public Integer getSampleRate() {
+		return sampleRate;
+	}
+	public void setSampleRate(Integer sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public Integer getChannels() {
+		return channels;
+	}
+	public void setChannels(Integer channels) {
+		this.channels = channels;
+	}
+
+	public String getCodec() {
+		return codec;
+	}
+	public void setCodec(String codec) {
+		this.codec = codec;
+	}
+
+	public String getHlsPlaylistPath() {
+		return hlsPlaylistPath;
+	}
+	public void setHlsPlaylistPath(String hlsPlaylistPath) {
+		this.hlsPlaylistPath = hlsPlaylistPath;
+	}
+
+	// Durata formattata per i template (null se sconosciuta)
+	public String getFormattedDuration() {
+		return durationMs != null ? AudioMetadataParser.formatDuration(durationMs) : null;
+	}
     
     
 	
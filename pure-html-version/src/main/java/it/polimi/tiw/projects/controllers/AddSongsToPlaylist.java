@@ -31,8 +31,8 @@ public class AddSongsToPlaylist extends ServletBase {
             return; // checkLogin ha già fatto il redirect
         }
         
-        PlaylistDAO playlistDAO = new PlaylistDAO(connection);
-        SongDAO songDAO = new SongDAO(connection);
+        PlaylistDAO playlistDAO = new PlaylistDAO(getConnection());
+        SongDAO songDAO = new SongDAO(getConnection());
         
         // Mappa per messaggi di errore strutturati (pattern PRG standard)
         Map<String, String> errorMessages = new HashMap<>();
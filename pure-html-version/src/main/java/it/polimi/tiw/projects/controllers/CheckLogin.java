@@ -57,7 +57,7 @@ public class CheckLogin extends ServletBase {
         
         // Se non ci sono errori di validazione, controlla le credenziali
         if (!hasErrors) {
-            UserDAO userDao = new UserDAO(connection);
+            UserDAO userDao = new UserDAO(getConnection());
             try {
                 user = userDao.checkCredentials(username, password);
                 
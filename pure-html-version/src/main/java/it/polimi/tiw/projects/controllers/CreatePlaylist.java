@@ -59,8 +59,8 @@ public class CreatePlaylist extends ServletBase {
             }
         }
         
-        SongDAO songDAO = new SongDAO(connection);
-        PlaylistDAO playlistDAO = new PlaylistDAO(connection);
+        SongDAO songDAO = new SongDAO(getConnection());
+        PlaylistDAO playlistDAO = new PlaylistDAO(getConnection());
         
         try {
             playlistName = request.getParameter("playlistName");
@@ -50,7 +50,7 @@ public class DeletePlaylist extends ServletBase {
         
         // Se non ci sono errori di validazione, procedi con la cancellazione
         if (!hasErrors) {
-            PlaylistDAO playlistDAO = new PlaylistDAO(connection);
+            PlaylistDAO playlistDAO = new PlaylistDAO(getConnection());
             try {
                 // First verify playlist belongs to the user and get playlist name for success message
                 Playlist playlist = playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId());
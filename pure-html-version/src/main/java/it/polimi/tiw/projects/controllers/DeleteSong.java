@@ -51,7 +51,7 @@ public class DeleteSong extends ServletBase {
         
         // Se non ci sono errori di validazione, procedi con la cancellazione
         if (!hasErrors) {
-            SongDAO songDAO = new SongDAO(connection);
+            SongDAO songDAO = new SongDAO(getConnection());
             try {
                 // Verify song belongs to the user and get song name for success message
                 Song song = songDAO.getSongByIDAndUser(songID, user.getId());
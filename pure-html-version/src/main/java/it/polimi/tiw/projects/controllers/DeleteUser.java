@@ -46,7 +46,7 @@ public class DeleteUser extends ServletBase {
         
         // Se non ci sono errori di validazione, procedi con la verifica password e cancellazione
         if (!hasErrors) {
-            UserDAO userDAO = new UserDAO(connection);
+            UserDAO userDAO = new UserDAO(getConnection());
             try {
                 // Verify password
                 User verifiedUser = userDAO.checkCredentials(user.getUsername(), password);
@@ -10,15 +10,16 @@ import jakarta.servlet.http.HttpSession;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
 
 import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.ImageVariants;
+import it.polimi.tiw.projects.utils.MediaResponseWriter;
 
 /**
  * Servlet unificata per servire sia audio che immagini in modo sicuro
  * Sostituisce GetAudio e GetImage con un'implementazione centralizzata
  */
-@WebServlet(urlPatterns = {"/GetFile/*", "/GetAudio/*", "/GetImage/*"})
+@WebServlet(urlPatterns = {"/GetFile/*", "/GetAudio/*", "/GetImage/*"}, asyncSupported = true)
 public class GetFile extends ServletBase {
     private static final long serialVersionUID = 1L;
 
@@ -70,8 +71,24 @@ public class GetFile extends ServletBase {
             // Ottieni il file in modo sicuro
             File file = FileStorageManager.getFileSecurely(pathInfo);
             
-            // Determina il content type
-            String contentType = getServletContext().getMimeType(file.getName());
+            // Miniatura della copertina (?size=): se non esiste ancora viene generata in background
+            boolean variantPending = false;
+            Integer size = pathInfo.startsWith("/covers/") ? ImageVariants.resolveSize(request.getParameter("size")) : null;
+            if (size != null) {
+                File variant = ImageVariants.variantFile(file, size);
+                if (variant.isFile()) {
+                    file = variant;
+                } else if (ImageVariants.dispatchWhenReady(request, file, size)) {
+                    return;
+                } else {
+                    // Miniatura non disponibile (pool pieno o errore): si invia l'originale senza cache lunga
+                    variantPending = true;
+                }
+            }
+            
+            // Determina il content type (le playlist HLS non sono nei MIME type predefiniti di Tomcat)
+            String contentType = file.getName().endsWith(".m3u8")
+                    ? "application/vnd.apple.mpegurl" : getServletContext().getMimeType(file.getName());
             if (contentType == null) {
                 // Determina in base al percorso o estensione
                 String lowerPath = pathInfo.toLowerCase();
@@ -88,21 +105,20 @@ public class GetFile extends ServletBase {
                 }
             }
             
-            // Imposta headers di risposta
-            response.setContentType(contentType);
-            response.setContentLength((int) file.length());
-            
             // Headers di sicurezza
             response.setHeader("X-Content-Type-Options", "nosniff");
             response.setHeader("Content-Disposition", "inline; filename=\"" + 
                              file.getName().replaceAll("[\"]", "") + "\"");
             
-            // Stream del file
+            // Invio del file (intero o solo i range richiesti)
             try {
-                Files.copy(file.toPath(), response.getOutputStream());
+                if (variantPending) {
+                    MediaResponseWriter.writeRevalidated(request, response, file, contentType);
+                } else {
+                    MediaResponseWriter.write(request, response, file, contentType);
+                }
             } catch (org.apache.catalina.connector.ClientAbortException e) {
-                // Il client ha interrotto la connessione: è normale e non serve mostrarlo come errore grave
-                System.out.println("Client aborted connection during file download: " + e.getMessage());
+                // Il client ha interrotto la connessione (es. seek nel player): è normale, niente da registrare
             } catch (IOException e) {
                 if (!response.isCommitted()) {
                     response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Errore durante la trasmissione del file");
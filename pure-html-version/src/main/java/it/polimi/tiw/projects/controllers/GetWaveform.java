@@ -0,0 +1,121 @@
+package it.polimi.tiw.projects.controllers;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.UnavailableException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+import it.polimi.tiw.projects.beans.Song;
+import it.polimi.tiw.projects.beans.User;
+import it.polimi.tiw.projects.dao.SongDAO;
+import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.WaveformPeaks;
+
+/**
+ * Restituisce la forma d'onda precalcolata di una canzone come immagine SVG,
+ * usata dalla pagina del player con un semplice <img> (nessun JavaScript).
+ * I picchi dei file con nome univoco non cambiano: il browser li tiene in cache senza rivalidarli.
+ */
+@WebServlet("/GetWaveform")
+public class GetWaveform extends ServletBase {
+    private static final long serialVersionUID = 1L;
+    // Altezza del disegno: la larghezza è il numero di coppie di picchi
+    private static final int SVG_HEIGHT = 100;
+
+    public GetWaveform() {
+        super();
+    }
+    
+    @Override
+    protected boolean needsTemplateEngine() {
+        return false;
+    }
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        
+        try {
+            FileStorageManager.initialize(getServletContext());
+        } catch (UnavailableException e) {
+            throw new ServletException("Failed to initialize file storage", e);
+        }
+    }
+
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) 
+            throws ServletException, IOException {
+        // Come GetFile: errore HTTP invece del redirect, la risposta è un'immagine
+        HttpSession session = request.getSession(false);
+        if (session == null || session.getAttribute("user") == null) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Not authorized");
+            return;
+        }
+        User user = (User) session.getAttribute("user");
+        
+        int songID = getIntParam(request, "songID");
+        if (songID == -1) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing song ID");
+            return;
+        }
+        
+        try {
+            Song song = new SongDAO(getConnection()).getSongByIDAndUser(songID, user.getId());
+            if (song == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Song not found");
+                return;
+            }
+            
+            File peaks = WaveformPeaks.peaksFile(FileStorageManager.getFileSecurely(song.getAudioFilePath()));
+            if (!peaks.isFile()) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Waveform not available");
+                return;
+            }
+            
+            String etag = "\"" + Long.toHexString(peaks.lastModified()) + "-" + Long.toHexString(peaks.length()) + "\"";
+            response.setHeader("ETag", etag);
+            response.setHeader("Cache-Control", FileStorageManager.isImmutableFileName(peaks.getName())
+                    ? "private, max-age=31536000, immutable" : "private, no-cache");
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            
+            byte[] svg = toSvg(WaveformPeaks.readPeaks(peaks)).getBytes(StandardCharsets.UTF_8);
+            response.setContentType("image/svg+xml");
+            response.setHeader("X-Content-Type-Options", "nosniff");
+            response.setContentLength(svg.length);
+            response.getOutputStream().write(svg);
+            
+        } catch (SecurityException | FileNotFoundException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Audio file not found");
+        } catch (SQLException e) {
+            e.printStackTrace();
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error loading song");
+        }
+    }
+    
+    /**
+     * Una linea verticale per coppia (minimo, massimo), scalata dall'intervallo -127..127 all'altezza del disegno
+     */
+    private static String toSvg(byte[] values) {
+        int count = values.length / 2;
+        double middle = SVG_HEIGHT / 2.0;
+        StringBuilder path = new StringBuilder(count * 16);
+        for (int i = 0; i < count; i++) {
+            long top = Math.round(middle - values[2 * i + 1] / 127.0 * middle);
+            long bottom = Math.max(top + 1, Math.round(middle - values[2 * i] / 127.0 * middle));
+            path.append('M').append(i).append(' ').append(top).append('V').append(bottom);
+        }
+        return "<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 " + Math.max(1, count) + " " + SVG_HEIGHT
+                + "\" preserveAspectRatio=\"none\"><path d=\"" + path
+                + "\" stroke=\"#ff5b4c\" stroke-width=\"1\" fill=\"none\" vector-effect=\"non-scaling-stroke\"/></svg>";
+    }
+}
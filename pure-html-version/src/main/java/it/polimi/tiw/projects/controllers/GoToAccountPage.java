@@ -58,7 +58,7 @@ public class GoToAccountPage extends ServletBase {
         
         // Rendering 
         String templatePath = "/WEB-INF/AccountPage.html";
-        templateEngine.process(templatePath, ctx, response.getWriter());
+        renderTemplate(templatePath, ctx, response);
     }
 
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
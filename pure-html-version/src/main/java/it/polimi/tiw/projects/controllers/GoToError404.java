@@ -33,7 +33,7 @@ public class GoToError404 extends ServletBase {
         
         // Rendering
         String templatePath = "/WEB-INF/404.html";
-        templateEngine.process(templatePath, ctx, response.getWriter());
+        renderTemplate(templatePath, ctx, response);
     }
 
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
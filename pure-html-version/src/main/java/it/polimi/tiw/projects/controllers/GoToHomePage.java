@@ -43,15 +43,15 @@ public class GoToHomePage extends ServletBase {
         
         try {
             // Carica playlist dell'utente
-            PlaylistDAO playlistDAO = new PlaylistDAO(connection);
+            PlaylistDAO playlistDAO = new PlaylistDAO(getConnection());
             playlists = playlistDAO.getAllPlaylistsByUserId(user.getId());
             
             // Carica tutti i generi disponibili
-            GenreDAO genreDAO = new GenreDAO(connection);
+            GenreDAO genreDAO = new GenreDAO(getConnection());
             genres = genreDAO.getAllGenresNames();
             
             // Carica canzoni dell'utente
-            SongDAO songDAO = new SongDAO(connection);
+            SongDAO songDAO = new SongDAO(getConnection());
             songs = songDAO.getAllSongsByUserId(user.getId());
             
         } catch (SQLException e) {
@@ -74,7 +74,7 @@ public class GoToHomePage extends ServletBase {
         
         // Rendering
         String templatePath = "/WEB-INF/Home.html";
-        templateEngine.process(templatePath, ctx, response.getWriter());
+        renderTemplate(templatePath, ctx, response);
     }
     
     /**
@@ -46,7 +46,7 @@ public class GoToLoginPage extends ServletBase {
         
         // Rendering
         String templatePath = "/WEB-INF/index.html";
-        templateEngine.process(templatePath, ctx, response.getWriter());
+        renderTemplate(templatePath, ctx, response);
     }
     
     /**
@@ -1,10 +1,13 @@
 package it.polimi.tiw.projects.controllers;
 
 import jakarta.servlet.ServletException;
+import jakarta.servlet.UnavailableException;
 import jakarta.servlet.annotation.WebServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.HashMap;
@@ -15,6 +18,8 @@ import org.thymeleaf.context.WebContext;
 import it.polimi.tiw.projects.beans.Song;
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.dao.SongDAO;
+import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.WaveformPeaks;
 
 @WebServlet("/GoToPlayerPage")
 public class GoToPlayerPage extends ServletBase {
@@ -23,6 +28,17 @@ public class GoToPlayerPage extends ServletBase {
     public GoToPlayerPage() {
         super();
     }    
+    
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        
+        try {
+            FileStorageManager.initialize(getServletContext());
+        } catch (UnavailableException e) {
+            throw new ServletException("Failed to initialize file storage", e);
+        }
+    }
 
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         // Controllo autenticazione 
@@ -51,7 +67,7 @@ public class GoToPlayerPage extends ServletBase {
         
         // Se non ci sono errori di validazione, carica la canzone
         if (!hasErrors) {
-            SongDAO songDAO = new SongDAO(connection);
+            SongDAO songDAO = new SongDAO(getConnection());
             try {
                 // Get song details and verify user ownership
                 song = songDAO.getSongByIDAndUser(songID, user.getId());
@@ -81,13 +97,14 @@ public class GoToPlayerPage extends ServletBase {
             WebContext ctx = createContext(request, response);
             
             ctx.setVariable("song", song);
+            ctx.setVariable("waveformAvailable", isWaveformAvailable(song));
             if (!isEmpty(playlistId)) {
                 ctx.setVariable("playlistId", playlistId);
             }
             
             // Rendering
             String templatePath = "/WEB-INF/PlayerPage.html";
-            templateEngine.process(templatePath, ctx, response.getWriter());
+            renderTemplate(templatePath, ctx, response);
             
         } catch (Exception e) {
             // Se c'è un errore gestisco con flash message
@@ -118,4 +135,23 @@ public class GoToPlayerPage extends ServletBase {
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         doGet(request, response);
     }
-}
\ No newline at end of file
+    
+    /**
+     * Indica se la forma d'onda è già pronta; se manca (es. canzoni caricate prima) ne accoda il calcolo,
+     * così sarà disponibile alla prossima apertura del player
+     */
+    private boolean isWaveformAvailable(Song song) {
+        try {
+            File audio = FileStorageManager.getFileSecurely(song.getAudioFilePath());
+            if (WaveformPeaks.peaksFile(audio).isFile()) {
+                return true;
+            }
+            if (WaveformPeaks.isSupported(audio)) {
+                WaveformPeaks.generate(audio);
+            }
+        } catch (SecurityException | FileNotFoundException e) {
+            // File audio mancante: il player mostra comunque i dati della canzone
+        }
+        return false;
+    }
+}
@@ -17,6 +17,7 @@ import it.polimi.tiw.projects.beans.Playlist;
 import it.polimi.tiw.projects.beans.Song;
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.dao.PlaylistDAO;
+import it.polimi.tiw.projects.utils.AudioMetadataParser;
 import it.polimi.tiw.projects.utils.FlashMessagesManager;
 
 @WebServlet("/GoToPlaylistPage")
@@ -51,8 +52,12 @@ public class GoToPlaylistPage extends ServletBase {
             currentPage = 0; // Assicura che non sia negativo
         }
         
+        // Cursori per la keyset pagination (ID della prima/ultima canzone della pagina di provenienza)
+        int afterSongId = getIntParam(request, "after");
+        int beforeSongId = getIntParam(request, "before");
+        
         // Caricamento dati dal database con gestione errori
-        PlaylistDAO playlistDAO = new PlaylistDAO(connection);
+        PlaylistDAO playlistDAO = new PlaylistDAO(getConnection());
         
         try {
             // Verify playlist belongs to user
@@ -62,8 +67,11 @@ public class GoToPlaylistPage extends ServletBase {
                 return;
             }
             
-            // Get all songs in the playlist
-            List<Song> allSongs = playlistDAO.getSongsFromPlaylist(playlistId);
+            // Conta le canzoni e carica solo quelle della pagina corrente
+            int totalSongs = playlistDAO.countSongsInPlaylist(playlistId);
+            int totalPages = (int) Math.ceil((double) totalSongs / SONGS_PER_PAGE);
+            currentPage = Math.min(currentPage, Math.max(totalPages - 1, 0));
+            List<Song> currentPageSongs = loadPageSongs(playlistDAO, playlistId, currentPage, afterSongId, beforeSongId);
             
             // Get songs not in playlist for adding
             List<Song> availableSongs = playlistDAO.getSongsNotInPlaylist(playlistId, user.getId());
@@ -72,19 +80,24 @@ public class GoToPlaylistPage extends ServletBase {
             WebContext ctx = createContext(request, response);
             
             // Calculate pagination and setup template variables
-            calculatePagination(allSongs, currentPage, ctx);
+            calculatePagination(currentPageSongs, totalPages, currentPage, ctx);
             
             // Imposta altri dati principali
             ctx.setVariable("playlist", playlist);
             ctx.setVariable("availableSongs", availableSongs);
             ctx.setVariable("currentPage", currentPage);
+            ctx.setVariable("totalSongs", totalSongs);
+            long totalDurationMs = playlistDAO.getPlaylistDurationMs(playlistId);
+            if (totalDurationMs > 0) {
+                ctx.setVariable("totalDuration", AudioMetadataParser.formatDuration(totalDurationMs));
+            }
             
             // PATTERN POST-REDIRECT-GET
             setupFlashMessages(ctx, request);
             
             // Rendering 
             String templatePath = "/WEB-INF/PlaylistPage.html";
-            templateEngine.process(templatePath, ctx, response.getWriter());
+            renderTemplate(templatePath, ctx, response);
             
         } catch (SQLException e) {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, 
@@ -93,19 +106,34 @@ public class GoToPlaylistPage extends ServletBase {
         }
     }
     
+    /**
+     * Carica le canzoni della pagina corrente: usa il cursore se presente,
+     * altrimenti (o se il cursore non è più valido) ricade sull'offset
+     */
+    private List<Song> loadPageSongs(PlaylistDAO playlistDAO, int playlistId, int currentPage,
+                                     int afterSongId, int beforeSongId) throws SQLException {
+        List<Song> songs;
+        if (afterSongId != -1) {
+            songs = playlistDAO.getSongsFromPlaylistAfter(playlistId, afterSongId, SONGS_PER_PAGE);
+        } else if (beforeSongId != -1) {
+            songs = playlistDAO.getSongsFromPlaylistBefore(playlistId, beforeSongId, SONGS_PER_PAGE);
+        } else if (currentPage == 0) {
+            songs = playlistDAO.getSongsFromPlaylistAfter(playlistId, -1, SONGS_PER_PAGE);
+        } else {
+            songs = playlistDAO.getSongsFromPlaylistPage(playlistId, currentPage * SONGS_PER_PAGE, SONGS_PER_PAGE);
+        }
+        
+        if (songs.isEmpty() && currentPage > 0) {
+            songs = playlistDAO.getSongsFromPlaylistPage(playlistId, currentPage * SONGS_PER_PAGE, SONGS_PER_PAGE);
+        }
+        return songs;
+    }
+    
     /**
      * Calcola i dati di paginazione per le canzoni
      * Restituisce i dati come variabili separate per semplicità
      */
-    private void calculatePagination(List<Song> allSongs, int currentPage, WebContext ctx) {
-        int totalSongs = allSongs.size();
-        int totalPages = (int) Math.ceil((double) totalSongs / SONGS_PER_PAGE);
-        
-        // Get songs for current page
-        int startIndex = currentPage * SONGS_PER_PAGE;
-        int endIndex = Math.min(startIndex + SONGS_PER_PAGE, totalSongs);
-        List<Song> currentPageSongs = allSongs.subList(startIndex, endIndex);
-        
+    private void calculatePagination(List<Song> currentPageSongs, int totalPages, int currentPage, WebContext ctx) {
         // Calculate navigation flags
         boolean hasPrevious = currentPage > 0;
         boolean hasNext = currentPage < totalPages - 1;
@@ -115,6 +143,12 @@ public class GoToPlaylistPage extends ServletBase {
         ctx.setVariable("totalPages", totalPages);
         ctx.setVariable("hasPrevious", hasPrevious);
         ctx.setVariable("hasNext", hasNext);
+        
+        // Cursori per i link PREVIOUS/NEXT
+        if (!currentPageSongs.isEmpty()) {
+            ctx.setVariable("firstSongId", currentPageSongs.get(0).getID());
+            ctx.setVariable("lastSongId", currentPageSongs.get(currentPageSongs.size() - 1).getID());
+        }
     }
     
     /**
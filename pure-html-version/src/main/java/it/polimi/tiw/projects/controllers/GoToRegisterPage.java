@@ -50,7 +50,7 @@ public class GoToRegisterPage extends ServletBase {
         
         // Rendering utilizzando il template engine della ServletBase
         String templatePath = "/WEB-INF/RegisterPage.html";
-        templateEngine.process(templatePath, ctx, response.getWriter());
+        renderTemplate(templatePath, ctx, response);
     }
     
     /**
@@ -50,7 +50,7 @@ public class Register extends ServletBase {
         String password = request.getParameter("password");
         String confirmPassword = request.getParameter("confirmPassword");
 
-        UserDAO userDAO = new UserDAO(connection);
+        UserDAO userDAO = new UserDAO(getConnection());
 
         // Aggiungi solo valori NON sensibili ai formValues (MAI le password!)
         if (!isEmpty(username)) {
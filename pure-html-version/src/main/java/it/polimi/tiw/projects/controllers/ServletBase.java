@@ -1,6 +1,5 @@
 package it.polimi.tiw.projects.controllers;
 
-import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -12,21 +11,33 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
 import org.thymeleaf.TemplateEngine;
 import org.thymeleaf.context.WebContext;
-import org.thymeleaf.templatemode.TemplateMode;
-import org.thymeleaf.templateresolver.WebApplicationTemplateResolver;
 import org.thymeleaf.web.servlet.JakartaServletWebApplication;
 
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.utils.ConnectionHandler;
 import it.polimi.tiw.projects.utils.FlashMessagesManager;
+import it.polimi.tiw.projects.utils.Templates;
 
 public abstract class ServletBase extends HttpServlet {
     private static final long serialVersionUID = 1L;
     
-    protected Connection connection;
     protected TemplateEngine templateEngine;
+    private DataSource dataSource;
+    // Connessione presa in prestito dal pool per la richiesta in corso (null finché non serve)
+    private final ThreadLocal<Connection> requestConnection = new ThreadLocal<>();
+    
+    // Pool esaurito o database irraggiungibile al primo utilizzo della connessione: la richiesta riceve 503
+    private static final class DatabaseUnavailableException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        DatabaseUnavailableException(SQLException cause) {
+            super(cause);
+        }
+    }
     
     protected boolean needsDatabase() {
         return true;
@@ -42,31 +53,58 @@ public abstract class ServletBase extends HttpServlet {
     
     public void init() throws ServletException {
         if (needsDatabase()) {
-            connection = ConnectionHandler.getConnection(getServletContext());
+            dataSource = ConnectionHandler.getDataSource(getServletContext());
         }
         
         if (needsTemplateEngine()) {
-            setupTemplateEngine();
+            // Motore condiviso da tutte le servlet, con la cache dei template già popolata dal listener
+            templateEngine = Templates.getEngine(getServletContext());
         }
     }
     
-    private void setupTemplateEngine() {
-        ServletContext servletContext = getServletContext();
-        JakartaServletWebApplication webApplication = JakartaServletWebApplication.buildApplication(servletContext);     
-        WebApplicationTemplateResolver templateResolver = new WebApplicationTemplateResolver(webApplication);
-        templateResolver.setTemplateMode(TemplateMode.HTML);
-        this.templateEngine = new TemplateEngine();
-        this.templateEngine.setTemplateResolver(templateResolver);
-        templateResolver.setSuffix(".html");
+    // La connessione presa durante la richiesta viene restituita al pool al termine, se non è già stata rilasciata
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        try {
+            super.service(request, response);
+        } catch (DatabaseUnavailableException e) {
+            e.getCause().printStackTrace();
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Database temporarily unavailable");
+            }
+        } finally {
+            releaseConnection();
+        }
     }
     
-    public void destroy() {
-        if (connection != null) {
+    /**
+     * Connessione della richiesta corrente, presa dal pool al primo utilizzo: la lettura del corpo
+     * della richiesta e il lavoro sui file che la precedono non occupano una connessione.
+     */
+    protected Connection getConnection() {
+        Connection connection = requestConnection.get();
+        if (connection == null && dataSource != null) {
             try {
-                ConnectionHandler.closeConnection(connection);
+                connection = dataSource.getConnection();
             } catch (SQLException e) {
-                e.printStackTrace();
+                throw new DatabaseUnavailableException(e);
             }
+            requestConnection.set(connection);
+        }
+        return connection;
+    }
+    
+    // Restituisce subito al pool la connessione della richiesta (una chiamata successiva a getConnection ne prende un'altra)
+    protected void releaseConnection() {
+        Connection connection = requestConnection.get();
+        if (connection == null) {
+            return;
+        }
+        requestConnection.remove();
+        try {
+            ConnectionHandler.closeConnection(connection);
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
     }
     
@@ -99,10 +137,20 @@ public abstract class ServletBase extends HttpServlet {
     
     // Crea il context per thymeleaf
     protected WebContext createContext(HttpServletRequest request, HttpServletResponse response) {
-        JakartaServletWebApplication webApplication = JakartaServletWebApplication.buildApplication(getServletContext());
+        JakartaServletWebApplication webApplication = Templates.getWebApplication(getServletContext());
         return new WebContext(webApplication.buildExchange(request, response), request.getLocale());
     }
     
+    // Rendering di un template, con la misura della durata
+    protected void renderTemplate(String templatePath, WebContext ctx, HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        try {
+            templateEngine.process(templatePath, ctx, response.getWriter());
+        } finally {
+            Templates.recordRender(templatePath, System.nanoTime() - start);
+        }
+    }
+    
     // Pattern Post-Redirect-Get
     protected void doRedirect(HttpServletRequest request, HttpServletResponse response,
                              String redirectPath, String successMessage,
@@ -20,9 +20,12 @@ import it.polimi.tiw.projects.beans.Song;
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.dao.GenreDAO;
 import it.polimi.tiw.projects.dao.SongDAO;
+import it.polimi.tiw.projects.utils.AudioMetadataParser.AudioMetadata;
 import it.polimi.tiw.projects.utils.FileStorageManager;
 
-@MultipartConfig
+// Le parti oltre 1MB vengono scritte su disco dal container invece di restare in memoria;
+// le richieste oltre i limiti vengono rifiutate prima di leggere l'intero corpo
+@MultipartConfig(fileSizeThreshold = 1024 * 1024, maxFileSize = 10 * 1024 * 1024, maxRequestSize = 16 * 1024 * 1024)
 @WebServlet("/UploadSong")
 public class UploadSong extends ServletBase {
     private static final long serialVersionUID = 1L;
@@ -159,8 +162,8 @@ public class UploadSong extends ServletBase {
             
             // Validazioni database se non ci sono errori di input
             if (!hasErrors) {
-                SongDAO songDAO = new SongDAO(connection);
-                GenreDAO genreDAO = new GenreDAO(connection);
+                SongDAO songDAO = new SongDAO(getConnection());
+                GenreDAO genreDAO = new GenreDAO(getConnection());
                 
                 // Verifica genere musicale valido
                 if (!genreDAO.existsGenreByName(genre)) {
@@ -169,19 +172,22 @@ public class UploadSong extends ServletBase {
                 }
                 
                 // Verifica duplicati
-                int genreId = genreDAO.getGenreIdByName(genre);
-                if (genreId > 0 && songDAO.existsSongWithSameData(songName, albumName, artistName, 
+                Integer genreId = genreDAO.getGenreIdByName(genre);
+                if (genreId != null && songDAO.existsSongWithSameData(songName, albumName, artistName, 
                         albumReleaseYear, genreId, user.getId())) {
                     errorMessages.put("generalError", "Esiste già una canzone identica con questi dati");
                     hasErrors = true;
                 }
+                // Il salvataggio dei file non usa il database: la connessione torna al pool nel frattempo
+                releaseConnection();
             }
             
             // ===== SE NON CI SONO ERRORI, PROCEDI CON L'UPLOAD =====
             if (!hasErrors) {
                 try {
                     albumCoverPath = FileStorageManager.saveUploadedFile(albumCoverPart, "covers");
-                    songFilePath = FileStorageManager.saveUploadedFile(songFilePart, "songs");
+                    FileStorageManager.StoredFile songFile = FileStorageManager.storeUploadedFile(songFilePart, "songs");
+                    songFilePath = songFile.getRelativePath();
                     
                     // Crea e salva canzone nel database
                     Song song = new Song();
@@ -194,7 +200,17 @@ public class UploadSong extends ServletBase {
                     song.setAlbumCoverPath(albumCoverPath);
                     song.setAudioFilePath(songFilePath);
                     
-                    SongDAO songDAO = new SongDAO(connection);
+                    // Metadati letti dall'header del file durante il salvataggio
+                    AudioMetadata metadata = songFile.getAudioMetadata();
+                    if (metadata != null) {
+                        song.setDurationMs(metadata.getDurationMs() != null ? metadata.getDurationMs().intValue() : null);
+                        song.setBitrate(metadata.getBitrate());
+                        song.setSampleRate(metadata.getSampleRate());
+                        song.setChannels(metadata.getChannels());
+                        song.setCodec(metadata.getCodec());
+                    }
+                    
+                    SongDAO songDAO = new SongDAO(getConnection());
                     boolean success = songDAO.uploadSong(song);
                 
                     if (!success) {
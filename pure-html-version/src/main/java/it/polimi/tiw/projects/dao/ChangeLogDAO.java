@@ -0,0 +1,87 @@
+package it.polimi.tiw.projects.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Accesso alla tabella ChangeLog: le modifiche alla libreria di ogni utente (canzoni e playlist),
+ * registrate dai DAO nella stessa transazione della modifica. Il database è condiviso con la versione RIA,
+ * che ne ricava le differenze rispetto all'ultima versione vista dal client (/api/sync).
+ * Ogni modifica incrementa User.changeVersion: l'aggiornamento blocca la riga dell'utente, quindi le
+ * versioni di un utente diventano visibili in ordine e senza buchi (una transazione annullata non
+ * consuma la versione). Un client che ha visto la versione N deve solo leggere le righe con version > N.
+ */
+public class ChangeLogDAO {
+	public static final String SONG = "song";
+	public static final String PLAYLIST = "playlist";
+	public static final String UPSERT = "upsert";
+	public static final String DELETE = "delete";
+
+	// Versioni conservate per utente: un client più indietro riceve di nuovo la libreria completa
+	private static final int MAX_VERSIONS_KEPT = 1000;
+	// Le righe più vecchie vengono eliminate una volta ogni PRUNE_EVERY versioni
+	private static final int PRUNE_EVERY = 100;
+
+	private Connection connection;
+
+	public ChangeLogDAO (Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Registra la modifica di una canzone o di una playlist dell'utente.
+	 * Va chiamato nella transazione della modifica, dopo le altre scritture (blocca la riga User fino al commit).
+	 * @return La nuova versione della libreria dell'utente
+	 */
+	public long record(int userID, String entity, int entityID, String action) throws SQLException {
+	    String increment = "UPDATE User SET changeVersion = changeVersion + 1 WHERE ID = ?";
+	    String insert = "INSERT INTO ChangeLog (userID, version, entity, entityID, action) VALUES (?, ?, ?, ?, ?)";
+
+	    try (PreparedStatement pstatement = connection.prepareStatement(increment)) {
+	        pstatement.setInt(1, userID);
+	        if (pstatement.executeUpdate() == 0) {
+	            throw new SQLException("User " + userID + " not found");
+	        }
+	    }
+	    long version = readVersion(userID);
+	    try (PreparedStatement pstatement = connection.prepareStatement(insert)) {
+	        pstatement.setInt(1, userID);
+	        pstatement.setLong(2, version);
+	        pstatement.setString(3, entity);
+	        pstatement.setInt(4, entityID);
+	        pstatement.setString(5, action);
+	        pstatement.executeUpdate();
+	    }
+	    if (version % PRUNE_EVERY == 0) {
+	        String prune = "DELETE FROM ChangeLog WHERE userID = ? AND version <= ?";
+	        try (PreparedStatement pstatement = connection.prepareStatement(prune)) {
+	            pstatement.setInt(1, userID);
+	            pstatement.setLong(2, version - MAX_VERSIONS_KEPT);
+	            pstatement.executeUpdate();
+	        }
+	    }
+	    return version;
+	}
+
+	/**
+	 * Restituisce la versione corrente della libreria dell'utente
+	 */
+	public long getVersion(int userID) throws SQLException {
+	    return readVersion(userID);
+	}
+
+	private long readVersion(int userID) throws SQLException {
+	    String query = "SELECT changeVersion FROM User WHERE ID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, userID);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            if (!result.next()) {
+	                throw new SQLException("User " + userID + " not found");
+	            }
+	            return result.getLong(1);
+	        }
+	    }
+	}
+}
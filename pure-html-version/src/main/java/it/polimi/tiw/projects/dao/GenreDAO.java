@@ -1,12 +1,15 @@
 package it.polimi.tiw.projects.dao;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
 
+import it.polimi.tiw.projects.utils.GenreCatalog;
+
+/**
+ * I generi sono letti dal catalogo in memoria (GenreCatalog): la connessione
+ * serve solo se il catalogo non è ancora stato caricato o per ricaricarlo.
+ */
 public class GenreDAO {
 	private Connection connection;
 	
@@ -15,47 +18,21 @@ public class GenreDAO {
 	}
 	
 	public List<String> getAllGenresNames() throws SQLException{
-		String query = "SELECT name FROM Genre";
-		List<String> genresNames = new ArrayList<>();
-		try (PreparedStatement pstatement = connection.prepareStatement(query);) {
-			try (ResultSet result = pstatement.executeQuery();) {
-				while (result.next()) {
-					genresNames.add(result.getString("name"));
-				}
-			}
-		}
-		
-		return genresNames;
+		return GenreCatalog.get(connection).getNames();
 	}
 	
 	public boolean existsGenreByName (String name) throws SQLException{
-		String query = "SELECT name FROM Genre WHERE name=?";
-		
-		try (PreparedStatement pstatement = connection.prepareStatement(query);) {
-			pstatement.setString(1, name);
-			try (ResultSet result = pstatement.executeQuery();) {
-				if(!result.isBeforeFirst())
-					return false;
-				else {
-					return true;
-				}
-			}
-		}
+		return GenreCatalog.get(connection).contains(name);
 	}
 	
 	public Integer getGenreIdByName (String name) throws SQLException {
-		String query = "SELECT ID FROM Genre WHERE name=?";
-		Integer ID;
-		try (PreparedStatement pstatement = connection.prepareStatement(query);) {
-			pstatement.setString(1, name);
-			try (ResultSet result = pstatement.executeQuery();) {
-				if(!result.isBeforeFirst())
-					return null;
-				else {
-					result.next();
-					return result.getInt("ID");
-				}
-			}
-		}
+		return GenreCatalog.get(connection).getIdByName(name);
+	}
+	
+	/**
+	 * Rilegge la tabella Genre e sostituisce il catalogo condiviso
+	 */
+	public void reloadGenres() throws SQLException {
+		GenreCatalog.reload(connection);
 	}
 }
@@ -7,14 +7,26 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import it.polimi.tiw.projects.beans.Playlist;
 import it.polimi.tiw.projects.beans.Song;
+import it.polimi.tiw.projects.utils.LibraryCache;
 
 import java.sql.Date;
 
 public class PlaylistDAO {
+	// Numero massimo di righe per ogni executeBatch degli inserimenti
+	private static final int INSERT_BATCH_SIZE = 1000;
+	
+	// Query base e chiave del cursore per la paginazione delle canzoni di una playlist
+	private static final String PAGE_SELECT = "SELECT s.*, g.name as genreName FROM PlaylistSong ps " +
+	        "JOIN Song s ON s.ID = ps.songID JOIN Genre g ON s.genreID = g.ID ";
+	private static final String CURSOR_KEY =
+	        "(SELECT c.albumArtist, c.albumReleaseYear, c.ID FROM Song c WHERE c.ID = ?) ";
+	
 	private Connection connection;
 	
 	public PlaylistDAO (Connection connection) {
@@ -31,23 +43,22 @@ public class PlaylistDAO {
 	            throw new SQLException("Playlist with name '" + name + "' already exists");
 	        }
 	        
-	        // Insert the playlist record
-	        int playlistID = insertPlaylist(name, userID);
-	        
-	        // Verifica che tutti i songID appartengano all'utente
+	        // Verifica in blocco che tutti i songID appartengano all'utente
 	        SongDAO songDAO = new SongDAO(connection);
-	        for (int songID : songIDs) {
-	            if (!songDAO.songBelongsToUser(songID, userID)) {
-	                throw new SQLException("Song ID " + songID + " does not belong to user");
-	            }
+	        Set<Integer> invalidSongIDs = songDAO.findInvalidSongIDs(songIDs, userID);
+	        if (!invalidSongIDs.isEmpty()) {
+	            throw new SQLException("Song IDs " + invalidSongIDs + " do not belong to user");
 	        }
 	        
+	        // Insert the playlist record
+	        int playlistID = insertPlaylist(name, userID);
+	        
 	        // Add songs to playlist usando direttamente gli ID
-	        for (int songID : songIDs) {
-	            addSongToPlaylist(playlistID, songID);
-	        }
+	        addSongsToPlaylistBatch(playlistID, songIDs);
+	        new ChangeLogDAO(connection).record(userID, ChangeLogDAO.PLAYLIST, playlistID, ChangeLogDAO.UPSERT);
 	        
 	        connection.commit();
+	        LibraryCache.getInstance().invalidatePlaylists(userID);
 	        return true;
 	    } catch (SQLException e) { //TODO gestire meglio questa gestione degli errori
 	        try {
@@ -92,13 +103,30 @@ public class PlaylistDAO {
         }
     }
 	
-	private void addSongToPlaylist(int playlistID, int songID) throws SQLException {
-        String query = "INSERT INTO PlaylistSong (playlistID, songID) VALUES (?, ?)";
+	/**
+	 * Inserisce le associazioni playlist-canzone in batch (un solo statement preparato,
+	 * riscritto in INSERT multi-riga dal driver con rewriteBatchedStatements).
+	 * Le canzoni già presenti nella playlist vengono ignorate.
+	 */
+	private void addSongsToPlaylistBatch(int playlistID, int[] songIDs) throws SQLException {
+        String query = "INSERT INTO PlaylistSong (playlistID, songID) VALUES (?, ?) "
+                + "ON DUPLICATE KEY UPDATE songID = songID";
         
         try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-            pstatement.setInt(1, playlistID);
-            pstatement.setInt(2, songID);
-            pstatement.executeUpdate();
+            int pending = 0;
+            for (int songID : songIDs) {
+                pstatement.setInt(1, playlistID);
+                pstatement.setInt(2, songID);
+                pstatement.addBatch();
+                
+                if (++pending == INSERT_BATCH_SIZE) {
+                    pstatement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                pstatement.executeBatch();
+            }
         }
     }
 
@@ -119,6 +147,15 @@ public class PlaylistDAO {
 	}
 	
 	public List<Playlist> getAllPlaylistsByUserId(int userID) throws SQLException {
+	    // Prima la cache: vale solo per la versione corrente della libreria, letta prima dei dati
+	    LibraryCache cache = LibraryCache.getInstance();
+	    long version = new ChangeLogDAO(connection).getVersion(userID);
+	    List<Playlist> cached = cache.getPlaylists(userID, version);
+	    if (cached != null) {
+	        return cached;
+	    }
+	    LibraryCache.Entry entry = cache.entryFor(userID, version);
+		
 		String query = "SELECT * FROM Playlist WHERE userID = ? ORDER BY creationDate DESC;";
 	    List<Playlist> playlists = new ArrayList<>();
 	    
@@ -138,7 +175,7 @@ public class PlaylistDAO {
 	        }
 	    }
 	    
-	    return playlists;
+	    return cache.putPlaylists(userID, entry, playlists);
 	}
 	
 	/**
@@ -195,6 +232,7 @@ public class PlaylistDAO {
 	                song.setGenre(result.getString("genreName"));
 	                song.setAlbumCoverPath(result.getString("albumCover"));
 	                song.setAudioFilePath(result.getString("file"));
+	                SongDAO.mapAudioMetadata(result, song);
 	                
 	                songs.add(song);
 	            }
@@ -204,6 +242,104 @@ public class PlaylistDAO {
 	    return songs;
 	}
 	
+	/**
+	 * Count songs in a playlist (uses only the PlaylistSong primary key)
+	 */
+	public int countSongsInPlaylist(int playlistId) throws SQLException {
+	    String query = "SELECT COUNT(*) FROM PlaylistSong WHERE playlistID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            return result.next() ? result.getInt(1) : 0;
+	        }
+	    }
+	}
+	
+	/**
+	 * Total duration of the songs in a playlist, counting only songs whose duration is known
+	 */
+	public long getPlaylistDurationMs(int playlistId) throws SQLException {
+	    String query = "SELECT COALESCE(SUM(s.durationMs), 0) FROM PlaylistSong ps JOIN Song s ON s.ID = ps.songID " +
+	                   "WHERE ps.playlistID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            return result.next() ? result.getLong(1) : 0;
+	        }
+	    }
+	}
+	
+	/**
+	 * Keyset pagination: restituisce al massimo limit canzoni che seguono afterSongId
+	 * nell'ordine (artista, anno, ID). Con afterSongId = -1 restituisce la prima pagina.
+	 */
+	public List<Song> getSongsFromPlaylistAfter(int playlistId, int afterSongId, int limit) throws SQLException {
+	    String query = PAGE_SELECT + "WHERE ps.playlistID = ? " +
+	                   (afterSongId != -1 ? "AND (s.albumArtist, s.albumReleaseYear, s.ID) > " + CURSOR_KEY : "") +
+	                   "ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC, s.ID ASC LIMIT ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        int index = 1;
+	        pstatement.setInt(index++, playlistId);
+	        if (afterSongId != -1) {
+	            pstatement.setInt(index++, afterSongId);
+	        }
+	        pstatement.setInt(index, limit);
+	        return readSongs(pstatement);
+	    }
+	}
+	
+	/**
+	 * Keyset pagination all'indietro: le limit canzoni che precedono beforeSongId, in ordine crescente
+	 */
+	public List<Song> getSongsFromPlaylistBefore(int playlistId, int beforeSongId, int limit) throws SQLException {
+	    String query = PAGE_SELECT + "WHERE ps.playlistID = ? " +
+	                   "AND (s.albumArtist, s.albumReleaseYear, s.ID) < " + CURSOR_KEY +
+	                   "ORDER BY s.albumArtist DESC, s.albumReleaseYear DESC, s.ID DESC LIMIT ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        pstatement.setInt(2, beforeSongId);
+	        pstatement.setInt(3, limit);
+	        List<Song> songs = readSongs(pstatement);
+	        Collections.reverse(songs);
+	        return songs;
+	    }
+	}
+	
+	/**
+	 * Pagina per offset, usata solo quando manca un cursore (es. URL digitato a mano)
+	 */
+	public List<Song> getSongsFromPlaylistPage(int playlistId, int offset, int limit) throws SQLException {
+	    String query = PAGE_SELECT + "WHERE ps.playlistID = ? " +
+	                   "ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC, s.ID ASC LIMIT ? OFFSET ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        pstatement.setInt(2, limit);
+	        pstatement.setInt(3, offset);
+	        return readSongs(pstatement);
+	    }
+	}
+	
+	private List<Song> readSongs(PreparedStatement pstatement) throws SQLException {
+	    List<Song> songs = new ArrayList<>();
+	    try (ResultSet result = pstatement.executeQuery()) {
+	        while (result.next()) {
+	            Song song = new Song();
+	            song.setID(result.getInt("ID"));
+	            song.setUserID(result.getInt("userID"));
+	            song.setName(result.getString("name"));
+	            song.setAlbumName(result.getString("albumName"));
+	            song.setArtistName(result.getString("albumArtist"));
+	            song.setAlbumReleaseYear(result.getInt("albumReleaseYear"));
+	            song.setGenre(result.getString("genreName"));
+	            song.setAlbumCoverPath(result.getString("albumCover"));
+	            song.setAudioFilePath(result.getString("file"));
+	            SongDAO.mapAudioMetadata(result, song);
+	            songs.add(song);
+	        }
+	    }
+	    return songs;
+	}
+	
 	/**
 	 * Get songs not in a specific playlist for adding to playlist
 	 */
@@ -213,10 +349,10 @@ public class PlaylistDAO {
 	        FROM Song s 
 	        JOIN Genre g ON s.genreID = g.ID 
 	        WHERE s.userID = ? 
-	        AND s.ID NOT IN (
-	            SELECT ps.songID 
+	        AND NOT EXISTS (
+	            SELECT 1 
 	            FROM PlaylistSong ps 
-	            WHERE ps.playlistID = ?
+	            WHERE ps.playlistID = ? AND ps.songID = s.ID
 	        )
 	        ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC
 	    """;
@@ -238,6 +374,7 @@ public class PlaylistDAO {
 	                song.setGenre(result.getString("genreName"));
 	                song.setAlbumCoverPath(result.getString("albumCover"));
 	                song.setAudioFilePath(result.getString("file"));
+	                SongDAO.mapAudioMetadata(result, song);
 	                
 	                songs.add(song);
 	            }
@@ -256,13 +393,16 @@ public class PlaylistDAO {
 	    try {
 	        connection.setAutoCommit(false);
 	        
-	        for (int songID : songIDs) {
-	            // Check if song is already in playlist
-	            if (!isSongInPlaylist(playlistId, songID)) {
-	                addSongToPlaylist(playlistId, songID);
-	            }
+	        // Verifica in blocco che tutti i songID appartengano all'utente
+	        Set<Integer> invalidSongIDs = new SongDAO(connection).findInvalidSongIDs(songIDs, userId);
+	        if (!invalidSongIDs.isEmpty()) {
+	            throw new SQLException("Song IDs " + invalidSongIDs + " do not belong to user");
 	        }
 	        
+	        // Le canzoni già presenti vengono ignorate dall'inserimento in batch
+	        addSongsToPlaylistBatch(playlistId, songIDs);
+	        new ChangeLogDAO(connection).record(userId, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.UPSERT);
+	        
 	        connection.commit();
 	        return true;
 	    } catch (SQLException e) {
@@ -281,24 +421,6 @@ public class PlaylistDAO {
 	    }
 	}
 	
-	/**
-	 * Check if a song is already in a playlist
-	 */
-	private boolean isSongInPlaylist(int playlistId, int songId) throws SQLException {
-	    String query = "SELECT COUNT(*) FROM PlaylistSong WHERE playlistID = ? AND songID = ?";
-	    
-	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-	        pstatement.setInt(1, playlistId);
-	        pstatement.setInt(2, songId);
-	        try (ResultSet result = pstatement.executeQuery()) {
-	            if (result.next()) {
-	                return result.getInt(1) > 0;
-	            }
-	        }
-	    }
-	    return false;
-	}
-	
 	/**
 	 * Delete a playlist and its song associations without deleting the songs themselves
 	 */
@@ -340,8 +462,10 @@ public class PlaylistDAO {
 	                return false;
 	            }
 	        }
+	        new ChangeLogDAO(connection).record(userId, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.DELETE);
 	        
 	        connection.commit();
+	        LibraryCache.getInstance().invalidatePlaylists(userId);
 	        return true;
 	        
 	    } catch (SQLException e) {
@@ -1,20 +1,35 @@
 package it.polimi.tiw.projects.dao;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import it.polimi.tiw.projects.beans.Playlist;
 import it.polimi.tiw.projects.beans.Song;
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.JobQueue;
+import it.polimi.tiw.projects.utils.LibraryCache;
+import it.polimi.tiw.projects.utils.MediaJobs;
+import it.polimi.tiw.projects.utils.StorageSweeper;
 
 public class SongDAO {
+	// Numero massimo di ID in una singola lista IN (...)
+	private static final int IN_LIST_CHUNK_SIZE = 500;
+	
 	private Connection connection;
 	
 	public SongDAO (Connection connection) {
@@ -60,16 +75,21 @@ public class SongDAO {
 	
 
 	public boolean uploadSong(Song song) throws SQLException {
-		String query = "INSERT INTO Song (userID, name, genreID, file, albumCover, albumName, albumArtist, albumReleaseYear) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+		String query = "INSERT INTO Song (userID, name, genreID, file, albumCover, albumName, albumArtist, albumReleaseYear, " +
+                "durationMs, bitrate, sampleRate, channels, codec) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 		
+		boolean originalAutoCommit = connection.getAutoCommit();
 		try (PreparedStatement pstatement = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+			connection.setAutoCommit(false);
 			pstatement.setInt(1, song.getUserID());
 			pstatement.setString(2, song.getName());
 			
 			GenreDAO genreDAO = new GenreDAO(connection);
-			// TODO non può restituire errore perchè il controllo di correttezza del genre è già stato fatto
-			int genreId = genreDAO.getGenreIdByName(song.getGenre());
+			Integer genreId = genreDAO.getGenreIdByName(song.getGenre());
+			if (genreId == null) {
+			    throw new SQLException("Genre '" + song.getGenre() + "' not found");
+			}
 	        pstatement.setInt(3, genreId);
 	        
 	        //TODO togliere il fatto che il file audio sia opzionale
@@ -87,14 +107,55 @@ public class SongDAO {
 	        pstatement.setString(6, song.getAlbumName());
 	        pstatement.setString(7, song.getArtistName());
 	        pstatement.setInt(8, song.getAlbumReleaseYear());
+	        pstatement.setObject(9, song.getDurationMs(), java.sql.Types.INTEGER);
+	        pstatement.setObject(10, song.getBitrate(), java.sql.Types.INTEGER);
+	        pstatement.setObject(11, song.getSampleRate(), java.sql.Types.INTEGER);
+	        pstatement.setObject(12, song.getChannels(), java.sql.Types.TINYINT);
+	        pstatement.setString(13, song.getCodec());
 	        
 	        int affectedRows = pstatement.executeUpdate();
+	        if (affectedRows == 0) {
+	            connection.rollback();
+	            return false;
+	        }
+	        int songID;
+	        try (ResultSet generatedKeys = pstatement.getGeneratedKeys()) {
+	            if (!generatedKeys.next()) {
+	                throw new SQLException("Creating song failed, no ID obtained.");
+	            }
+	            songID = generatedKeys.getInt(1);
+	        }
+	        
+	        // Riferimenti ai file condivisi, nella stessa transazione dell'inserimento
+	        MediaBlobDAO mediaBlobDAO = new MediaBlobDAO(connection);
+	        mediaBlobDAO.addReference(song.getAudioFilePath());
+	        mediaBlobDAO.addReference(song.getAlbumCoverPath());
+	        // Miniature, forma d'onda e segmenti HLS vengono generati in background dopo il commit
+	        MediaJobs.enqueueDerivedFiles(connection, song.getAudioFilePath(), song.getAlbumCoverPath());
+	        new ChangeLogDAO(connection).record(song.getUserID(), ChangeLogDAO.SONG, songID, ChangeLogDAO.UPSERT);
 	        
-	        return affectedRows > 0;
+	        connection.commit();
+	        LibraryCache.getInstance().invalidateSongs(song.getUserID());
+	        JobQueue.wakeUp();
+	        return true;
+		} catch (SQLException e) {
+		    connection.rollback();
+		    throw e;
+		} finally {
+		    connection.setAutoCommit(originalAutoCommit);
 		}
 	}
 	
 	public List<Song> getAllSongsByUserId(int userID) throws SQLException {
+	    // Prima la cache: vale solo per la versione corrente della libreria, letta prima dei dati
+	    LibraryCache cache = LibraryCache.getInstance();
+	    long version = new ChangeLogDAO(connection).getVersion(userID);
+	    List<Song> cached = cache.getSongs(userID, version);
+	    if (cached != null) {
+	        return cached;
+	    }
+	    LibraryCache.Entry entry = cache.entryFor(userID, version);
+	    
 		String query = "SELECT s.*, g.name as genreName FROM Song s JOIN Genre g ON s.genreID = g.ID WHERE s.userID = ? ORDER BY s.albumArtist, s.albumReleaseYear";
 	    List<Song> songs = new ArrayList<>();
 	    
@@ -112,13 +173,14 @@ public class SongDAO {
 	                song.setGenre(result.getString("genreName"));
 	                song.setAlbumCoverPath(result.getString("albumCover"));
 	                song.setAudioFilePath(result.getString("file"));
+	                mapAudioMetadata(result, song);
 	                
 	                songs.add(song);
 	            }
 	        }
 	    }
 	    
-	    return songs;
+	    return cache.putSongs(userID, entry, songs);
 	}
 	
 	//TODO da rimuovere perchè ora conotrollo di unicità non lo faccio con il nome, ma guardando tutti i parametri
@@ -131,20 +193,46 @@ public class SongDAO {
 	}
 	
 	public boolean existAllSongsByIDsAndUser(int[] songIDs, int userID) throws SQLException {
-	    for (int songID : songIDs) {
-	        String query = "SELECT COUNT(*) FROM Song WHERE ID = ? AND userID = ?";
+	    return findInvalidSongIDs(songIDs, userID).isEmpty();
+	}
+	
+	/**
+	 * Restituisce gli ID che non esistono o non appartengono all'utente.
+	 * Usa una query IN (...) per ogni blocco di IN_LIST_CHUNK_SIZE ID invece di una query per canzone.
+	 */
+	public Set<Integer> findInvalidSongIDs(int[] songIDs, int userID) throws SQLException {
+	    Set<Integer> invalidIDs = new LinkedHashSet<>();
+	    if (songIDs == null || songIDs.length == 0) return invalidIDs;
+	    
+	    int[] distinctIDs = Arrays.stream(songIDs).distinct().toArray();
+	    Set<Integer> ownedIDs = new HashSet<>();
+	    
+	    for (int start = 0; start < distinctIDs.length; start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, distinctIDs.length);
+	        String query = "SELECT ID FROM Song WHERE userID = ? AND ID IN (" + placeholders(end - start) + ")";
 	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-	            pstatement.setInt(1, songID);
-	            pstatement.setInt(2, userID);
-	            
+	            pstatement.setInt(1, userID);
+	            for (int i = start; i < end; i++) {
+	                pstatement.setInt(i - start + 2, distinctIDs[i]);
+	            }
 	            try (ResultSet result = pstatement.executeQuery()) {
-	                if (result.next() && result.getInt(1) == 0) {
-	                    return false;
+	                while (result.next()) {
+	                    ownedIDs.add(result.getInt(1));
 	                }
 	            }
 	        }
 	    }
-	    return true;
+	    
+	    for (int songID : distinctIDs) {
+	        if (!ownedIDs.contains(songID)) {
+	            invalidIDs.add(songID);
+	        }
+	    }
+	    return invalidIDs;
+	}
+	
+	private static String placeholders(int count) {
+	    return String.join(",", Collections.nCopies(count, "?"));
 	}
 	
 	public int getSongIDByNameAndUser(String songName, int userID) throws SQLException {
@@ -186,6 +274,7 @@ public class SongDAO {
 	                song.setGenre(result.getString("genreName"));
 	                song.setAlbumCoverPath(result.getString("albumCover"));
 	                song.setAudioFilePath(result.getString("file"));
+	                mapAudioMetadata(result, song);
 	                
 	                return song;
 	            } else {
@@ -214,6 +303,7 @@ public class SongDAO {
 	                song.setGenre(result.getString("genreName"));
 	                song.setAlbumCoverPath(result.getString("albumCover"));
 	                song.setAudioFilePath(result.getString("file"));
+	                mapAudioMetadata(result, song);
 	                
 	                return song;
 	            } else {
@@ -225,6 +315,7 @@ public class SongDAO {
 	
 	public boolean deleteSong(int songID, int userID) throws SQLException {
 	    boolean originalAutoCommit = connection.getAutoCommit();
+	    Map<String, Path> detachedBlobs = Collections.emptyMap();
 	    
 	    try {
 	        connection.setAutoCommit(false);
@@ -253,28 +344,31 @@ public class SongDAO {
 	            }
 	        }
 	        
-	        connection.commit();
+	        // 4. Rilascia i riferimenti ai file condivisi (stacca quelli non più usati)
+	        List<String> filePaths = Arrays.asList(song.getAudioFilePath(), song.getAlbumCoverPath());
+	        detachedBlobs = new MediaBlobDAO(connection).releaseReferences(filePaths);
 	        
-	        // 4. Cancella file DOPO il commit del DB
-	        deletePhysicalFiles(song);
+	        // 5. Registra i file da eliminare (FileTombstone): li rimuove StorageSweeper solo dopo il commit
+	        new FileTombstoneDAO(connection).addTombstones(detachedBlobs.values(), filePaths);
+	        
+	        // 6. Registra l'eliminazione per la sincronizzazione dei client RIA
+	        new ChangeLogDAO(connection).record(userID, ChangeLogDAO.SONG, songID, ChangeLogDAO.DELETE);
+	        
+	        connection.commit();
+	        LibraryCache.getInstance().invalidateSongs(userID);
+	        StorageSweeper.wakeUp();
 	        
 	        return true;
 	        
 	    } catch (SQLException e) {
 	        connection.rollback();
+	        FileStorageManager.restoreDetachedBlobs(detachedBlobs);
 	        throw e;
 	    } finally {
 	        connection.setAutoCommit(originalAutoCommit);
 	    }
 	}
 	
-	private void deletePhysicalFiles(Song song) {
-	    FileStorageManager.cleanupFiles(
-	        song.getAlbumCoverPath(),
-	        song.getAudioFilePath()
-	    );
-	}
-	
 	public boolean songBelongsToUser(int songID, int userID) throws SQLException {
 	    String query = "SELECT COUNT(*) FROM Song WHERE ID = ? AND userID = ?";
 	    
@@ -290,4 +384,85 @@ public class SongDAO {
 	    }
 	    return false;
 	}
+
+	/**
+	 * Registra la playlist HLS di un file audio per tutte le canzoni che lo usano
+	 * (con lo storage indirizzato per contenuto più canzoni possono condividere lo stesso file)
+	 */
+	public void setHlsPlaylist(String audioFilePath, String playlistPath) throws SQLException {
+	    String update = "UPDATE Song SET hlsPlaylist = ? WHERE file = ?";
+	    String select = "SELECT ID, userID FROM Song WHERE file = ?";
+	    boolean originalAutoCommit = connection.getAutoCommit();
+	    // ID della canzone -> utente
+	    Map<Integer, Integer> changedSongs = new LinkedHashMap<>();
+	    try {
+	        connection.setAutoCommit(false);
+	        try (PreparedStatement pstatement = connection.prepareStatement(update)) {
+	            pstatement.setString(1, playlistPath);
+	            pstatement.setString(2, audioFilePath);
+	            pstatement.executeUpdate();
+	        }
+	        try (PreparedStatement pstatement = connection.prepareStatement(select)) {
+	            pstatement.setString(1, audioFilePath);
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    changedSongs.put(result.getInt("ID"), result.getInt("userID"));
+	                }
+	            }
+	        }
+	        // Le canzoni modificate vanno registrate per la sincronizzazione dei client
+	        ChangeLogDAO changeLogDAO = new ChangeLogDAO(connection);
+	        for (Map.Entry<Integer, Integer> song : changedSongs.entrySet()) {
+	            changeLogDAO.record(song.getValue(), ChangeLogDAO.SONG, song.getKey(), ChangeLogDAO.UPSERT);
+	        }
+	        connection.commit();
+	    } catch (SQLException e) {
+	        connection.rollback();
+	        throw e;
+	    } finally {
+	        connection.setAutoCommit(originalAutoCommit);
+	    }
+	    for (int userID : new HashSet<>(changedSongs.values())) {
+	        LibraryCache.getInstance().invalidateSongs(userID);
+	    }
+	}
+
+	/**
+	 * Restituisce i percorsi della lista usati da almeno una canzone, come file audio o come copertina
+	 * (scansione dei file orfani: una query per blocco di IN_LIST_CHUNK_SIZE percorsi)
+	 */
+	public Set<String> findReferencedPaths(List<String> relativePaths) throws SQLException {
+	    Set<String> referenced = new HashSet<>();
+	    for (int start = 0; start < relativePaths.size(); start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, relativePaths.size());
+	        String inList = placeholders(end - start);
+	        String query = "SELECT file FROM Song WHERE file IN (" + inList + ") " +
+	                "UNION SELECT albumCover FROM Song WHERE albumCover IN (" + inList + ")";
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            for (int i = start; i < end; i++) {
+	                pstatement.setString(i - start + 1, relativePaths.get(i));
+	                pstatement.setString(i - start + 1 + (end - start), relativePaths.get(i));
+	            }
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    referenced.add(result.getString(1));
+	                }
+	            }
+	        }
+	    }
+	    return referenced;
+	}
+
+	/**
+	 * Legge le colonne dei metadati audio e della playlist HLS
+	 * (possono essere NULL per le canzoni caricate prima dell'analisi o non ancora segmentate)
+	 */
+	static void mapAudioMetadata(ResultSet result, Song song) throws SQLException {
+	    song.setDurationMs(result.getObject("durationMs", Integer.class));
+	    song.setBitrate(result.getObject("bitrate", Integer.class));
+	    song.setSampleRate(result.getObject("sampleRate", Integer.class));
+	    song.setChannels(result.getObject("channels", Integer.class));
+	    song.setCodec(result.getString("codec"));
+	    song.setHlsPlaylistPath(result.getString("hlsPlaylist"));
+	}
 }
@@ -0,0 +1,68 @@
+package it.polimi.tiw.projects.listeners;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.UnavailableException;
+import jakarta.servlet.annotation.WebListener;
+
+import it.polimi.tiw.projects.utils.ConnectionHandler;
+import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.GenreCatalog;
+import it.polimi.tiw.projects.utils.JobQueue;
+import it.polimi.tiw.projects.utils.MediaJobs;
+import it.polimi.tiw.projects.utils.MediaProcessingExecutor;
+import it.polimi.tiw.projects.utils.StorageSweeper;
+import it.polimi.tiw.projects.utils.Templates;
+
+/**
+ * Gestisce le risorse condivise dalla webapp (motore dei template, pool di connessioni, catalogo dei generi,
+ * pool per l'elaborazione dei file multimediali, coda dei lavori in background, eliminazione dei file)
+ */
+@WebListener
+public class AppContextListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        // Crea il motore dei template condiviso e analizza subito le pagine principali
+        Templates.warmUp(Templates.initialize(sce.getServletContext()));
+        
+        // Carica il catalogo dei generi; se il database non è raggiungibile
+        // verrà caricato alla prima richiesta che ne ha bisogno
+        try (Connection connection = ConnectionHandler.getConnection(sce.getServletContext())) {
+            GenreCatalog.reload(connection);
+        } catch (UnavailableException | SQLException e) {
+            System.err.println("Genre catalog not loaded at startup: " + e.getMessage());
+        }
+        
+        // Avvia la coda dei lavori in background (miniature, forme d'onda, segmenti HLS) e l'eliminazione dei file;
+        // se storage o database non sono disponibili lavori e file restano nel database fino al prossimo avvio
+        try {
+            FileStorageManager.initialize(sce.getServletContext());
+            DataSource dataSource = ConnectionHandler.getDataSource(sce.getServletContext());
+            MediaJobs.register(dataSource);
+            JobQueue.start(dataSource, sce.getServletContext().getContextPath());
+            StorageSweeper.start(dataSource);
+        } catch (UnavailableException e) {
+            System.err.println("Job queue and storage sweeper not started: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        // Ferma i lavori in background e l'elaborazione delle miniature
+        JobQueue.shutdown();
+        StorageSweeper.shutdown();
+        MediaProcessingExecutor.shutdown();
+        
+        // Chiude le connessioni del pool condiviso
+        ConnectionHandler.shutdown();
+        
+        // Riepilogo delle durate di rendering
+        Templates.logStats();
+    }
+}
@@ -0,0 +1,520 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Legge le intestazioni dei contenitori audio (MP3, WAV, OGG, M4A) senza librerie esterne
+ * e ne ricava durata, bitrate, frequenza di campionamento, canali e codec.
+ * Vengono letti solo gli header (pochi KB, più la coda del file per OGG): il file non viene decodificato.
+ * Se la struttura del contenitore non è valida parse restituisce null.
+ */
+public final class AudioMetadataParser {
+    // Distanza massima dall'inizio dell'audio entro cui cercare il primo frame MP3
+    private static final int MP3_SYNC_SEARCH_LIMIT = 64 * 1024;
+    // Porzione finale del file in cui cercare l'ultima pagina Ogg
+    private static final int OGG_TAIL_SIZE = 64 * 1024;
+    // Profondità massima degli atom MP4 visitati
+    private static final int MP4_MAX_DEPTH = 8;
+
+    // Bitrate in kbps per [versione MPEG1 / MPEG2-2.5][layer I, II, III][indice]
+    private static final int[][][] MP3_BITRATES = {
+        {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+        },
+        {
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+        }
+    };
+    // Frequenze di campionamento MPEG1; MPEG2 e 2.5 le dividono per 2 e per 4
+    private static final int[] MP3_SAMPLE_RATES = {44100, 48000, 32000};
+
+    /**
+     * Caratteristiche tecniche di un file audio; i valori non ricavabili sono null
+     */
+    public static final class AudioMetadata {
+        private final Long durationMs;
+        private final Integer bitrate;
+        private final Integer sampleRate;
+        private final Integer channels;
+        private final String codec;
+
+        AudioMetadata(Long durationMs, Integer bitrate, Integer sampleRate, Integer channels, String codec) {
+            this.durationMs = durationMs;
+            this.bitrate = bitrate;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.codec = codec;
+        }
+
+        public Long getDurationMs() {
+            return durationMs;
+        }
+
+        /**
+         * Bitrate medio in kbps
+         */
+        public Integer getBitrate() {
+            return bitrate;
+        }
+
+        public Integer getSampleRate() {
+            return sampleRate;
+        }
+
+        public Integer getChannels() {
+            return channels;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+    }
+
+    private AudioMetadataParser() {
+    }
+
+    /**
+     * Analizza il file in base all'estensione (mp3, wav, ogg, m4a)
+     * @return I metadati, oppure null se il file non è un contenitore valido di quel tipo
+     */
+    public static AudioMetadata parse(Path file, String extension) throws IOException {
+        if (extension == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            switch (extension.toLowerCase()) {
+                case "mp3":
+                    return parseMp3(channel);
+                case "wav":
+                    return parseWav(channel);
+                case "ogg":
+                    return parseOgg(channel);
+                case "m4a":
+                    return parseMp4(channel);
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Formatta una durata come m:ss (h:mm:ss oltre l'ora)
+     */
+    public static String formatDuration(long durationMs) {
+        long totalSeconds = Math.round(durationMs / 1000.0);
+        long hours = totalSeconds / 3600;
+        long minutes = (totalSeconds % 3600) / 60;
+        long seconds = totalSeconds % 60;
+        return hours > 0
+                ? String.format("%d:%02d:%02d", hours, minutes, seconds)
+                : String.format("%d:%02d", minutes, seconds);
+    }
+
+    // ===== MP3 =====
+
+    private static AudioMetadata parseMp3(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        long audioStart = mp3AudioStart(channel);
+        long audioEnd = fileSize;
+        ByteBuffer id3v1 = read(channel, Math.max(0, fileSize - 128), 3);
+        if (fileSize >= 128 && id3v1.remaining() == 3
+                && id3v1.get(0) == 'T' && id3v1.get(1) == 'A' && id3v1.get(2) == 'G') {
+            audioEnd -= 128;
+        }
+
+        ByteBuffer buffer = read(channel, audioStart, MP3_SYNC_SEARCH_LIMIT + 4);
+        for (int i = 0; i + 4 <= buffer.limit(); i++) {
+            int header = buffer.getInt(i);
+            Mp3Frame frame = Mp3Frame.decode(header);
+            if (frame == null) {
+                continue;
+            }
+            // Un frame valido è seguito da un altro frame: evita falsi sync nei dati
+            int next = i + frame.length;
+            if (next + 4 <= buffer.limit() && Mp3Frame.decode(buffer.getInt(next)) == null) {
+                continue;
+            }
+            return mp3Metadata(buffer, i, frame, audioEnd - (audioStart + i));
+        }
+        return null;
+    }
+
+    /**
+     * Posizione del primo byte dopo l'eventuale tag ID3v2 iniziale
+     */
+    static long mp3AudioStart(FileChannel channel) throws IOException {
+        ByteBuffer id3 = read(channel, 0, 10);
+        if (id3.remaining() == 10 && id3.get(0) == 'I' && id3.get(1) == 'D' && id3.get(2) == '3') {
+            // Tag ID3v2: dimensione "syncsafe" (7 bit per byte), più l'eventuale footer
+            int size = ((id3.get(6) & 0x7F) << 21) | ((id3.get(7) & 0x7F) << 14)
+                    | ((id3.get(8) & 0x7F) << 7) | (id3.get(9) & 0x7F);
+            boolean footer = (id3.get(5) & 0x10) != 0;
+            return 10L + size + (footer ? 10 : 0);
+        }
+        return 0;
+    }
+
+    /**
+     * Indica se il frame che inizia a frameStart contiene un header Xing/Info/VBRI
+     * (un frame senza audio scritto dall'encoder all'inizio del file)
+     */
+    static boolean isMp3InfoFrame(ByteBuffer buffer, int frameStart, Mp3Frame frame) {
+        int xing = frameStart + 4 + mp3SideInfoSize(frame);
+        return matches(buffer, xing, "Xing") || matches(buffer, xing, "Info") || matches(buffer, frameStart + 36, "VBRI");
+    }
+
+    private static int mp3SideInfoSize(Mp3Frame frame) {
+        return frame.mpeg1 ? (frame.channels == 1 ? 17 : 32) : (frame.channels == 1 ? 9 : 17);
+    }
+
+    private static AudioMetadata mp3Metadata(ByteBuffer buffer, int frameStart, Mp3Frame frame, long audioBytes) {
+        // Header Xing/Info (VBR) dopo le side information, oppure VBRI (encoder Fraunhofer) a offset 36
+        long frames = -1;
+        int xing = frameStart + 4 + mp3SideInfoSize(frame);
+        if (matches(buffer, xing, "Xing") || matches(buffer, xing, "Info")) {
+            if (xing + 12 <= buffer.limit() && (buffer.getInt(xing + 4) & 0x1) != 0) {
+                frames = buffer.getInt(xing + 8) & 0xFFFFFFFFL;
+            }
+        } else if (matches(buffer, frameStart + 36, "VBRI") && frameStart + 36 + 18 <= buffer.limit()) {
+            frames = buffer.getInt(frameStart + 36 + 14) & 0xFFFFFFFFL;
+        }
+
+        long durationMs;
+        int bitrate;
+        if (frames > 0) {
+            durationMs = frames * frame.samplesPerFrame * 1000 / frame.sampleRate;
+            bitrate = durationMs > 0 ? (int) (audioBytes * 8 / durationMs) : frame.bitrate;
+        } else {
+            // Senza header VBR si assume bitrate costante
+            bitrate = frame.bitrate;
+            durationMs = audioBytes * 8 / bitrate;
+        }
+        String codec = frame.layer == 3 ? "mp3" : (frame.layer == 2 ? "mp2" : "mp1");
+        return new AudioMetadata(durationMs, bitrate, frame.sampleRate, frame.channels, codec);
+    }
+
+    /**
+     * Header di un frame MPEG audio (32 bit), usato anche da HlsSegmenter
+     */
+    static final class Mp3Frame {
+        boolean mpeg1;
+        int layer;
+        int bitrate;
+        int sampleRate;
+        int channels;
+        int samplesPerFrame;
+        int length;
+
+        static Mp3Frame decode(int header) {
+            if ((header & 0xFFE00000) != 0xFFE00000) {
+                return null;
+            }
+            int versionBits = (header >> 19) & 0x3;
+            int layerBits = (header >> 17) & 0x3;
+            int bitrateIndex = (header >> 12) & 0xF;
+            int sampleRateIndex = (header >> 10) & 0x3;
+            if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                return null; // Valori riservati o bitrate "free" (non gestito)
+            }
+            Mp3Frame frame = new Mp3Frame();
+            frame.mpeg1 = versionBits == 3;
+            frame.layer = 4 - layerBits;
+            frame.bitrate = MP3_BITRATES[frame.mpeg1 ? 0 : 1][frame.layer - 1][bitrateIndex];
+            int divisor = frame.mpeg1 ? 1 : (versionBits == 2 ? 2 : 4);
+            frame.sampleRate = MP3_SAMPLE_RATES[sampleRateIndex] / divisor;
+            frame.channels = ((header >> 6) & 0x3) == 3 ? 1 : 2;
+            int padding = (header >> 9) & 0x1;
+            if (frame.layer == 1) {
+                frame.samplesPerFrame = 384;
+                frame.length = (12 * frame.bitrate * 1000 / frame.sampleRate + padding) * 4;
+            } else {
+                frame.samplesPerFrame = (frame.layer == 3 && !frame.mpeg1) ? 576 : 1152;
+                frame.length = frame.samplesPerFrame / 8 * frame.bitrate * 1000 / frame.sampleRate + padding;
+            }
+            return frame.length > 4 ? frame : null;
+        }
+    }
+
+    // ===== WAV =====
+
+    private static AudioMetadata parseWav(FileChannel channel) throws IOException {
+        ByteBuffer riff = read(channel, 0, 12).order(ByteOrder.LITTLE_ENDIAN);
+        if (riff.remaining() < 12 || !matches(riff, 0, "RIFF") || !matches(riff, 8, "WAVE")) {
+            return null;
+        }
+        long fileSize = channel.size();
+        long position = 12;
+        int format = -1;
+        int channels = 0;
+        int sampleRate = 0;
+        long byteRate = 0;
+        while (position + 8 <= fileSize) {
+            ByteBuffer chunk = read(channel, position, 8).order(ByteOrder.LITTLE_ENDIAN);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            if (matches(chunk, 0, "fmt ")) {
+                ByteBuffer fmt = read(channel, position + 8, 16).order(ByteOrder.LITTLE_ENDIAN);
+                if (fmt.remaining() < 16) {
+                    return null;
+                }
+                format = fmt.getShort(0) & 0xFFFF;
+                channels = fmt.getShort(2) & 0xFFFF;
+                sampleRate = fmt.getInt(4);
+                byteRate = fmt.getInt(8) & 0xFFFFFFFFL;
+            } else if (matches(chunk, 0, "data")) {
+                if (format < 0 || byteRate == 0) {
+                    return null; // "data" deve seguire "fmt "
+                }
+                // Alcuni encoder in streaming lasciano la dimensione a 0xFFFFFFFF
+                long dataSize = Math.min(size, fileSize - position - 8);
+                long durationMs = dataSize * 1000 / byteRate;
+                return new AudioMetadata(durationMs, (int) (byteRate * 8 / 1000), sampleRate, channels, wavCodec(format));
+            }
+            // I chunk hanno lunghezza pari (byte di padding)
+            position += 8 + size + (size & 1);
+        }
+        return null;
+    }
+
+    private static String wavCodec(int format) {
+        switch (format) {
+            case 0x0001:
+            case 0xFFFE: // WAVE_FORMAT_EXTENSIBLE, quasi sempre PCM
+                return "pcm";
+            case 0x0003:
+                return "pcm-float";
+            case 0x0006:
+                return "alaw";
+            case 0x0007:
+                return "ulaw";
+            case 0x0055:
+                return "mp3";
+            default:
+                return "wav-" + Integer.toHexString(format);
+        }
+    }
+
+    // ===== OGG =====
+
+    private static AudioMetadata parseOgg(FileChannel channel) throws IOException {
+        ByteBuffer page = read(channel, 0, 27 + 255).order(ByteOrder.LITTLE_ENDIAN);
+        if (page.remaining() < 27 || !matches(page, 0, "OggS")) {
+            return null;
+        }
+        int segments = page.get(26) & 0xFF;
+        int packetStart = 27 + segments;
+        ByteBuffer packet = read(channel, packetStart, 32).order(ByteOrder.LITTLE_ENDIAN);
+
+        String codec;
+        Integer channels = null;
+        Integer sampleRate = null;
+        int granuleRate;
+        long preSkip = 0;
+        if (packet.remaining() >= 16 && packet.get(0) == 1 && matches(packet, 1, "vorbis")) {
+            codec = "vorbis";
+            channels = packet.get(11) & 0xFF;
+            sampleRate = packet.getInt(12);
+            granuleRate = sampleRate;
+        } else if (packet.remaining() >= 16 && matches(packet, 0, "OpusHead")) {
+            codec = "opus";
+            channels = packet.get(9) & 0xFF;
+            preSkip = packet.getShort(10) & 0xFFFF;
+            sampleRate = packet.getInt(12);
+            // La granule position Opus è sempre a 48 kHz
+            granuleRate = 48000;
+        } else if (packet.remaining() >= 5 && packet.get(0) == 0x7F && matches(packet, 1, "FLAC")) {
+            return new AudioMetadata(null, null, null, null, "flac");
+        } else {
+            return new AudioMetadata(null, null, null, null, "ogg");
+        }
+
+        long granule = lastOggGranule(channel);
+        Long durationMs = null;
+        Integer bitrate = null;
+        if (granule > preSkip && granuleRate > 0) {
+            durationMs = (granule - preSkip) * 1000 / granuleRate;
+            if (durationMs > 0) {
+                bitrate = (int) (channel.size() * 8 / durationMs);
+            }
+        }
+        return new AudioMetadata(durationMs, bitrate, sampleRate, channels, codec);
+    }
+
+    /**
+     * Granule position dell'ultima pagina: il numero di campioni alla fine dello stream
+     */
+    private static long lastOggGranule(FileChannel channel) throws IOException {
+        long tailStart = Math.max(0, channel.size() - OGG_TAIL_SIZE);
+        ByteBuffer tail = read(channel, tailStart, OGG_TAIL_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = tail.limit() - 27; i >= 0; i--) {
+            if (matches(tail, i, "OggS")) {
+                return tail.getLong(i + 6);
+            }
+        }
+        return -1;
+    }
+
+    // ===== M4A (MP4) =====
+
+    private static AudioMetadata parseMp4(FileChannel channel) throws IOException {
+        ByteBuffer ftyp = read(channel, 0, 8);
+        if (ftyp.remaining() < 8 || !matches(ftyp, 4, "ftyp")) {
+            return null;
+        }
+        Mp4Info info = new Mp4Info();
+        readAtoms(channel, 0, channel.size(), 0, info);
+        if (info.duration < 0 || info.timescale <= 0) {
+            return null; // Manca l'atom moov/mvhd
+        }
+        long durationMs = info.duration * 1000 / info.timescale;
+        Integer bitrate = durationMs > 0 ? (int) (channel.size() * 8 / durationMs) : null;
+        return new AudioMetadata(durationMs, bitrate, info.sampleRate, info.channels,
+                info.codec != null ? info.codec : "mp4");
+    }
+
+    private static final class Mp4Info {
+        long timescale = -1;
+        long duration = -1;
+        Integer sampleRate;
+        Integer channels;
+        String codec;
+    }
+
+    /**
+     * Visita gli atom in [start, end), scendendo solo nei contenitori che portano a mvhd e stsd
+     */
+    private static void readAtoms(FileChannel channel, long start, long end, int depth, Mp4Info info) throws IOException {
+        if (depth > MP4_MAX_DEPTH) {
+            return;
+        }
+        long position = start;
+        while (position + 8 <= end) {
+            ByteBuffer header = read(channel, position, 16);
+            if (header.remaining() < 8) {
+                return;
+            }
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(new byte[] {header.get(4), header.get(5), header.get(6), header.get(7)},
+                    StandardCharsets.ISO_8859_1);
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.remaining() < 16) {
+                    return;
+                }
+                size = header.getLong(8); // Dimensione a 64 bit
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position; // Fino alla fine del file
+            }
+            if (size < headerSize || position + size > end) {
+                return;
+            }
+            long body = position + headerSize;
+            switch (type) {
+                case "moov":
+                case "trak":
+                case "mdia":
+                case "minf":
+                case "stbl":
+                    readAtoms(channel, body, position + size, depth + 1, info);
+                    break;
+                case "mvhd":
+                    readMvhd(channel, body, info);
+                    break;
+                case "stsd":
+                    readStsd(channel, body, info);
+                    break;
+                default:
+                    break;
+            }
+            position += size;
+        }
+    }
+
+    private static void readMvhd(FileChannel channel, long body, Mp4Info info) throws IOException {
+        ByteBuffer mvhd = read(channel, body, 32);
+        if (mvhd.remaining() < 20) {
+            return;
+        }
+        if (mvhd.get(0) == 1) {
+            // Versione 1: date e durata a 64 bit
+            if (mvhd.remaining() < 32) {
+                return;
+            }
+            info.timescale = mvhd.getInt(20) & 0xFFFFFFFFL;
+            info.duration = mvhd.getLong(24);
+        } else {
+            info.timescale = mvhd.getInt(12) & 0xFFFFFFFFL;
+            info.duration = mvhd.getInt(16) & 0xFFFFFFFFL;
+        }
+    }
+
+    private static void readStsd(FileChannel channel, long body, Mp4Info info) throws IOException {
+        if (info.codec != null) {
+            return; // Solo la prima traccia audio
+        }
+        // version/flags (4), numero di voci (4), poi la prima sample entry
+        ByteBuffer stsd = read(channel, body, 8 + 36);
+        if (stsd.remaining() < 8 + 36) {
+            return;
+        }
+        String format = new String(new byte[] {stsd.get(12), stsd.get(13), stsd.get(14), stsd.get(15)},
+                StandardCharsets.ISO_8859_1);
+        switch (format) {
+            case "mp4a":
+                info.codec = "aac";
+                break;
+            case "alac":
+                info.codec = "alac";
+                break;
+            case "ac-3":
+                info.codec = "ac3";
+                break;
+            default:
+                return; // Traccia non audio
+        }
+        // Audio sample entry: 8 byte di header, 6 riservati, 2 data reference index, 8 riservati, poi canali e rate
+        int entry = 8;
+        info.channels = stsd.getShort(entry + 24) & 0xFFFF;
+        // Frequenza in virgola fissa 16.16
+        info.sampleRate = (stsd.getInt(entry + 32) >>> 16);
+    }
+
+    // ===== Utilità =====
+
+    /**
+     * Legge fino a length byte a partire da position (meno se il file finisce prima)
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, String ascii) {
+        if (offset < 0 || offset + ascii.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (buffer.get(offset + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,387 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Pool di connessioni JDBC limitato e thread-safe esposto come DataSource.
+ * Ogni richiesta prende in prestito una connessione e la restituisce con close():
+ * la connessione fisica torna nel pool con autocommit ripristinato.
+ */
+public class ConnectionPool implements DataSource {
+    private final String url;
+    private final Properties connectionProperties;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final int validationTimeoutSeconds;
+    private final long validationIdleMs;
+    private final long idleTimeoutMs;
+    private final long leakDetectionMs;
+
+    // I permessi limitano le connessioni in prestito; le connessioni fisiche sono al massimo maxSize
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed = false;
+
+    // Metriche
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong validationFailureCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private final AtomicLong totalAcquireNanos = new AtomicLong();
+
+    /**
+     * Crea il pool e apre subito minSize connessioni
+     * @param url L'URL JDBC
+     * @param user L'utente del database
+     * @param password La password del database
+     * @param settings Le proprietà del pool (poolMinSize, poolMaxSize, ...)
+     * @throws SQLException se non è possibile aprire le connessioni iniziali
+     */
+    public ConnectionPool(String url, String user, String password, Properties settings) throws SQLException {
+        this.url = url;
+        this.connectionProperties = new Properties();
+        this.connectionProperties.setProperty("user", user);
+        this.connectionProperties.setProperty("password", password);
+        // Permette al driver MySQL di riscrivere i batch in INSERT multi-riga
+        if (!url.contains("rewriteBatchedStatements")) {
+            this.connectionProperties.setProperty("rewriteBatchedStatements", "true");
+        }
+
+        this.maxSize = Math.max(1, intSetting(settings, "poolMaxSize", 20));
+        this.minSize = Math.min(maxSize, Math.max(0, intSetting(settings, "poolMinSize", 2)));
+        this.acquireTimeoutMs = longSetting(settings, "poolAcquireTimeoutMs", 5000);
+        this.validationTimeoutSeconds = Math.max(1, intSetting(settings, "poolValidationTimeoutSec", 2));
+        this.validationIdleMs = longSetting(settings, "poolValidationIdleMs", 500);
+        this.idleTimeoutMs = longSetting(settings, "poolIdleTimeoutMs", 10 * 60 * 1000);
+        this.leakDetectionMs = longSetting(settings, "poolLeakDetectionMs", 60 * 1000);
+        this.permits = new Semaphore(maxSize, true);
+
+        try {
+            for (int i = 0; i < minSize; i++) {
+                idle.offerLast(createConnection());
+            }
+        } catch (SQLException e) {
+            closeIdleConnections();
+            throw e;
+        }
+
+        housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, 30, 30, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLTimeoutException("Timed out after " + acquireTimeoutMs + "ms waiting for a database connection"
+                        + " (active=" + borrowed.size() + ", max=" + maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            // LIFO: le connessioni usate più di recente sono quelle che con più probabilità sono ancora valide
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    break;
+                }
+                validationFailureCount.incrementAndGet();
+                destroy(pooled);
+            }
+            if (pooled == null) {
+                pooled = createConnection();
+            }
+
+            pooled.borrowedAt = System.currentTimeMillis();
+            pooled.borrowTrace = leakDetectionMs > 0 ? new Exception("Connection borrowed here") : null;
+            pooled.leakReported = false;
+            borrowed.add(pooled);
+            borrowCount.incrementAndGet();
+            totalAcquireNanos.addAndGet(System.nanoTime() - start);
+            return pooled.newHandle();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Per-call credentials are not supported by the pool");
+    }
+
+    /**
+     * Chiude il pool: le connessioni inattive vengono chiuse subito,
+     * quelle in prestito alla loro restituzione
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        closeIdleConnections();
+    }
+
+    /**
+     * Restituisce un'istantanea delle metriche del pool
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long borrows = borrowCount.get();
+        stats.put("minSize", minSize);
+        stats.put("maxSize", maxSize);
+        stats.put("total", totalConnections.get());
+        stats.put("active", borrowed.size());
+        stats.put("idle", idle.size());
+        stats.put("waiting", permits.getQueueLength());
+        stats.put("borrowCount", borrows);
+        stats.put("createdCount", createdCount.get());
+        stats.put("destroyedCount", destroyedCount.get());
+        stats.put("timeoutCount", timeoutCount.get());
+        stats.put("validationFailureCount", validationFailureCount.get());
+        stats.put("leakCount", leakCount.get());
+        stats.put("avgAcquireMicros", borrows == 0 ? 0 : totalAcquireNanos.get() / borrows / 1000);
+        return stats;
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        Connection physical = DriverManager.getConnection(url, connectionProperties);
+        totalConnections.incrementAndGet();
+        createdCount.incrementAndGet();
+        return new PooledConnection(physical);
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        // Una connessione rilasciata da poco è quasi certamente valida: evitiamo il ping
+        if (System.currentTimeMillis() - pooled.lastReturnedAt < validationIdleMs) {
+            return true;
+        }
+        try {
+            return pooled.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        borrowed.remove(pooled);
+        boolean reusable = !closed;
+        try {
+            if (!pooled.physical.getAutoCommit()) {
+                // Una transazione lasciata aperta non deve finire nella richiesta successiva
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            pooled.physical.clearWarnings();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        if (reusable) {
+            pooled.lastReturnedAt = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        } else {
+            destroy(pooled);
+        }
+        permits.release();
+    }
+
+    private void destroy(PooledConnection pooled) {
+        totalConnections.decrementAndGet();
+        destroyedCount.incrementAndGet();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            // La connessione è comunque da scartare
+        }
+    }
+
+    private void closeIdleConnections() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            destroy(pooled);
+        }
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+
+        // Rilevamento dei leak: connessioni tenute in prestito troppo a lungo
+        if (leakDetectionMs > 0) {
+            for (PooledConnection pooled : borrowed) {
+                if (!pooled.leakReported && now - pooled.borrowedAt > leakDetectionMs) {
+                    pooled.leakReported = true;
+                    leakCount.incrementAndGet();
+                    System.err.println("Possible connection leak: connection held for " + (now - pooled.borrowedAt) + "ms");
+                    if (pooled.borrowTrace != null) {
+                        pooled.borrowTrace.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        // Chiude le connessioni inattive da troppo tempo oltre la dimensione minima
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+        while (iterator.hasNext() && totalConnections.get() > minSize) {
+            PooledConnection pooled = iterator.next();
+            if (now - pooled.lastReturnedAt > idleTimeoutMs && idle.remove(pooled)) {
+                destroy(pooled);
+            }
+        }
+    }
+
+    private static int intSetting(Properties settings, String key, int defaultValue) {
+        return (int) longSetting(settings, key, defaultValue);
+    }
+
+    private static long longSetting(Properties settings, String key, long defaultValue) {
+        String value = settings == null ? null : settings.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Connessione fisica gestita dal pool. Ad ogni prestito viene creato un nuovo proxy,
+     * così un riferimento vecchio non può usare la connessione dopo close()
+     */
+    private final class PooledConnection {
+        private final Connection physical;
+        private volatile long borrowedAt;
+        private volatile long lastReturnedAt = System.currentTimeMillis();
+        private volatile Exception borrowTrace;
+        private volatile boolean leakReported;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        private Connection newHandle() {
+            return (Connection) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class },
+                    new Handle(this));
+        }
+    }
+
+    private final class Handle implements InvocationHandler {
+        private final PooledConnection pooled;
+        private boolean returned = false;
+
+        private Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection[" + pooled.physical + "]";
+                default:
+                    if (returned) {
+                        throw new SQLException("Connection has already been returned to the pool");
+                    }
+                    try {
+                        return method.invoke(pooled.physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
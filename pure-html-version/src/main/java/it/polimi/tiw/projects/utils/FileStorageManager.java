@@ -4,14 +4,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.regex.Pattern;
 
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.UnavailableException;
@@ -22,8 +29,36 @@ public class FileStorageManager {
     private static String baseStoragePath;
     private static String coverImagesPath;
     private static String audioFilesPath;
+    // Upload in corso: sta nello stesso volume dello storage, così lo spostamento finale è atomico
+    private static String tempUploadPath;
+    // Se attivo i file sono salvati con l'hash SHA-256 del contenuto come nome (contentAddressedStorage)
+    private static boolean contentAddressed = true;
+    // Se attivo i file MP3 caricati vengono divisi in segmenti HLS (hlsSegmenting)
+    private static boolean hlsSegmenting = false;
     private static boolean initialized = false;
     
+    // Dimensione dei blocchi letti dal file durante lo streaming asincrono (streamChunkSize)
+    private static final int DEFAULT_STREAM_CHUNK_SIZE = 64 * 1024;
+    private static final int MIN_STREAM_CHUNK_SIZE = 4 * 1024;
+    private static final int MAX_STREAM_CHUNK_SIZE = 1024 * 1024;
+    private static int streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+    
+    // Nomi generati da generateUniqueFileName: UUID più estensione
+    private static final Pattern UNIQUE_FILE_NAME = Pattern.compile(
+        "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}(\\.w[0-9]+)?(\\.[A-Za-z0-9]+)?");
+    // Nomi dei blob indirizzati per contenuto: hash SHA-256 più estensione
+    private static final Pattern HASH_FILE_NAME = Pattern.compile("[0-9a-f]{64}(\\.w[0-9]+)?(\\.[A-Za-z0-9]+)?");
+    // directory/ab/cd/abcd....ext: le due sottodirectory sono i primi due byte dell'hash
+    private static final Pattern CONTENT_ADDRESSED_PATH = Pattern.compile(
+        "/?(covers|songs)/([0-9a-f]{2})/([0-9a-f]{2})/\\2\\3[0-9a-f]{60}\\.[a-z0-9]+");
+    // Playlist e segmenti HLS, nella directory <nome audio>.hls accanto al file audio
+    private static final Pattern HLS_PATH = Pattern.compile(
+        "/?songs/(?:[0-9a-f]{2}/[0-9a-f]{2}/)?([0-9a-f]{64}|[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})"
+        + "\\.hls/(index\\.m3u8|seg[0-9]{5}\\.mp3)");
+    // Blob staccati da detachBlob, in attesa di essere eliminati
+    private static final Pattern DETACHED_BLOB_NAME = Pattern.compile(
+        "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}\\.deleted");
+    
     // Directory consentite
     private static final List<String> ALLOWED_DIRS = Arrays.asList("covers", "songs");
     
@@ -90,6 +125,29 @@ public class FileStorageManager {
             new File(coverImagesPath).mkdirs();
             new File(audioFilesPath).mkdirs();
             
+            // Directory degli upload temporanei (non servita: isPathSafe non la consente)
+            tempUploadPath = baseStoragePath + File.separator + ".uploads";
+            new File(tempUploadPath).mkdirs();
+            
+            // Deduplicazione dei file per contenuto (opzionale, attiva di default)
+            contentAddressed = Boolean.parseBoolean(
+                    storageProperties.getProperty("contentAddressedStorage", "true").trim());
+            
+            // Segmentazione HLS dei file MP3 caricati (opzionale, disattivata di default)
+            hlsSegmenting = Boolean.parseBoolean(
+                    storageProperties.getProperty("hlsSegmenting", "false").trim());
+            
+            // Dimensione dei blocchi per lo streaming (opzionale)
+            String chunkSize = storageProperties.getProperty("streamChunkSize");
+            if (chunkSize != null) {
+                try {
+                    streamChunkSize = Math.max(MIN_STREAM_CHUNK_SIZE,
+                            Math.min(MAX_STREAM_CHUNK_SIZE, Integer.parseInt(chunkSize.trim())));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid streamChunkSize, using default: " + chunkSize);
+                }
+            }
+            
             initialized = true;
             
         } catch (IOException e) {
@@ -118,6 +176,27 @@ public class FileStorageManager {
         return audioFilesPath;
     }
     
+    /**
+     * Restituisce il percorso della directory degli upload temporanei e dei blob staccati
+     */
+    public static String getTempUploadPath() {
+        return tempUploadPath;
+    }
+    
+    /**
+     * Indica se i file MP3 caricati vanno divisi in segmenti HLS
+     */
+    public static boolean isHlsSegmenting() {
+        return hlsSegmenting;
+    }
+    
+    /**
+     * Restituisce la dimensione in byte dei blocchi usati per lo streaming dei file
+     */
+    public static int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+    
     /**
      * Restituisce il percorso relativo per un file di copertina
      */
@@ -151,8 +230,17 @@ public class FileStorageManager {
             return false;
         }
         
-        // Verifica struttura del percorso (deve essere directory/filename)
+        // Playlist e segmenti HLS generati dal server
+        if (HLS_PATH.matcher(cleanPath).matches()) {
+            return true;
+        }
+        
+        // Verifica struttura del percorso (deve essere directory/filename, oppure
+        // directory/ab/cd/hash.ext per i file indirizzati per contenuto)
         String[] parts = cleanPath.split("/");
+        if (parts.length == 4 && isContentAddressedPath(cleanPath)) {
+            parts = new String[] { parts[0], parts[3] };
+        }
         if (parts.length != 2) {
             return false;
         }
@@ -289,6 +377,17 @@ public class FileStorageManager {
         return validExtension && validMimeType;
     }
     
+    /**
+     * Verifica l'estensione (senza punto) per gli upload a blocchi, dove non c'è un Part
+     */
+    public static boolean isValidImageExtension(String extension) {
+        return extension != null && ALLOWED_IMAGE_EXTENSIONS.contains(extension.toLowerCase());
+    }
+    
+    public static boolean isValidAudioExtension(String extension) {
+        return extension != null && ALLOWED_AUDIO_EXTENSIONS.contains(extension.toLowerCase());
+    }
+    
     /**
      * Salva in modo sicuro un file uploadato
      * @param filePart Il file Part da salvare
@@ -298,6 +397,13 @@ public class FileStorageManager {
      * @throws SecurityException se il file non è valido o sicuro
      */
     public static String saveUploadedFile(Part filePart, String directory) throws IOException, SecurityException {
+        return storeUploadedFile(filePart, directory).getRelativePath();
+    }
+    
+    /**
+     * Come saveUploadedFile, ma restituisce anche dimensione, hash e metadati audio del file salvato
+     */
+    public static StoredFile storeUploadedFile(Part filePart, String directory) throws IOException, SecurityException {
         if (!ALLOWED_DIRS.contains(directory)) {
             throw new SecurityException("Invalid directory: " + directory);
         }
@@ -309,25 +415,287 @@ public class FileStorageManager {
             throw new SecurityException("Invalid audio file");
         }
         
-        // Genera nome file univoco
-        String uniqueFileName = generateUniqueFileName(filePart.getSubmittedFileName());
+        try (InputStream input = filePart.getInputStream()) {
+            return saveUploadedStream(input, directory, filePart.getSubmittedFileName(), MAX_FILE_SIZE);
+        }
+    }
+    
+    /**
+     * File salvato nello storage: percorso relativo, dimensione, hash SHA-256 del contenuto
+     * e, per i file audio, i metadati letti dall'header
+     */
+    public static final class StoredFile {
+        private final String relativePath;
+        private final long size;
+        private final String sha256;
+        private final AudioMetadataParser.AudioMetadata audioMetadata;
+        
+        StoredFile(String relativePath, long size, String sha256, AudioMetadataParser.AudioMetadata audioMetadata) {
+            this.relativePath = relativePath;
+            this.size = size;
+            this.sha256 = sha256;
+            this.audioMetadata = audioMetadata;
+        }
         
-        // Determina il percorso completo
-        String fullDirPath = directory.equals("covers") ? coverImagesPath : audioFilesPath;
-        File uploadDir = new File(fullDirPath);
-        if (!uploadDir.exists()) {
-            uploadDir.mkdirs();
+        public String getRelativePath() {
+            return relativePath;
         }
         
-        File targetFile = new File(uploadDir, uniqueFileName);
+        public long getSize() {
+            return size;
+        }
         
-        // Salva il file
-        try (InputStream input = filePart.getInputStream()) {
-            Files.copy(input, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        public String getSha256() {
+            return sha256;
+        }
+        
+        /**
+         * Metadati audio (null per le immagini)
+         */
+        public AudioMetadataParser.AudioMetadata getAudioMetadata() {
+            return audioMetadata;
+        }
+    }
+    
+    /**
+     * Scrive lo stream in un file temporaneo calcolandone l'hash durante la copia,
+     * poi lo sposta nella directory finale con storeTempFile
+     * @param maxSize Numero massimo di byte accettati
+     */
+    public static StoredFile saveUploadedStream(InputStream input, String directory, String originalFileName, long maxSize)
+            throws IOException, SecurityException {
+        Path tempFile = createTempUploadFile();
+        try {
+            MessageDigest digest = newSha256();
+            long size;
+            try (OutputStream output = Files.newOutputStream(tempFile)) {
+                size = copyAndHash(input, output, digest, maxSize);
+            }
+            return storeTempFile(tempFile, directory, originalFileName, size, toHex(digest.digest()));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+    
+    /**
+     * Crea un file vuoto nella directory degli upload temporanei
+     */
+    public static Path createTempUploadFile() throws IOException {
+        return Files.createTempFile(Paths.get(tempUploadPath), "upload-", ".part");
+    }
+    
+    /**
+     * Verifica il contenuto di un upload completo (magic bytes coerenti con l'estensione)
+     * e lo sposta atomicamente nella directory di destinazione. Con lo storage indirizzato
+     * per contenuto il nome è l'hash: se lo stesso contenuto è già presente il file temporaneo
+     * viene scartato e si riusa quello esistente (i riferimenti sono contati in MediaBlob).
+     */
+    public static StoredFile storeTempFile(Path tempFile, String directory, String originalFileName, long size, String sha256)
+            throws IOException, SecurityException {
+        if (!ALLOWED_DIRS.contains(directory)) {
+            throw new SecurityException("Invalid directory: " + directory);
+        }
+        String extension = getExtension(originalFileName);
+        List<String> allowed = directory.equals("covers") ? ALLOWED_IMAGE_EXTENSIONS : ALLOWED_AUDIO_EXTENSIONS;
+        if (extension == null || !allowed.contains(extension)) {
+            throw new SecurityException("File type not allowed: " + originalFileName);
+        }
+        if (!contentMatchesExtension(tempFile, extension)) {
+            throw new SecurityException("File content does not match its type: " + originalFileName);
+        }
+        // Un file audio di cui non si riesce a leggere l'header non è riproducibile
+        AudioMetadataParser.AudioMetadata audioMetadata = null;
+        if (directory.equals("songs")) {
+            audioMetadata = AudioMetadataParser.parse(tempFile, extension);
+            if (audioMetadata == null) {
+                throw new SecurityException("Unreadable audio file: " + originalFileName);
+            }
+        }
+        
+        String fullDirPath = directory.equals("covers") ? coverImagesPath : audioFilesPath;
+        if (contentAddressed && sha256 != null) {
+            String shard = sha256.substring(0, 2) + "/" + sha256.substring(2, 4);
+            String blobName = sha256 + "." + extension;
+            Path targetFile = Paths.get(fullDirPath, sha256.substring(0, 2), sha256.substring(2, 4), blobName);
+            Files.createDirectories(targetFile.getParent());
+            if (Files.exists(targetFile)) {
+                Files.delete(tempFile);
+            } else {
+                try {
+                    Files.move(tempFile, targetFile, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // Stesso contenuto salvato in parallelo da un altro upload
+                    Files.delete(tempFile);
+                }
+            }
+            return new StoredFile("/" + directory + "/" + shard + "/" + blobName, size, sha256, audioMetadata);
         }
         
-        // Ritorna il percorso relativo
-        return "/" + directory + "/" + uniqueFileName;
+        String uniqueFileName = generateUniqueFileName(originalFileName);
+        Path targetFile = Paths.get(fullDirPath, uniqueFileName);
+        Files.move(tempFile, targetFile, StandardCopyOption.ATOMIC_MOVE);
+        
+        return new StoredFile("/" + directory + "/" + uniqueFileName, size, sha256, audioMetadata);
+    }
+    
+    /**
+     * Indica se il percorso è quello di un blob indirizzato per contenuto (condivisibile tra più canzoni)
+     */
+    public static boolean isContentAddressedPath(String relativePath) {
+        return relativePath != null && CONTENT_ADDRESSED_PATH.matcher(relativePath).matches();
+    }
+    
+    /**
+     * Restituisce l'hash SHA-256 contenuto nel percorso di un blob
+     */
+    public static String getBlobHash(String relativePath) {
+        String fileName = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+        return fileName.substring(0, 64);
+    }
+    
+    /**
+     * Sposta un blob che non ha più riferimenti fuori dalla directory servita.
+     * Va chiamato mentre la riga MediaBlob è bloccata dalla transazione, così un upload
+     * concorrente dello stesso contenuto non può riusare un file che sta per essere eliminato.
+     * @return Il percorso del file spostato, null se il blob non esiste
+     */
+    public static Path detachBlob(String relativePath) throws IOException {
+        Path blob = validateAndNormalizePath(relativePath);
+        Path detached = Paths.get(tempUploadPath, UUID.randomUUID().toString() + ".deleted");
+        try {
+            Files.move(blob, detached, StandardCopyOption.ATOMIC_MOVE);
+            // I segmenti HLS seguono il blob (la colonna hlsPlaylist resta valida dopo un rollback);
+            // miniature e forma d'onda si possono rigenerare: non serve ripristinarle
+            HlsSegmenter.moveSegments(blob, detached);
+            ImageVariants.deleteVariants(blob);
+            WaveformPeaks.deletePeaks(blob);
+            return detached;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Rimette al loro posto i blob staccati con detachBlob (dopo il rollback della transazione)
+     */
+    public static void restoreDetachedBlobs(Map<String, Path> detachedBlobs) {
+        for (Map.Entry<String, Path> entry : detachedBlobs.entrySet()) {
+            try {
+                Path original = validateAndNormalizePath(entry.getKey());
+                Files.move(entry.getValue(), original, StandardCopyOption.ATOMIC_MOVE);
+                HlsSegmenter.moveSegments(entry.getValue(), original);
+            } catch (IOException | SecurityException e) {
+                System.err.println("Could not restore blob " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Elimina definitivamente un blob staccato con detachBlob, dato il nome del file staccato
+     * (lavoro accodato nella transazione che ha rilasciato l'ultimo riferimento)
+     */
+    public static void deleteDetachedBlob(String detachedName) throws IOException, SecurityException {
+        if (detachedName == null || !DETACHED_BLOB_NAME.matcher(detachedName).matches()) {
+            throw new SecurityException("Invalid detached blob name: " + detachedName);
+        }
+        Path detached = Paths.get(tempUploadPath, detachedName);
+        Files.deleteIfExists(detached);
+        HlsSegmenter.deleteSegments(detached);
+    }
+    
+    /**
+     * Copia lo stream aggiornando il digest; lancia IOException se supera maxSize byte
+     */
+    public static long copyAndHash(InputStream input, OutputStream output, MessageDigest digest, long maxSize) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            total += read;
+            if (total > maxSize) {
+                throw new IOException("File exceeds the maximum size of " + maxSize + " bytes");
+            }
+            output.write(buffer, 0, read);
+            digest.update(buffer, 0, read);
+        }
+        return total;
+    }
+    
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 è sempre disponibile nella piattaforma Java
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Restituisce l'estensione in minuscolo (senza punto), null se assente
+     */
+    public static String getExtension(String fileName) {
+        if (fileName == null) {
+            return null;
+        }
+        int dotIndex = fileName.lastIndexOf('.');
+        if (dotIndex < 0 || dotIndex == fileName.length() - 1) {
+            return null;
+        }
+        return fileName.substring(dotIndex + 1).toLowerCase();
+    }
+    
+    /**
+     * Controlla i primi byte del file (magic number): il nome e il Content-Type
+     * dichiarati dal client non bastano a garantire il tipo reale del contenuto
+     */
+    private static boolean contentMatchesExtension(Path file, String extension) throws IOException {
+        byte[] head = new byte[12];
+        int length;
+        try (InputStream input = Files.newInputStream(file)) {
+            length = input.readNBytes(head, 0, head.length);
+        }
+        switch (extension) {
+            case "jpg":
+            case "jpeg":
+                return startsWith(head, length, 0, 0xFF, 0xD8, 0xFF);
+            case "png":
+                return startsWith(head, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A);
+            case "gif":
+                return startsWith(head, length, 0, 'G', 'I', 'F', '8');
+            case "mp3":
+                // Tag ID3 oppure frame MPEG (11 bit di sincronizzazione a 1)
+                return startsWith(head, length, 0, 'I', 'D', '3')
+                        || (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xE0) == 0xE0);
+            case "wav":
+                return startsWith(head, length, 0, 'R', 'I', 'F', 'F') && startsWith(head, length, 8, 'W', 'A', 'V', 'E');
+            case "ogg":
+                return startsWith(head, length, 0, 'O', 'g', 'g', 'S');
+            case "m4a":
+                return startsWith(head, length, 4, 'f', 't', 'y', 'p');
+            default:
+                return false;
+        }
+    }
+    
+    private static boolean startsWith(byte[] data, int length, int offset, int... expected) {
+        if (length < offset + expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if ((data[offset + i] & 0xFF) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
     }
     
     /**
@@ -351,8 +719,11 @@ public class FileStorageManager {
                 throw new SecurityException("Target is not a regular file");
             }
             
-            // Elimina il file
+            // Elimina il file e i file derivati (miniature, forma d'onda)
             boolean deleted = targetFile.delete();
+            ImageVariants.deleteVariants(targetPath);
+            WaveformPeaks.deletePeaks(targetPath);
+            HlsSegmenter.deleteSegments(targetPath);
             return deleted;
             
         } catch (SecurityException e) {
@@ -397,16 +768,40 @@ public class FileStorageManager {
         return UUID.randomUUID().toString() + extension;
     }
     
+    /**
+     * Indica se il nome è stato generato da generateUniqueFileName o è l'hash del contenuto:
+     * un file con questo nome non viene mai sovrascritto, quindi il suo contenuto può essere messo in cache senza scadenza
+     */
+    public static boolean isImmutableFileName(String fileName) {
+        return fileName != null
+                && (UNIQUE_FILE_NAME.matcher(fileName).matches() || HASH_FILE_NAME.matcher(fileName).matches());
+    }
+    
+    /**
+     * Come isImmutableFileName, ma considera anche i file HLS: la directory dei segmenti
+     * viene pubblicata già completa e non cambia più, come il file audio da cui deriva
+     */
+    public static boolean isImmutableFile(File file) {
+        if (isImmutableFileName(file.getName())) {
+            return true;
+        }
+        File parent = file.getParentFile();
+        String parentName = parent != null ? parent.getName() : "";
+        return parentName.endsWith(".hls")
+                && isImmutableFileName(parentName.substring(0, parentName.length() - ".hls".length()));
+    }
+    
     /**
      * Elimina uno o più file in modo sicuro (best effort, non lancia eccezioni)
-     * Utile per cleanup in caso di errori
+     * Utile per cleanup in caso di errori. I blob indirizzati per contenuto vengono ignorati:
+     * possono essere condivisi e si eliminano solo quando MediaBlob non ha più riferimenti.
      * @param relativePaths I percorsi relativi dei file da eliminare
      */
     public static void cleanupFiles(String... relativePaths) {
         if (relativePaths == null) return;
         
         for (String path : relativePaths) {
-            if (path != null && !path.isEmpty()) {
+            if (path != null && !path.isEmpty() && !isContentAddressedPath(path)) {
                 try {
                     deleteFileSecurely(path);
                 } catch (Exception e) {
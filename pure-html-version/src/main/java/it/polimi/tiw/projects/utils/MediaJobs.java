@@ -0,0 +1,85 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import it.polimi.tiw.projects.dao.JobDAO;
+import it.polimi.tiw.projects.dao.SongDAO;
+
+/**
+ * Lavori in background sui file multimediali, eseguiti dalla JobQueue.
+ * Il payload è il percorso relativo del file. L'eliminazione dei file non è un lavoro della coda:
+ * se ne occupa StorageSweeper a partire dalla tabella FileTombstone.
+ */
+public final class MediaJobs {
+    public static final String THUMBNAILS = "thumbnails";
+    public static final String WAVEFORM = "waveform";
+    public static final String HLS = "hls";
+
+    private MediaJobs() {
+    }
+
+    /**
+     * Registra i gestori nella JobQueue. Decodifica e segmentazione usano la CPU: un lavoro alla volta per tipo.
+     */
+    public static void register(DataSource dataSource) {
+        JobQueue.register(THUMBNAILS, 1, 3, path -> {
+            File cover = existingFile(path);
+            if (cover != null) {
+                ImageVariants.createAll(cover);
+            }
+        });
+        JobQueue.register(WAVEFORM, 1, 3, path -> {
+            File audio = existingFile(path);
+            if (audio != null) {
+                WaveformPeaks.create(audio);
+            }
+        });
+        JobQueue.register(HLS, 1, 3, path -> {
+            File audio = existingFile(path);
+            if (audio == null) {
+                return;
+            }
+            HlsSegmenter.segment(audio);
+            // Con lo storage indirizzato per contenuto il file può essere condiviso da più canzoni
+            try (Connection connection = dataSource.getConnection()) {
+                new SongDAO(connection).setHlsPlaylist(path, HlsSegmenter.playlistPath(path));
+            }
+        });
+    }
+
+    /**
+     * Accoda i file derivati di una canzone appena inserita: miniature della copertina,
+     * forma d'onda e segmenti HLS quando il formato li consente. Va chiamato nella transazione dell'inserimento.
+     */
+    public static void enqueueDerivedFiles(Connection connection, String audioPath, String coverPath) throws SQLException {
+        JobDAO jobDAO = new JobDAO(connection);
+        if (coverPath != null && !coverPath.isEmpty()) {
+            jobDAO.enqueue(THUMBNAILS, coverPath);
+        }
+        if (audioPath != null && !audioPath.isEmpty()) {
+            File audio = new File(audioPath);
+            if (WaveformPeaks.isSupported(audio)) {
+                jobDAO.enqueue(WAVEFORM, audioPath);
+            }
+            if (FileStorageManager.isHlsSegmenting() && HlsSegmenter.isSupported(audio)) {
+                jobDAO.enqueue(HLS, audioPath);
+            }
+        }
+    }
+
+    /**
+     * Il file su cui lavorare, null se nel frattempo è stato eliminato (il lavoro non ha più senso)
+     */
+    private static File existingFile(String relativePath) {
+        try {
+            return FileStorageManager.getFileSecurely(relativePath);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+}
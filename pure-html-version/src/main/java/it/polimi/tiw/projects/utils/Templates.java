@@ -0,0 +1,157 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.servlet.ServletContext;
+
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.exceptions.TemplateEngineException;
+import org.thymeleaf.exceptions.TemplateInputException;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.WebApplicationTemplateResolver;
+import org.thymeleaf.web.servlet.JakartaServletWebApplication;
+
+/**
+ * TemplateEngine unico della webapp, creato da AppContextListener e condiviso da tutte le servlet.
+ * I template analizzati restano nella cache del motore: senza il parametro di contesto templateCacheTTLMs
+ * non scadono mai, con il parametro vengono riletti dal disco dopo il TTL indicato (utile in sviluppo).
+ * Raccoglie anche la durata dei rendering per template, riepilogata allo spegnimento.
+ */
+public final class Templates {
+    // Attributi del ServletContext con il motore e la JakartaServletWebApplication condivisa
+    public static final String ENGINE_ATTRIBUTE = "it.polimi.tiw.projects.templateEngine";
+    public static final String WEB_APPLICATION_ATTRIBUTE = "it.polimi.tiw.projects.webApplication";
+    // Parametro di contesto (web.xml): dopo quanti millisecondi un template in cache viene riletto
+    private static final String CACHE_TTL_PARAM = "templateCacheTTLMs";
+    // Pagine più richieste, analizzate all'avvio così che anche la prima richiesta trovi il template in cache
+    private static final String[] WARM_UP_TEMPLATES = {
+        "/WEB-INF/Home.html", "/WEB-INF/PlaylistPage.html", "/WEB-INF/PlayerPage.html"
+    };
+    // Rendering più lenti di questa soglia vengono segnalati nel log
+    private static final long SLOW_RENDER_MS = 200;
+
+    private static final class RenderStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+    }
+
+    private static final Map<String, RenderStats> stats = new ConcurrentHashMap<>();
+
+    private Templates() {
+    }
+
+    /**
+     * Crea il motore condiviso e lo registra nel ServletContext
+     */
+    public static synchronized TemplateEngine initialize(ServletContext context) {
+        TemplateEngine existing = (TemplateEngine) context.getAttribute(ENGINE_ATTRIBUTE);
+        if (existing != null) {
+            return existing;
+        }
+        JakartaServletWebApplication webApplication = JakartaServletWebApplication.buildApplication(context);
+        WebApplicationTemplateResolver templateResolver = new WebApplicationTemplateResolver(webApplication);
+        templateResolver.setTemplateMode(TemplateMode.HTML);
+        templateResolver.setSuffix(".html");
+        templateResolver.setCacheable(true);
+        Long cacheTTLMs = parseCacheTTL(context.getInitParameter(CACHE_TTL_PARAM));
+        if (cacheTTLMs != null) {
+            templateResolver.setCacheTTLMs(cacheTTLMs);
+        }
+
+        TemplateEngine engine = new TemplateEngine();
+        engine.setTemplateResolver(templateResolver);
+        context.setAttribute(WEB_APPLICATION_ATTRIBUTE, webApplication);
+        context.setAttribute(ENGINE_ATTRIBUTE, engine);
+        return engine;
+    }
+
+    /**
+     * Il motore condiviso (creato qui se il listener non l'ha ancora fatto)
+     */
+    public static TemplateEngine getEngine(ServletContext context) {
+        TemplateEngine engine = (TemplateEngine) context.getAttribute(ENGINE_ATTRIBUTE);
+        return engine != null ? engine : initialize(context);
+    }
+
+    /**
+     * La JakartaServletWebApplication condivisa, da cui si crea l'exchange di ogni richiesta
+     */
+    public static JakartaServletWebApplication getWebApplication(ServletContext context) {
+        JakartaServletWebApplication webApplication = (JakartaServletWebApplication) context.getAttribute(WEB_APPLICATION_ATTRIBUTE);
+        if (webApplication == null) {
+            initialize(context);
+            webApplication = (JakartaServletWebApplication) context.getAttribute(WEB_APPLICATION_ATTRIBUTE);
+        }
+        return webApplication;
+    }
+
+    /**
+     * Porta in cache i template delle pagine principali.
+     * Senza una richiesta il rendering fallisce alle espressioni che usano l'exchange (link, sessione),
+     * ma il template viene messo in cache appena analizzato, prima di essere elaborato: l'errore si ignora.
+     */
+    public static void warmUp(TemplateEngine engine) {
+        long start = System.nanoTime();
+        for (String template : WARM_UP_TEMPLATES) {
+            try {
+                engine.process(template, new Context(), Writer.nullWriter());
+            } catch (TemplateInputException e) {
+                // Template mancante o non analizzabile: verrà segnalato anche alla prima richiesta
+                System.err.println("Template " + template + " not warmed up: " + e.getMessage());
+            } catch (TemplateEngineException e) {
+                // Atteso: il template è già in cache
+            }
+        }
+        System.err.println("Templates warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Registra la durata di un rendering, segnalando quelli più lenti di SLOW_RENDER_MS
+     */
+    public static void recordRender(String template, long nanos) {
+        RenderStats templateStats = stats.computeIfAbsent(template, t -> new RenderStats());
+        templateStats.count.increment();
+        templateStats.totalNanos.add(nanos);
+        templateStats.maxNanos.accumulateAndGet(nanos, Math::max);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis >= SLOW_RENDER_MS) {
+            System.err.println("Slow render of " + template + ": " + millis + " ms");
+        }
+    }
+
+    /**
+     * Scrive nel log numero, durata media e massima dei rendering di ogni template
+     */
+    public static void logStats() {
+        for (Map.Entry<String, RenderStats> entry : new TreeMap<>(stats).entrySet()) {
+            RenderStats templateStats = entry.getValue();
+            long count = templateStats.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            System.err.printf("Template %s: %d renders, avg %.2f ms, max %.2f ms%n", entry.getKey(), count,
+                    templateStats.totalNanos.sum() / (count * 1_000_000.0), templateStats.maxNanos.get() / 1_000_000.0);
+        }
+    }
+
+    private static Long parseCacheTTL(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            long ttl = Long.parseLong(value.trim());
+            return ttl > 0 ? ttl : null;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid " + CACHE_TTL_PARAM + ": " + value);
+            return null;
+        }
+    }
+}
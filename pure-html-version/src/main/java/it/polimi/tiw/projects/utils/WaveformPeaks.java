@@ -0,0 +1,238 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Forma d'onda precalcolata delle canzoni: il file audio viene decodificato una sola volta
+ * (da un lavoro della JobQueue dopo l'upload, o sul MediaProcessingExecutor se manca quando
+ * viene richiesta) e ridotto a PEAK_COUNT coppie (minimo, massimo), salvate in un
+ * piccolo file binario accanto all'audio (es. songs/ab/cd/hash.wav -> songs/ab/cd/hash.peaks).
+ * Formato: "PEAK", versione (1 byte), bit per campione (1 byte), numero di coppie (2 byte big-endian),
+ * poi le coppie come byte con segno (-127..127).
+ * La decodifica usa javax.sound.sampled, che nel JDK legge solo WAV (e AIFF/AU): per gli altri
+ * formati la forma d'onda non è disponibile.
+ */
+public final class WaveformPeaks {
+    // Numero massimo di coppie per canzone: basta per una barra larga fino a 1000px
+    public static final int PEAK_COUNT = 1000;
+    private static final byte[] MAGIC = {'P', 'E', 'A', 'K'};
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final String EXTENSION = "peaks";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Forme d'onda in generazione, per non accodare due volte lo stesso lavoro
+    private static final Map<Path, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    private WaveformPeaks() {
+    }
+
+    /**
+     * Indica se dal file audio si può ricavare la forma d'onda
+     */
+    public static boolean isSupported(File audio) {
+        return audio.getName().toLowerCase(Locale.ROOT).endsWith(".wav");
+    }
+
+    /**
+     * Restituisce il file delle coppie di picchi (che può non esistere ancora)
+     */
+    public static File peaksFile(File audio) {
+        String name = audio.getName();
+        int dotIndex = name.lastIndexOf('.');
+        String baseName = dotIndex > 0 ? name.substring(0, dotIndex) : name;
+        return new File(audio.getParentFile(), baseName + "." + EXTENSION);
+    }
+
+    /**
+     * Accoda il calcolo della forma d'onda, se non esiste già
+     */
+    public static CompletableFuture<Void> generate(File audio) {
+        if (!isSupported(audio)) {
+            return CompletableFuture.failedFuture(new UnsupportedAudioFileException(audio.getName()));
+        }
+        File peaks = peaksFile(audio);
+        if (peaks.isFile()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Path key = peaks.toPath();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> existing = pending.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            MediaProcessingExecutor.get().execute(() -> {
+                try {
+                    createPeaks(audio, peaks);
+                    future.complete(null);
+                } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+                    System.err.println("Waveform generation failed for " + audio.getName() + ": " + e.getMessage());
+                    future.completeExceptionally(e);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Calcola la forma d'onda, se non esiste già (lavoro eseguito dalla JobQueue)
+     */
+    public static void create(File audio) throws IOException {
+        File peaks = peaksFile(audio);
+        if (peaks.isFile()) {
+            return;
+        }
+        try {
+            createPeaks(audio, peaks);
+        } catch (UnsupportedAudioFileException e) {
+            throw new IOException("Unsupported audio format: " + audio.getName(), e);
+        }
+    }
+
+    /**
+     * Elimina la forma d'onda di un file audio (chiamato quando l'audio viene rimosso)
+     */
+    public static void deletePeaks(Path audio) {
+        try {
+            Files.deleteIfExists(peaksFile(audio.toFile()).toPath());
+        } catch (IOException e) {
+            System.err.println("Could not delete waveform of " + audio.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Legge le coppie di picchi da un file generato da questa classe
+     * @return minimo e massimo alternati, 2 valori per coppia
+     * @throws IOException se il file non ha il formato atteso
+     */
+    public static byte[] readPeaks(File peaks) throws IOException {
+        byte[] content = Files.readAllBytes(peaks.toPath());
+        if (content.length < HEADER_SIZE || content[0] != MAGIC[0] || content[1] != MAGIC[1]
+                || content[2] != MAGIC[2] || content[3] != MAGIC[3] || content[4] != FORMAT_VERSION) {
+            throw new IOException("Invalid waveform file: " + peaks.getName());
+        }
+        int count = ((content[6] & 0xFF) << 8) | (content[7] & 0xFF);
+        if (content.length != HEADER_SIZE + 2 * count) {
+            throw new IOException("Truncated waveform file: " + peaks.getName());
+        }
+        byte[] values = new byte[2 * count];
+        System.arraycopy(content, HEADER_SIZE, values, 0, values.length);
+        return values;
+    }
+
+    private static void createPeaks(File audio, File peaks) throws IOException, UnsupportedAudioFileException {
+        byte[] values = computePeaks(audio);
+        Path temp = Files.createTempFile(peaks.toPath().getParent(), ".peaks-", ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                output.write(MAGIC);
+                output.writeByte(FORMAT_VERSION);
+                output.writeByte(8);
+                output.writeShort(values.length / 2);
+                output.write(values);
+            }
+            // Spostamento atomico: chi legge non vede mai un file scritto a metà
+            Files.move(temp, peaks.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Decodifica l'audio in PCM 16 bit e per ogni gruppo di frame tiene il campione minimo
+     * e massimo su tutti i canali, ridotti a 8 bit
+     */
+    private static byte[] computePeaks(File audio) throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream source = AudioSystem.getAudioInputStream(audio)) {
+            AudioFormat format = source.getFormat();
+            long frames = source.getFrameLength();
+            if (frames <= 0) {
+                throw new IOException("Unknown audio length");
+            }
+            int channels = format.getChannels();
+            AudioFormat pcm16 = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+                    channels, channels * 2, format.getSampleRate(), false);
+            try (AudioInputStream pcm = format.matches(pcm16) ? source : AudioSystem.getAudioInputStream(pcm16, source)) {
+                return reduce(pcm, frames, channels);
+            }
+        }
+    }
+
+    private static byte[] reduce(InputStream pcm, long frames, int channels) throws IOException {
+        long framesPerPeak = Math.max(1, (frames + PEAK_COUNT - 1) / PEAK_COUNT);
+        int count = (int) ((frames + framesPerPeak - 1) / framesPerPeak);
+        byte[] values = new byte[2 * count];
+
+        int frameSize = channels * 2;
+        byte[] buffer = new byte[READ_BUFFER_SIZE / frameSize * frameSize];
+        int buffered = 0;
+        long frameIndex = 0;
+        int peakIndex = 0;
+        int min = 0;
+        int max = 0;
+        int read;
+        while (peakIndex < count && (read = pcm.read(buffer, buffered, buffer.length - buffered)) > 0) {
+            buffered += read;
+            int complete = buffered / frameSize * frameSize;
+            for (int offset = 0; offset < complete && peakIndex < count; offset += frameSize) {
+                for (int channel = 0; channel < channels; channel++) {
+                    int index = offset + channel * 2;
+                    int sample = (short) ((buffer[index] & 0xFF) | (buffer[index + 1] << 8));
+                    min = Math.min(min, sample);
+                    max = Math.max(max, sample);
+                }
+                frameIndex++;
+                if (frameIndex % framesPerPeak == 0 || frameIndex == frames) {
+                    values[2 * peakIndex] = toByte(min);
+                    values[2 * peakIndex + 1] = toByte(max);
+                    peakIndex++;
+                    min = 0;
+                    max = 0;
+                }
+            }
+            // I byte di un frame incompleto restano all'inizio del buffer per la lettura successiva
+            System.arraycopy(buffer, complete, buffer, 0, buffered - complete);
+            buffered -= complete;
+        }
+        if (peakIndex < count) {
+            // File più corto di quanto dichiarato nell'header: si chiude l'ultimo gruppo
+            if (min != 0 || max != 0) {
+                values[2 * peakIndex] = toByte(min);
+                values[2 * peakIndex + 1] = toByte(max);
+                peakIndex++;
+            }
+            byte[] truncated = new byte[2 * peakIndex];
+            System.arraycopy(values, 0, truncated, 0, truncated.length);
+            return truncated;
+        }
+        return values;
+    }
+
+    // Da 16 a 8 bit con segno, simmetrico (-127..127)
+    private static byte toByte(int sample) {
+        return (byte) Math.max(-127, Math.min(127, Math.round(sample / 256f)));
+    }
+}
@@ -0,0 +1,97 @@
+package it.polimi.tiw.projects.beans;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Changes to a user's library after the version known by the client (see ChangeLogDAO.getDeltaSince)
+ */
+public class LibraryDelta {
+	private long version;
+	// True when the changes are not available: the client must load the whole library again
+	private boolean reset;
+	private List<Song> songs = new ArrayList<>();
+	private List<Integer> deletedSongIDs = new ArrayList<>();
+	private List<Playlist> playlists = new ArrayList<>();
+	private List<Integer> deletedPlaylistIDs = new ArrayList<>();
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public boolean isReset() {
+		return reset;
+	}
+
+	public void setReset(boolean reset) {
+		this.reset = reset;
+	}
+
+	public List<Song> getSongs() {
+		return songs;
+	}
+
+	public void setSongs(List<Song> songs) {
+		this.songs = songs;
+	}
+
+	public List<Integer> getDeletedSongIDs() {
+		return deletedSongIDs;
+	}
+
+	public void setDeletedSongIDs(List<Integer> deletedSongIDs) {
+		this.deletedSongIDs = deletedSongIDs;
+	}
+
+	public List<Playlist> getPlaylists() {
+		return playlists;
+	}
+
+	public void setPlaylists(List<Playlist> playlists) {
+		this.playlists = playlists;
+	}
+
+	public List<Integer> getDeletedPlaylistIDs() {
+		return deletedPlaylistIDs;
+	}
+
+	public void setDeletedPlaylistIDs(List<Integer> deletedPlaylistIDs) {
+		this.deletedPlaylistIDs = deletedPlaylistIDs;
+	}
+
+	public void writeJSON(JsonWriter out) throws IOException {
+		out.beginObject();
+		out.name("cursor").value(version);
+		out.name("reset").value(reset);
+		if (!reset) {
+			out.name("songs").beginArray();
+			for (Song song : songs) {
+				song.writeJSON(out);
+			}
+			out.endArray();
+			writeIDs(out, "deletedSongIDs", deletedSongIDs);
+			out.name("playlists").beginArray();
+			for (Playlist playlist : playlists) {
+				playlist.writeJSON(out);
+			}
+			out.endArray();
+			writeIDs(out, "deletedPlaylistIDs", deletedPlaylistIDs);
+		}
+		out.endObject();
+	}
+
+	private static void writeIDs(JsonWriter out, String name, List<Integer> ids) throws IOException {
+		out.name(name).beginArray();
+		for (Integer id : ids) {
+			out.value(id);
+		}
+		out.endArray();
+	}
+}
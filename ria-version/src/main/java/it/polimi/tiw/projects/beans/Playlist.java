@@ -1,13 +1,15 @@
 package it.polimi.tiw.projects.beans;
 
+import java.io.IOException;
 import java.sql.Date;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import com.google.gson.stream.JsonWriter;
+
 public class Playlist {
 	private int ID;
 	private int userID;
@@ -66,8 +68,8 @@ public class Playlist {
 		jsonPlaylist.put("userID", userID);
 		jsonPlaylist.put("name", name);
 		if (creationDate != null) {
-            // Using ISO 8601 format "yyyy-MM-dd" for date
-			jsonPlaylist.put("creationDate", new SimpleDateFormat("yyyy-MM-dd").format(creationDate));
+            // java.sql.Date.toString() is already ISO 8601 "yyyy-MM-dd"
+			jsonPlaylist.put("creationDate", creationDate.toString());
 		} else {
 			jsonPlaylist.put("creationDate", null);
 		}
@@ -85,4 +87,37 @@ public class Playlist {
         }
 		return jsonPlaylist;
 	}
+
+	/**
+	 * Writes the same object as toJSON() directly to the writer, without building the maps
+	 */
+	public void writeJSON(JsonWriter out) throws IOException {
+		out.beginObject();
+		writeJSONFields(out);
+		out.endObject();
+	}
+
+	/**
+	 * Writes the playlist fields into an object already opened by the caller, which can add its own fields
+	 */
+	public void writeJSONFields(JsonWriter out) throws IOException {
+		out.name("ID").value(ID);
+		out.name("userID").value(userID);
+		out.name("name").value(name);
+		out.name("creationDate").value(creationDate != null ? creationDate.toString() : null);
+		out.name("songs").beginArray();
+		if (songs != null) {
+			for (Song song : songs) {
+				song.writeJSON(out);
+			}
+		}
+		out.endArray();
+		if (customSongOrder != null) {
+			out.name("customSongOrder").beginArray();
+			for (Integer songId : customSongOrder) {
+				out.value(songId);
+			}
+			out.endArray();
+		}
+	}
 }
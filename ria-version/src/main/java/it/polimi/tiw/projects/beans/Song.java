@@ -1,8 +1,11 @@
 package it.polimi.tiw.projects.beans;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.google.gson.stream.JsonWriter;
+
 public class Song {
 	private int ID;
 	private int userID;
@@ -13,6 +16,12 @@ public class Song {
     private String genre;
     private String albumCoverPath;
     private String audioFilePath;
+    private Integer durationMs;
+    private Integer bitrate;
+    private Integer sampleRate;
+    private Integer channels;
+    private String codec;
+    private String hlsPlaylistPath;
 
     public int getID() {
         return ID;
@@ -78,6 +87,48 @@ public class Song {
 		this.audioFilePath = audioFilePath;
 	}
 
+	public Integer getDurationMs() {
+		return durationMs;
+	}
+	public void setDurationMs(Integer durationMs) {
+		this.durationMs = durationMs;
+	}
+
+	public Integer getBitrate() {
+		return bitrate;
+	}
+	public void setBitrate(Integer bitrate) {
+		this.bitrate = bitrate;
+	}
+
+	public Integer getSampleRate() {
+		return sampleRate;
+	}
+	public void setSampleRate(Integer sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public Integer getChannels() {
+		return channels;
+	}
+	public void setChannels(Integer channels) {
+		this.channels = channels;
+	}
+
+	public String getCodec() {
+		return codec;
+	}
+	public void setCodec(String codec) {
+		this.codec = codec;
+	}
+
+	public String getHlsPlaylistPath() {
+		return hlsPlaylistPath;
+	}
+	public void setHlsPlaylistPath(String hlsPlaylistPath) {
+		this.hlsPlaylistPath = hlsPlaylistPath;
+	}
+
 	public Map<String, Object> toJSON() {
 		Map<String, Object> jsonSong = new HashMap<>();
 		jsonSong.put("ID", ID);
@@ -89,6 +140,35 @@ public class Song {
 		jsonSong.put("genre", genre);
 		jsonSong.put("albumCoverPath", albumCoverPath);
 		jsonSong.put("audioFilePath", audioFilePath);
+		jsonSong.put("durationMs", durationMs);
+		jsonSong.put("bitrate", bitrate);
+		jsonSong.put("sampleRate", sampleRate);
+		jsonSong.put("channels", channels);
+		jsonSong.put("codec", codec);
+		jsonSong.put("hlsPlaylistPath", hlsPlaylistPath);
 		return jsonSong;
 	}
+
+	/**
+	 * Writes the same object as toJSON() directly to the writer, without building the map
+	 */
+	public void writeJSON(JsonWriter out) throws IOException {
+		out.beginObject();
+		out.name("ID").value(ID);
+		out.name("userID").value(userID);
+		out.name("name").value(name);
+		out.name("albumName").value(albumName);
+		out.name("artistName").value(artistName);
+		out.name("albumReleaseYear").value(albumReleaseYear);
+		out.name("genre").value(genre);
+		out.name("albumCoverPath").value(albumCoverPath);
+		out.name("audioFilePath").value(audioFilePath);
+		out.name("durationMs").value(durationMs);
+		out.name("bitrate").value(bitrate);
+		out.name("sampleRate").value(sampleRate);
+		out.name("channels").value(channels);
+		out.name("codec").value(codec);
+		out.name("hlsPlaylistPath").value(hlsPlaylistPath);
+		out.endObject();
+	}
 }
@@ -12,11 +12,12 @@ import jakarta.servlet.http.HttpSession;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
 
 import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.ImageVariants;
+import it.polimi.tiw.projects.utils.MediaResponseWriter;
 
-@WebServlet(urlPatterns = {"/GetFile/*", "/GetImage/*", "/GetAudio/*"})
+@WebServlet(urlPatterns = {"/GetFile/*", "/GetImage/*", "/GetAudio/*"}, asyncSupported = true)
 public class FileServingServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     
@@ -48,8 +49,24 @@ public class FileServingServlet extends HttpServlet {
             // Ottieni il file in modo sicuro - FileStorageManager gestisce tutte le validazioni
             File file = FileStorageManager.getFileSecurely(pathInfo);
             
-            // Determina il content type
-            String contentType = getServletContext().getMimeType(file.getName());
+            // Miniatura della copertina (?size=): se non esiste ancora viene generata in background
+            boolean variantPending = false;
+            Integer size = pathInfo.startsWith("/covers/") ? ImageVariants.resolveSize(request.getParameter("size")) : null;
+            if (size != null) {
+                File variant = ImageVariants.variantFile(file, size);
+                if (variant.isFile()) {
+                    file = variant;
+                } else if (ImageVariants.dispatchWhenReady(request, file, size)) {
+                    return;
+                } else {
+                    // Miniatura non disponibile (pool pieno o errore): si invia l'originale senza cache lunga
+                    variantPending = true;
+                }
+            }
+            
+            // Determina il content type (le playlist HLS non sono nei MIME type predefiniti di Tomcat)
+            String contentType = file.getName().endsWith(".m3u8")
+                    ? "application/vnd.apple.mpegurl" : getServletContext().getMimeType(file.getName());
             if (contentType == null) {
                 // Determina in base alla directory
                 if (pathInfo.contains("/covers/")) {
@@ -61,17 +78,20 @@ public class FileServingServlet extends HttpServlet {
                 }
             }
             
-            // Imposta headers di risposta
-            response.setContentType(contentType);
-            response.setContentLength((int) file.length());
-            
             // Headers di sicurezza
             response.setHeader("X-Content-Type-Options", "nosniff");
             response.setHeader("Content-Disposition", "inline; filename=\"" + 
                              file.getName().replaceAll("[\"]", "") + "\"");
             
-            // Stream del file
-            Files.copy(file.toPath(), response.getOutputStream());
+            // Invio del file (intero o solo i range richiesti)
+            if (variantPending) {
+                MediaResponseWriter.writeRevalidated(request, response, file, contentType);
+            } else {
+                MediaResponseWriter.write(request, response, file, contentType);
+            }
+            
+        } catch (org.apache.catalina.connector.ClientAbortException e) {
+            // Il client ha interrotto il download (es. seek nel player): non è un errore, niente da registrare
             
         } catch (SecurityException e) {
             // FileStorageManager ha già loggato l'evento di sicurezza internamente
@@ -82,7 +102,11 @@ public class FileServingServlet extends HttpServlet {
             
         } catch (Exception e) {
             // Non esporre dettagli interni
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error serving file");
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error serving file");
+            } else {
+                System.err.println("Error after response was committed: " + e.getMessage());
+            }
         }
     }
 
@@ -0,0 +1,114 @@
+package it.polimi.tiw.projects.controllers.api;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Base class for the API servlets.
+ * When the apiVirtualThreads context parameter is enabled, each request is put in async mode
+ * and its doGet/doPost/... runs on a virtual thread, so blocking JDBC calls don't hold
+ * a container worker thread.
+ */
+public abstract class ApiServletBase extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    // ServletContext attribute holding the virtual-thread executor (set by AppContextListener)
+    public static final String EXECUTOR_ATTRIBUTE = "it.polimi.tiw.projects.apiExecutor";
+    // Context parameter (web.xml) with the upper bound in ms for a single API request running on a virtual thread
+    public static final String ASYNC_TIMEOUT_PARAM = "apiAsyncTimeoutMs";
+    private static final long DEFAULT_ASYNC_TIMEOUT_MS = 120_000;
+
+    /**
+     * Writes the "data" value of a success response
+     */
+    @FunctionalInterface
+    protected interface JsonData {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    /**
+     * Sends {"status": "success", "data": ...} writing the data straight to the response writer,
+     * so list responses don't build a map per entity and the whole body as a String first.
+     * The output matches Gson's defaults (null fields omitted, HTML characters escaped).
+     */
+    protected void sendSuccessStreaming(HttpServletResponse response, int statusCode, JsonData data) throws IOException {
+        response.setStatus(statusCode);
+        JsonWriter out = new JsonWriter(response.getWriter());
+        out.setSerializeNulls(false);
+        out.setHtmlSafe(true);
+        out.beginObject();
+        out.name("status").value("success");
+        out.name("data");
+        data.write(out);
+        out.endObject();
+        // Not closed: closing would close the response writer
+        out.flush();
+    }
+
+    /**
+     * Async timeout in ms for the request (0 = none), apiAsyncTimeoutMs or 120 s by default.
+     * Subclasses return 0 for requests whose duration depends on the client (uploads, streamed responses).
+     */
+    protected long getAsyncTimeout(HttpServletRequest request) {
+        String value = getServletContext().getInitParameter(ASYNC_TIMEOUT_PARAM);
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_ASYNC_TIMEOUT_MS;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return DEFAULT_ASYNC_TIMEOUT_MS;
+        }
+    }
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ExecutorService executor = (ExecutorService) getServletContext().getAttribute(EXECUTOR_ATTRIBUTE);
+        if (executor == null || !request.isAsyncSupported() || request.isAsyncStarted()) {
+            super.service(request, response);
+            return;
+        }
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(getAsyncTimeout(request));
+        try {
+            executor.execute(() -> serviceAsync(asyncContext, request, response));
+        } catch (RejectedExecutionException e) {
+            // Executor shut down (webapp stopping)
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is shutting down");
+            asyncContext.complete();
+        }
+    }
+
+    private void serviceAsync(AsyncContext asyncContext, HttpServletRequest request, HttpServletResponse response) {
+        try {
+            super.service(request, response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            try {
+                if (!response.isCommitted()) {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error");
+                }
+            } catch (IOException sendError) {
+                sendError.printStackTrace();
+            }
+        } finally {
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // Already completed by the container after an async timeout
+                System.err.println("API request completed after async timeout: " + request.getRequestURI());
+            }
+        }
+    }
+}
@@ -6,7 +6,6 @@ import java.util.Map;
 
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
@@ -14,8 +13,8 @@ import jakarta.servlet.http.HttpSession;
 import com.google.gson.Gson;
 import it.polimi.tiw.projects.beans.User;
 
-@WebServlet("/api/checkAuth")
-public class CheckAuthServletRIA extends HttpServlet {
+@WebServlet(urlPatterns = "/api/checkAuth", asyncSupported = true)
+public class CheckAuthServletRIA extends ApiServletBase {
     private static final long serialVersionUID = 1L;
     private Gson gson = new Gson();
 
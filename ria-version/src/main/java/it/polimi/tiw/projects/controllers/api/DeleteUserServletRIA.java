@@ -6,9 +6,10 @@ import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
@@ -17,11 +18,12 @@ import com.google.gson.Gson;
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.dao.UserDAO;
 import it.polimi.tiw.projects.utils.ConnectionHandler;
+import it.polimi.tiw.projects.utils.LibraryEvents;
 
-@WebServlet("/api/deleteUser")
-public class DeleteUserServletRIA extends HttpServlet {
+@WebServlet(urlPatterns = "/api/deleteUser", asyncSupported = true)
+public class DeleteUserServletRIA extends ApiServletBase {
     private static final long serialVersionUID = 1L;
-    private Connection connection;
+    private DataSource dataSource;
     private Gson gson = new Gson();
     
     public DeleteUserServletRIA() {
@@ -29,7 +31,7 @@ public class DeleteUserServletRIA extends HttpServlet {
     }
     
     public void init() throws ServletException {
-        connection = ConnectionHandler.getConnection(getServletContext());
+        dataSource = ConnectionHandler.getDataSource(getServletContext());
     }
 
     protected void doPost(HttpServletRequest request, HttpServletResponse response) 
@@ -60,8 +62,8 @@ public class DeleteUserServletRIA extends HttpServlet {
             return;
         }
         
-        UserDAO userDAO = new UserDAO(connection);
-        try {
+        try (Connection connection = dataSource.getConnection()) {
+            UserDAO userDAO = new UserDAO(connection);
             User verifiedUser = userDAO.checkCredentials(user.getUsername(), password);
             if (verifiedUser == null) {
                 responseMap.put("status", "error");
@@ -81,6 +83,7 @@ public class DeleteUserServletRIA extends HttpServlet {
                 return;
             }
             
+            LibraryEvents.unsubscribe(session.getId());
             session.invalidate();
             
             responseMap.put("status", "success");
@@ -96,12 +99,4 @@ public class DeleteUserServletRIA extends HttpServlet {
             e.printStackTrace();
         }
     }
-    
-    public void destroy() {
-        try {
-            ConnectionHandler.closeConnection(connection);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
 }
\ No newline at end of file
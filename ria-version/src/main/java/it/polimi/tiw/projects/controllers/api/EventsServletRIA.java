@@ -0,0 +1,119 @@
+package it.polimi.tiw.projects.controllers.api;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+import com.google.gson.Gson;
+
+import it.polimi.tiw.projects.beans.User;
+import it.polimi.tiw.projects.dao.ChangeLogDAO;
+import it.polimi.tiw.projects.utils.ConnectionHandler;
+import it.polimi.tiw.projects.utils.LibraryEvents;
+
+/**
+ * GET /api/events?tab=<id>&since=<cursor> - Server-Sent Events stream announcing changes to the user's library.
+ * tab identifies the browser tab, so tabs sharing the session keep one stream each.
+ * since is the client's sync cursor (the Last-Event-ID header sent on reconnection is used when newer):
+ * if the library has changed since then, a "library" event is sent as soon as the stream opens.
+ * Each "library" event carries the new library version (plus entity, entityID and action when known);
+ * the client then fetches the changes from /api/sync. Comment lines keep the connection alive.
+ * Not an ApiServletBase: the request stays open in async mode without holding any thread,
+ * and LibraryEvents writes to it without blocking.
+ */
+@WebServlet(urlPatterns = "/api/events", asyncSupported = true)
+public class EventsServletRIA extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    // The browser reconnects when the stream is closed, so long connections are recycled periodically
+    private static final long STREAM_TIMEOUT_MS = 60 * 60 * 1000L;
+    private static final Pattern TAB_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private DataSource dataSource;
+    private Gson gson = new Gson();
+
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        dataSource = ConnectionHandler.getDataSource(getServletContext());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        HttpSession session = request.getSession(false);
+
+        if (session == null || session.getAttribute("user") == null) {
+            sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "User not authenticated.");
+            return;
+        }
+        User user = (User) session.getAttribute("user");
+
+        String tabID = request.getParameter("tab");
+        if (tabID == null || !TAB_ID.matcher(tabID).matches()) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid tab ID.");
+            return;
+        }
+
+        // Without a cursor every existing change is announced, so the client syncs at once
+        long knownVersion = Math.max(0, Math.max(parseVersion(request.getParameter("since")),
+                parseVersion(request.getHeader("Last-Event-ID"))));
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // Keeps reverse proxies from buffering the stream
+        response.setHeader("X-Accel-Buffering", "no");
+
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(STREAM_TIMEOUT_MS);
+        if (!LibraryEvents.subscribe(asyncContext, user.getId(), session.getId(), tabID, knownVersion)) {
+            // Nothing has been written yet: the registry of this node or the session's streams are full
+            response.reset();
+            sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many open event streams.");
+            asyncContext.complete();
+            return;
+        }
+
+        // Read after subscribing: later changes are published to the stream, earlier ones are caught up here
+        try (Connection connection = dataSource.getConnection()) {
+            LibraryEvents.catchUp(user.getId(), new ChangeLogDAO(connection).getVersion(user.getId()));
+        } catch (SQLException e) {
+            // The next heartbeat compares the versions again
+            e.printStackTrace();
+        }
+    }
+
+    // A library version sent by the client, -1 when missing or invalid
+    private static long parseVersion(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void sendError(HttpServletResponse response, int statusCode, String message) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("status", "error");
+        errorResponse.put("message", message);
+        response.setStatus(statusCode);
+        response.getWriter().write(gson.toJson(errorResponse));
+    }
+}
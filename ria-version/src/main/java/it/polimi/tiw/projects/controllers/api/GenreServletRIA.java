@@ -1,34 +1,51 @@
 package it.polimi.tiw.projects.controllers.api;
 
 import java.io.IOException;
-import java.sql.Connection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import jakarta.servlet.http.HttpSession; // Although not strictly needed for GET genres, good practice for consistency if auth were added
 
 import com.google.gson.Gson;
 
-import it.polimi.tiw.projects.dao.GenreDAO;
 import it.polimi.tiw.projects.utils.ConnectionHandler;
+import it.polimi.tiw.projects.utils.GenreCatalog;
 
-@WebServlet("/api/genres")
-public class GenreServletRIA extends HttpServlet {
+@WebServlet(urlPatterns = "/api/genres", asyncSupported = true)
+public class GenreServletRIA extends ApiServletBase {
     private static final long serialVersionUID = 1L;
-    private Connection connection = null;
+    private DataSource dataSource;
     private Gson gson = new Gson();
 
+    // Response body serialized once per catalog, with its strong ETag
+    private static final class CachedBody {
+        final GenreCatalog catalog;
+        final byte[] json;
+        final String etag;
+
+        CachedBody(GenreCatalog catalog, byte[] json, String etag) {
+            this.catalog = catalog;
+            this.json = json;
+            this.etag = etag;
+        }
+    }
+
+    private volatile CachedBody cachedBody;
+
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
-        connection = ConnectionHandler.getConnection(getServletContext());
+        dataSource = ConnectionHandler.getDataSource(getServletContext());
     }
 
     @Override
@@ -37,17 +54,9 @@ public class GenreServletRIA extends HttpServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        GenreDAO genreDAO = new GenreDAO(connection);
+        CachedBody body;
         try {
-            List<String> genreNames = genreDAO.getAllGenresNames();
-            
-            Map<String, Object> responseMap = new HashMap<>();
-            responseMap.put("status", "success");
-            responseMap.put("data", genreNames); // Sending list of strings directly
-            
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.getWriter().write(gson.toJson(responseMap));
-
+            body = bodyFor(GenreCatalog.get(dataSource));
         } catch (SQLException e) {
             e.printStackTrace();
             Map<String, Object> errorResponse = new HashMap<>();
@@ -55,16 +64,71 @@ public class GenreServletRIA extends HttpServlet {
             errorResponse.put("message", "Database error fetching genres: " + e.getMessage());
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             response.getWriter().write(gson.toJson(errorResponse));
+            return;
+        }
+
+        // The browser revalidates on every use and gets a 304 while the catalog is unchanged
+        response.setHeader("ETag", body.etag);
+        response.setHeader("Cache-Control", "no-cache");
+        if (matchesETag(request.getHeader("If-None-Match"), body.etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
         }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentLength(body.json.length);
+        response.getOutputStream().write(body.json);
     }
 
-    public void destroy() {
+    /**
+     * Returns the serialized body for the given catalog, rebuilding it only after a reload
+     */
+    private CachedBody bodyFor(GenreCatalog catalog) {
+        CachedBody body = cachedBody;
+        if (body != null && body.catalog == catalog) {
+            return body;
+        }
+
+        Map<String, Object> responseMap = new LinkedHashMap<>();
+        responseMap.put("status", "success");
+        responseMap.put("data", catalog.getNames()); // Sending list of strings directly
+        byte[] json = gson.toJson(responseMap).getBytes(StandardCharsets.UTF_8);
+
+        body = new CachedBody(catalog, json, computeETag(json));
+        cachedBody = body;
+        return body;
+    }
+
+    private static String computeETag(byte[] content) {
         try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder etag = new StringBuilder("\"");
+            for (int i = 0; i < 16; i++) {
+                etag.append(String.format("%02x", digest[i]));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available on the Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks an If-None-Match header value (a list of ETags or "*") against the current ETag
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2); // weak comparison is allowed for If-None-Match
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        return false;
     }
 }
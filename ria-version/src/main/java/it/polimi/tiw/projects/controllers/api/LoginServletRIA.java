@@ -6,10 +6,11 @@ import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
@@ -20,15 +21,15 @@ import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.dao.UserDAO;
 import it.polimi.tiw.projects.utils.ConnectionHandler;
 
-@WebServlet("/api/login")
-public class LoginServletRIA extends HttpServlet {
+@WebServlet(urlPatterns = "/api/login", asyncSupported = true)
+public class LoginServletRIA extends ApiServletBase {
     private static final long serialVersionUID = 1L;
-    private Connection connection = null;
+    private DataSource dataSource;
     private Gson gson = new Gson();
 
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
-        connection = ConnectionHandler.getConnection(getServletContext());
+        dataSource = ConnectionHandler.getDataSource(getServletContext());
     }
 
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
@@ -46,9 +47,9 @@ public class LoginServletRIA extends HttpServlet {
             return;
         }
 
-        UserDAO userDAO = new UserDAO(connection);
         User user;
-        try {
+        try (Connection connection = dataSource.getConnection()) {
+            UserDAO userDAO = new UserDAO(connection);
             user = userDAO.checkCredentials(username, password);
         } catch (SQLException e) {
             e.printStackTrace(); // Log error
@@ -78,14 +79,4 @@ public class LoginServletRIA extends HttpServlet {
         response.setStatus(statusCode);
         response.getWriter().write(gson.toJson(errorResponse));
     }
-
-    public void destroy() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
 }
@@ -6,15 +6,16 @@ import java.util.Map;
 
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 
 import com.google.gson.Gson;
 
-@WebServlet("/api/logout")
-public class LogoutServletRIA extends HttpServlet {
+import it.polimi.tiw.projects.utils.LibraryEvents;
+
+@WebServlet(urlPatterns = "/api/logout", asyncSupported = true)
+public class LogoutServletRIA extends ApiServletBase {
     private static final long serialVersionUID = 1L;
     private Gson gson = new Gson();
 
@@ -26,6 +27,8 @@ public class LogoutServletRIA extends HttpServlet {
         HttpSession session = request.getSession(false); // Do not create session if it doesn't exist
 
         if (session != null) {
+            // Also close the session's push channel
+            LibraryEvents.unsubscribe(session.getId());
             session.invalidate();
         }
 
@@ -3,17 +3,18 @@ package it.polimi.tiw.projects.controllers.api;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+import javax.sql.DataSource;
+
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
@@ -30,15 +31,17 @@ import it.polimi.tiw.projects.dao.SongDAO;
 import it.polimi.tiw.projects.utils.ConnectionHandler;
 
 // Path changed to handle /api/playlists/*
-@WebServlet(name = "PlaylistServletRIA", urlPatterns = {"/api/playlists", "/api/playlists/*"})
-public class PlaylistServletRIA extends HttpServlet {
+@WebServlet(name = "PlaylistServletRIA", urlPatterns = {"/api/playlists", "/api/playlists/*"}, asyncSupported = true)
+public class PlaylistServletRIA extends ApiServletBase {
     private static final long serialVersionUID = 1L;
-    private Connection connection = null;
+    private DataSource dataSource;
     private Gson gson = new Gson();
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 100;
 
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
-        connection = ConnectionHandler.getConnection(getServletContext());
+        dataSource = ConnectionHandler.getDataSource(getServletContext());
     }
 
     @Override
@@ -54,28 +57,30 @@ public class PlaylistServletRIA extends HttpServlet {
             return;
         }
         User user = (User) session.getAttribute("user");
-        PlaylistDAO playlistDAO = new PlaylistDAO(connection);
         String pathInfo = request.getPathInfo();
 
-        try {
+        try (Connection connection = dataSource.getConnection()) {
+            PlaylistDAO playlistDAO = new PlaylistDAO(connection);
             if (pathInfo == null || pathInfo.equals("/")) {
                 // GET /api/playlists - List all playlists
                 List<Playlist> playlists = playlistDAO.getAllPlaylistsByUserId(user.getId());
-                List<Map<String, Object>> playlistsJson = new ArrayList<>();
-                for (Playlist p : playlists) {
-                    playlistsJson.add(p.toJSON()); 
-                }
-                sendSuccess(response, playlistsJson, HttpServletResponse.SC_OK);
+                sendPlaylists(response, playlists, HttpServletResponse.SC_OK);
             } else {
                 // GET /api/playlists/{id} - Get specific playlist
                 String[] pathParts = pathInfo.split("/");
                 if (pathParts.length == 2) { // e.g., /<id>
                     try {
                         int playlistId = Integer.parseInt(pathParts[1]);
+                        // GET /api/playlists/{id}?page=&size=[&after=] - One page of songs
+                        if (request.getParameter("page") != null || request.getParameter("size") != null
+                                || request.getParameter("after") != null) {
+                            sendPlaylistPage(request, response, playlistDAO, playlistId, user);
+                            return;
+                        }
                         // Fetch with songs and custom order
                         Playlist playlist = playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId(), true); 
                         if (playlist != null) {
-                            sendSuccess(response, playlist.toJSON(), HttpServletResponse.SC_OK);
+                            sendSuccessStreaming(response, HttpServletResponse.SC_OK, playlist::writeJSON);
                         } else {
                             sendError(response, HttpServletResponse.SC_NOT_FOUND, "Playlist not found or access denied.");
                         }
@@ -92,6 +97,77 @@ public class PlaylistServletRIA extends HttpServlet {
         }
     }
 
+    /**
+     * Sends the playlist header with a single page of songs plus paging metadata.
+     * With "after" (ID of the last song already shown) the page is read by keyset,
+     * otherwise by page number. If the "after" song has left the playlist its position is lost:
+     * the page number is used when given, otherwise the response is 409 and the client reloads from a page.
+     */
+    private void sendPlaylistPage(HttpServletRequest request, HttpServletResponse response, PlaylistDAO playlistDAO,
+            int playlistId, User user) throws SQLException, IOException {
+        int size = parseNonNegativeInt(request.getParameter("size"), DEFAULT_PAGE_SIZE);
+        int page = parseNonNegativeInt(request.getParameter("page"), 0);
+        int afterSongId = parseNonNegativeInt(request.getParameter("after"), -1);
+        if (size < 1 || size > MAX_PAGE_SIZE || page < 0 || afterSongId < -1) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid paging parameters (size must be 1-" + MAX_PAGE_SIZE + ").");
+            return;
+        }
+
+        Playlist playlist = playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId());
+        if (playlist == null) {
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Playlist not found or access denied.");
+            return;
+        }
+
+        int totalSongs = playlistDAO.countSongsInPlaylist(playlistId);
+        int totalPages = (int) Math.ceil((double) totalSongs / size);
+        // One extra row tells whether another page follows, in both keyset and page mode
+        List<Song> songs = afterSongId != -1
+                ? playlistDAO.getSongsFromPlaylistAfter(playlistId, afterSongId, size + 1)
+                : playlistDAO.getSongsFromPlaylistPage(playlistId, page * size, size + 1);
+        if (songs == null) {
+            if (request.getParameter("page") == null) {
+                sendError(response, HttpServletResponse.SC_CONFLICT, "The cursor song is no longer in the playlist; reload by page.");
+                return;
+            }
+            songs = playlistDAO.getSongsFromPlaylistPage(playlistId, page * size, size + 1);
+        }
+        boolean hasNext = songs.size() > size;
+        if (hasNext) {
+            songs = songs.subList(0, size);
+        }
+        playlist.setSongs(songs);
+
+        Integer nextCursor = songs.isEmpty() ? null : songs.get(songs.size() - 1).getID();
+
+        sendSuccessStreaming(response, HttpServletResponse.SC_OK, out -> {
+            out.beginObject();
+            playlist.writeJSONFields(out);
+            out.name("pagination").beginObject();
+            out.name("page").value(page);
+            out.name("size").value(size);
+            out.name("totalSongs").value(totalSongs);
+            out.name("totalPages").value(totalPages);
+            out.name("hasNext").value(hasNext);
+            out.name("nextCursor").value(nextCursor);
+            out.endObject();
+            out.endObject();
+        });
+    }
+
+    // Returns defaultValue for a missing parameter, -2 (always rejected) for a malformed or negative one
+    private int parseNonNegativeInt(String value, int defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed < 0 ? -2 : parsed;
+        } catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) // Create Playlist or Add Songs
             throws ServletException, IOException {
@@ -115,10 +191,10 @@ public class PlaylistServletRIA extends HttpServlet {
             return;
         }
 
-        PlaylistDAO playlistDAO = new PlaylistDAO(connection);
-        SongDAO songDAO = new SongDAO(connection);
+        try (Connection connection = dataSource.getConnection()) {
+            PlaylistDAO playlistDAO = new PlaylistDAO(connection);
+            SongDAO songDAO = new SongDAO(connection);
 
-        try {
             if (pathInfo == null || pathInfo.equals("/")) {
                 // POST /api/playlists - Create new playlist
                 String playlistName = (String) payload.get("name");
@@ -144,21 +220,17 @@ public class PlaylistServletRIA extends HttpServlet {
                     sendError(response, HttpServletResponse.SC_CONFLICT, "Playlist creation failed", errors);
                     return;
                 }
-                if (!songDAO.existAllSongsByIDsAndUser(songIDs, user.getId())) {
-                     errors.put("songIDs", "One or more songs are invalid or do not belong to user.");
+                Set<Integer> invalidSongIDs = songDAO.findInvalidSongIDs(songIDs, user.getId());
+                if (!invalidSongIDs.isEmpty()) {
+                     errors.put("songIDs", "Songs " + invalidSongIDs + " are invalid or do not belong to user.");
                      sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Playlist creation failed", errors);
                      return;
                 }
                 
                 Playlist newPlaylist = playlistDAO.createPlaylist(playlistName, songIDs, user.getId());
                 if (newPlaylist != null) {
-                	List<Playlist> playlists = playlistDAO.getAllPlaylistsByUserId(user.getId());
-                    List<Map<String, Object>> playlistsJson = new ArrayList<>();
-                    for (Playlist p : playlists) {
-                        playlistsJson.add(p.toJSON()); 
-                    }
-                    sendSuccess(response, playlistsJson, HttpServletResponse.SC_CREATED);
-                    //sendSuccess(response, newPlaylist.toJSON(), HttpServletResponse.SC_CREATED);
+                    // Only the new playlist: the client adds it to the list it already has
+                    sendSuccessStreaming(response, HttpServletResponse.SC_CREATED, newPlaylist::writeJSON);
                 } else {
                     sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Playlist creation failed.");
                 }
@@ -182,15 +254,16 @@ public class PlaylistServletRIA extends HttpServlet {
                             return;
                         }
                         // Validate songs belong to user (DAO's addSongsToPlaylist should also do this)
-                         if (!songDAO.existAllSongsByIDsAndUser(songIDs, user.getId())) {
-                            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "One or more songs are invalid or do not belong to user.");
+                        Set<Integer> invalidSongIDs = songDAO.findInvalidSongIDs(songIDs, user.getId());
+                        if (!invalidSongIDs.isEmpty()) {
+                            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Songs " + invalidSongIDs + " are invalid or do not belong to user.");
                             return;
                         }
 
                         boolean success = playlistDAO.addSongsToPlaylist(playlistId, songIDs, user.getId());
                         if (success) {
                             Playlist updatedPlaylist = playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId(), true); // Fetch updated
-                            sendSuccess(response, updatedPlaylist.toJSON(), HttpServletResponse.SC_OK);
+                            sendSuccessStreaming(response, HttpServletResponse.SC_OK, updatedPlaylist::writeJSON);
                         } else {
                             sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Failed to add songs.");
                         }
@@ -221,12 +294,17 @@ public class PlaylistServletRIA extends HttpServlet {
         User user = (User) session.getAttribute("user");
         String pathInfo = request.getPathInfo();
 
-        // Expected path: /{playlistId}/order
+        // Expected path: /{playlistId}/order or /{playlistId}/songs/{songId}/position
         if (pathInfo == null || pathInfo.isEmpty()) {
              sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Playlist ID required for reorder.");
              return;
         }
         String[] pathParts = pathInfo.split("/");
+        // PUT /api/playlists/{id}/songs/{songId}/position - Move a single song
+        if (pathParts.length == 5 && "songs".equals(pathParts[2]) && "position".equals(pathParts[4])) {
+            handleMoveSong(request, response, user, pathParts);
+            return;
+        }
         if (pathParts.length != 3 || !"order".equals(pathParts[2])) {
             sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid path for PUT request. Expected /api/playlists/{id}/order");
             return;
@@ -256,8 +334,8 @@ public class PlaylistServletRIA extends HttpServlet {
         }
         List<Integer> songIdsInOrder = songIdDoubles.stream().mapToInt(Double::intValue).boxed().collect(Collectors.toList());
 
-        PlaylistDAO playlistDAO = new PlaylistDAO(connection);
-        try {
+        try (Connection connection = dataSource.getConnection()) {
+            PlaylistDAO playlistDAO = new PlaylistDAO(connection);
             // Check playlist ownership (implicit in saveCustomSongOrder through getPlaylistByIdAndUser)
              if (playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId()) == null) {
                 sendError(response, HttpServletResponse.SC_NOT_FOUND, "Playlist not found or access denied.");
@@ -266,8 +344,56 @@ public class PlaylistServletRIA extends HttpServlet {
             // Validation is handled in the DAO's saveCustomSongOrder method
             playlistDAO.saveCustomSongOrder(playlistId, songIdsInOrder, user.getId());
             Playlist updatedPlaylist = playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId(), true); // Fetch updated
-            sendSuccess(response, updatedPlaylist.toJSON(), HttpServletResponse.SC_OK);
+            sendSuccessStreaming(response, HttpServletResponse.SC_OK, updatedPlaylist::writeJSON);
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves one song to a new position without rewriting the whole order.
+     * Expects {"position": n} with n 0-based.
+     */
+    private void handleMoveSong(HttpServletRequest request, HttpServletResponse response, User user, String[] pathParts)
+            throws IOException {
+        int playlistId;
+        int songId;
+        try {
+            playlistId = Integer.parseInt(pathParts[1]);
+            songId = Integer.parseInt(pathParts[3]);
+        } catch (NumberFormatException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid playlist or song ID format.");
+            return;
+        }
+
+        String requestBody = request.getReader().lines().collect(Collectors.joining(System.lineSeparator()));
+        Map<String, Double> payload;
+        try {
+            payload = gson.fromJson(requestBody, new TypeToken<Map<String, Double>>(){}.getType());
+        } catch (JsonSyntaxException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid JSON format. Expected {\"position\": n}");
+            return;
+        }
+        if (payload == null || payload.get("position") == null || payload.get("position") < 0) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "A non-negative position is required in payload.");
+            return;
+        }
+        int position = payload.get("position").intValue();
 
+        try (Connection connection = dataSource.getConnection()) {
+            PlaylistDAO playlistDAO = new PlaylistDAO(connection);
+            if (playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId()) == null) {
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Playlist not found or access denied.");
+                return;
+            }
+            if (!playlistDAO.moveSongInPlaylist(playlistId, songId, position, user.getId())) {
+                sendError(response, HttpServletResponse.SC_NOT_FOUND, "Song not found in playlist.");
+                return;
+            }
+            Playlist updatedPlaylist = playlistDAO.getPlaylistByIdAndUser(playlistId, user.getId(), true);
+            sendSuccessStreaming(response, HttpServletResponse.SC_OK, updatedPlaylist::writeJSON);
         } catch (SQLException e) {
             e.printStackTrace();
             sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database error: " + e.getMessage());
@@ -295,7 +421,7 @@ public class PlaylistServletRIA extends HttpServlet {
 
         String[] pathParts = pathInfo.split("/");
         if (pathParts.length == 2) { // e.g., /<id>
-            try {
+            try (Connection connection = dataSource.getConnection()) {
                 int playlistId = Integer.parseInt(pathParts[1]);
                 PlaylistDAO playlistDAO = new PlaylistDAO(connection);
 
@@ -324,6 +450,16 @@ public class PlaylistServletRIA extends HttpServlet {
         }
     }
 
+    private void sendPlaylists(HttpServletResponse response, List<Playlist> playlists, int statusCode) throws IOException {
+        sendSuccessStreaming(response, statusCode, out -> {
+            out.beginArray();
+            for (Playlist p : playlists) {
+                p.writeJSON(out);
+            }
+            out.endArray();
+        });
+    }
+
     private void sendSuccess(HttpServletResponse response, Object data, int statusCode) throws IOException {
         Map<String, Object> responseMap = new HashMap<>();
         responseMap.put("status", "success");
@@ -346,14 +482,4 @@ public class PlaylistServletRIA extends HttpServlet {
         response.setStatus(statusCode);
         response.getWriter().write(gson.toJson(errorResponse));
     }
-
-    public void destroy() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
 }
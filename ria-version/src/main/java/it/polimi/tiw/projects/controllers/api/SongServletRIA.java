@@ -1,44 +1,60 @@
 package it.polimi.tiw.projects.controllers.api;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.Year;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.sql.DataSource;
+
 import jakarta.servlet.ServletConfig;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.annotation.MultipartConfig;
 import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import jakarta.servlet.http.Part;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 import it.polimi.tiw.projects.beans.Song;
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.dao.GenreDAO;
 import it.polimi.tiw.projects.dao.SongDAO;
+import it.polimi.tiw.projects.utils.AudioMetadataParser.AudioMetadata;
 import it.polimi.tiw.projects.utils.ConnectionHandler;
 import it.polimi.tiw.projects.utils.FileStorageManager;
-
-@WebServlet(name = "SongServletRIA", urlPatterns = {"/api/songs", "/api/songs/*"})
-@MultipartConfig
-public class SongServletRIA extends HttpServlet {
+import it.polimi.tiw.projects.utils.UploadSessionManager;
+import it.polimi.tiw.projects.utils.UploadSessionManager.UploadSession;
+import it.polimi.tiw.projects.utils.WaveformPeaks;
+
+@WebServlet(name = "SongServletRIA", urlPatterns = {"/api/songs", "/api/songs/*"}, asyncSupported = true)
+// Parts above 1MB are spooled to disk by the container instead of being kept in memory;
+// larger audio files go through the chunked upload API (/api/uploads) and are referenced by ID
+@MultipartConfig(fileSizeThreshold = 1024 * 1024, maxFileSize = 10 * 1024 * 1024, maxRequestSize = 21 * 1024 * 1024)
+public class SongServletRIA extends ApiServletBase {
     private static final long serialVersionUID = 1L;
-    private Connection connection = null;
+    // Suggested delay before asking again for a waveform that is still being computed
+    private static final int WAVEFORM_RETRY_SECONDS = 2;
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    // Songs written between two flushes of a streamed list: the first ones reach the browser right away
+    private static final int STREAM_FLUSH_EVERY = 100;
+    // Async timeout of a streamed song list, longer than the default one for large libraries and slow clients
+    private static final long STREAM_ASYNC_TIMEOUT_MS = 10 * 60 * 1000L;
+    private DataSource dataSource;
     private Gson gson = new Gson();
     private String baseStoragePath;
     public static final int MIN_RELEASE_YEAR = 1600;
@@ -46,7 +62,7 @@ public class SongServletRIA extends HttpServlet {
 
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
-        connection = ConnectionHandler.getConnection(getServletContext());
+        dataSource = ConnectionHandler.getDataSource(getServletContext());
         // Initialize FileStorageManager and get base paths
         try {
             FileStorageManager.initialize(getServletContext()); 
@@ -68,18 +84,24 @@ public class SongServletRIA extends HttpServlet {
             return;
         }
         User user = (User) session.getAttribute("user");
-        SongDAO songDAO = new SongDAO(connection);
         String pathInfo = request.getPathInfo();
 
-        try {
+        try (Connection connection = dataSource.getConnection()) {
+            SongDAO songDAO = new SongDAO(connection);
             if (pathInfo == null || pathInfo.equals("/")) {
                 // GET /api/songs - List all songs for the user
-                List<Song> songs = songDAO.getAllSongsByUserId(user.getId());
-                List<Map<String, Object>> songsJson = new ArrayList<>();
-                for (Song s : songs) {
-                    songsJson.add(s.toJSON());
+                if (wantsStream(request)) {
+                    streamSongs(response, songDAO, user);
+                    return;
                 }
-                sendSuccess(response, songsJson, HttpServletResponse.SC_OK);
+                List<Song> songs = songDAO.getAllSongsByUserId(user.getId());
+                sendSuccessStreaming(response, HttpServletResponse.SC_OK, out -> {
+                    out.beginArray();
+                    for (Song s : songs) {
+                        s.writeJSON(out);
+                    }
+                    out.endArray();
+                });
             } else {
                 // GET /api/songs/{id} - Get specific song
                 String[] pathParts = pathInfo.split("/");
@@ -88,7 +110,19 @@ public class SongServletRIA extends HttpServlet {
                         int songId = Integer.parseInt(pathParts[1]);
                         Song song = songDAO.getSongByIDAndUser(songId, user.getId());
                         if (song != null) {
-                            sendSuccess(response, song.toJSON(), HttpServletResponse.SC_OK);
+                            sendSuccessStreaming(response, HttpServletResponse.SC_OK, song::writeJSON);
+                        } else {
+                            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Song not found or access denied.");
+                        }
+                    } catch (NumberFormatException e) {
+                        sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid song ID format.");
+                    }
+                } else if (pathParts.length == 3 && pathParts[2].equals("waveform")) { // e.g., /<id>/waveform
+                    try {
+                        int songId = Integer.parseInt(pathParts[1]);
+                        Song song = songDAO.getSongByIDAndUser(songId, user.getId());
+                        if (song != null) {
+                            sendWaveform(request, response, song);
                         } else {
                             sendError(response, HttpServletResponse.SC_NOT_FOUND, "Song not found or access denied.");
                         }
@@ -122,57 +156,65 @@ public class SongServletRIA extends HttpServlet {
         Map<String, Object> formData = extractFormData(request);
         Map<String, String> errors = validateFormData(formData);
         
-        // Get and validate files
-        Part audioFilePart = request.getPart("audioFile");
-        Part imageFilePart = request.getPart("imageFile");
+        // Get and validate files: either multipart parts or completed chunked uploads
+        Part audioFilePart;
+        Part imageFilePart;
+        try {
+            audioFilePart = request.getPart("audioFile");
+            imageFilePart = request.getPart("imageFile");
+        } catch (IllegalStateException e) {
+            // Thrown by the container when the request exceeds the MultipartConfig limits
+            sendError(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Upload too large. Files above 10MB must be sent with the chunked upload API.");
+            return;
+        }
+        UploadSessionManager uploads = UploadSessionManager.getInstance();
+        UploadSession audioUpload = uploads.get(request.getParameter("audioUploadId"), user.getId());
+        UploadSession imageUpload = uploads.get(request.getParameter("imageUploadId"), user.getId());
         
         // Validate files
-        validateFiles(audioFilePart, imageFilePart, errors);
+        validateFiles(audioFilePart, imageFilePart, request.getParameter("audioUploadId") != null,
+                request.getParameter("imageUploadId") != null, errors);
+        validateUpload(request.getParameter("audioUploadId"), audioUpload, "songs", "audioFile", errors);
+        validateUpload(request.getParameter("imageUploadId"), imageUpload, "covers", "imageFile", errors);
         
         if (!errors.isEmpty()) {
             sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Validation failed", errors);
             return;
         }
 
-        // Validate genre exists
-        try {
-            validateGenre(formData, errors);
+        // Validate genre exists and check if song already exists
+        // (the connection goes back to the pool before the files are stored)
+        try (Connection connection = dataSource.getConnection()) {
+            validateGenre(connection, formData, errors);
             if (!errors.isEmpty()) {
                 sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Validation failed", errors);
                 return;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database error validating genre: " + e.getMessage());
-            return;
-        }
-
-        // Check if song already exists
-        try {
-            if (songExists(formData, user.getId())) {
+            if (songExists(connection, formData, user.getId())) {
                 sendError(response, HttpServletResponse.SC_CONFLICT, "This song already exists in your library.");
                 return;
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database error checking song existence: " + e.getMessage());
+            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database error validating song: " + e.getMessage());
             return;
         }
 
         // Upload files and get paths
         Map<String, String> filePaths = null;
         try {
-            filePaths = uploadFiles(audioFilePart, imageFilePart);
+            filePaths = uploadFiles(audioFilePart, imageFilePart, audioUpload, imageUpload, formData);
         } catch (IOException e) {
             sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error uploading files: " + e.getMessage());
             return;
         }
 
      // Create and save the song
-        try {
-            Song createdSong = createAndSaveSong(formData, filePaths, user.getId());
+        try (Connection connection = dataSource.getConnection()) {
+            Song createdSong = createAndSaveSong(connection, formData, filePaths, user.getId());
             if (createdSong != null) {
-                sendSuccess(response, createdSong.toJSON(), HttpServletResponse.SC_CREATED);
+                sendSuccessStreaming(response, HttpServletResponse.SC_CREATED, createdSong::writeJSON);
             } else {
                 FileStorageManager.cleanupFiles(
                     filePaths.get("imagePath"), 
@@ -264,11 +306,15 @@ public class SongServletRIA extends HttpServlet {
     }
 
     /**
-     * Validates uploaded files and adds any errors to the provided map
+     * Validates uploaded files and adds any errors to the provided map.
+     * A file sent through the chunked upload API (uploadId parameter) replaces the corresponding part.
      */
-    private void validateFiles(Part audioFilePart, Part imageFilePart, Map<String, String> errors) {
+    private void validateFiles(Part audioFilePart, Part imageFilePart, boolean audioUploaded, boolean imageUploaded,
+            Map<String, String> errors) {
         // Validate audio file
-        if (audioFilePart == null || audioFilePart.getSize() == 0) {
+        if (audioUploaded) {
+            // Checked by validateUpload
+        } else if (audioFilePart == null || audioFilePart.getSize() == 0) {
             errors.put("audioFile", "Audio file is required.");
         } else if (audioFilePart.getSize() > 10 * 1024 * 1024) { // Manteniamo controllo dimensione esplicito
             errors.put("audioFile", "Audio file must be smaller than 10MB.");
@@ -277,7 +323,9 @@ public class SongServletRIA extends HttpServlet {
         }
 
         // Validate image file
-        if (imageFilePart == null || imageFilePart.getSize() == 0) {
+        if (imageUploaded) {
+            // Checked by validateUpload
+        } else if (imageFilePart == null || imageFilePart.getSize() == 0) {
             errors.put("imageFile", "Image file is required.");
         } else if (imageFilePart.getSize() > 10 * 1024 * 1024) {
             errors.put("imageFile", "Image file must be smaller than 10MB.");
@@ -287,14 +335,29 @@ public class SongServletRIA extends HttpServlet {
     }
 
     /**
-     * Validates that the genre exists in the database
+     * Checks that a referenced chunked upload exists, belongs to the user and has received all its bytes
+     */
+    private void validateUpload(String uploadId, UploadSession upload, String directory, String field,
+            Map<String, String> errors) {
+        if (uploadId == null || uploadId.isEmpty()) {
+            return;
+        }
+        if (upload == null || !upload.getDirectory().equals(directory)) {
+            errors.put(field, "Upload not found or expired.");
+        } else if (upload.getOffset() != upload.getSize()) {
+            errors.put(field, "Upload incomplete: " + upload.getOffset() + " of " + upload.getSize() + " bytes received.");
+        }
+    }
+
+    /**
+     * Validates that the genre exists in the genre catalog
      */
-    private void validateGenre(Map<String, Object> formData, Map<String, String> errors) throws SQLException {
+    private void validateGenre(Connection connection, Map<String, Object> formData, Map<String, String> errors) throws SQLException {
         String genreName = (String) formData.get("genreName");
         if (genreName != null && !genreName.trim().isEmpty()) {
             GenreDAO genreDAO = new GenreDAO(connection);
-            int genreId = genreDAO.getGenreIdByName(genreName);
-            if (genreId == -1) {
+            Integer genreId = genreDAO.getGenreIdByName(genreName);
+            if (genreId == null) {
                 errors.put("genreName", "Genre not found: " + genreName);
             } else {
                 formData.put("genreId", genreId); // Store for later use
@@ -305,7 +368,7 @@ public class SongServletRIA extends HttpServlet {
     /**
      * Checks if a song with the same data already exists
      */
-    private boolean songExists(Map<String, Object> formData, int userId) throws SQLException {
+    private boolean songExists(Connection connection, Map<String, Object> formData, int userId) throws SQLException {
         SongDAO songDAO = new SongDAO(connection);
         String title = (String) formData.get("title");
         String albumName = (String) formData.get("albumName");
@@ -317,17 +380,26 @@ public class SongServletRIA extends HttpServlet {
     }
 
     /**
-     * Uploads files and returns their relative paths
+     * Uploads files and returns their relative paths.
+     * Chunked uploads are moved into place only here, after the form has been validated.
+     * The audio metadata read while storing the file is put in formData under "audioMetadata".
      */
-    private Map<String, String> uploadFiles(Part audioFilePart, Part imageFilePart) throws IOException {
+    private Map<String, String> uploadFiles(Part audioFilePart, Part imageFilePart, UploadSession audioUpload,
+            UploadSession imageUpload, Map<String, Object> formData) throws IOException {
         Map<String, String> filePaths = new HashMap<>();
+        UploadSessionManager uploads = UploadSessionManager.getInstance();
         
         try {
-            String audioPath = FileStorageManager.saveUploadedFile(audioFilePart, "songs");
-            filePaths.put("audioPath", audioPath);
+            FileStorageManager.StoredFile audioFile = audioUpload != null
+                    ? uploads.complete(audioUpload)
+                    : FileStorageManager.storeUploadedFile(audioFilePart, "songs");
+            filePaths.put("audioPath", audioFile.getRelativePath());
+            formData.put("audioMetadata", audioFile.getAudioMetadata());
             
             // Salva immagine (gestisce anche default se necessario)
-            if (imageFilePart != null && imageFilePart.getSize() > 0) {
+            if (imageUpload != null) {
+                filePaths.put("imagePath", uploads.complete(imageUpload).getRelativePath());
+            } else if (imageFilePart != null && imageFilePart.getSize() > 0) {
                 String imagePath = FileStorageManager.saveUploadedFile(imageFilePart, "covers");
                 filePaths.put("imagePath", imagePath);
             } else {
@@ -362,7 +434,7 @@ public class SongServletRIA extends HttpServlet {
     /**
      * Creates and saves a song to the database
      */
-    private Song createAndSaveSong(Map<String, Object> formData, Map<String, String> filePaths, int userId) throws SQLException {
+    private Song createAndSaveSong(Connection connection, Map<String, Object> formData, Map<String, String> filePaths, int userId) throws SQLException {
         Song newSong = new Song();
         newSong.setUserID(userId);
         newSong.setName((String) formData.get("title"));
@@ -373,6 +445,15 @@ public class SongServletRIA extends HttpServlet {
         newSong.setAudioFilePath(filePaths.get("audioPath"));
         newSong.setAlbumCoverPath(filePaths.get("imagePath"));
 
+        AudioMetadata metadata = (AudioMetadata) formData.get("audioMetadata");
+        if (metadata != null) {
+            newSong.setDurationMs(metadata.getDurationMs() != null ? metadata.getDurationMs().intValue() : null);
+            newSong.setBitrate(metadata.getBitrate());
+            newSong.setSampleRate(metadata.getSampleRate());
+            newSong.setChannels(metadata.getChannels());
+            newSong.setCodec(metadata.getCodec());
+        }
+
         SongDAO songDAO = new SongDAO(connection);
         return songDAO.uploadSong(newSong);
     }
@@ -397,7 +478,7 @@ public class SongServletRIA extends HttpServlet {
         }
 
         String[] pathParts = pathInfo.split("/"); // pathInfo starts with "/"
-        try {
+        try (Connection connection = dataSource.getConnection()) {
             int songId = Integer.parseInt(pathParts[1]);
             SongDAO songDAO = new SongDAO(connection);
 
@@ -455,6 +536,118 @@ public class SongServletRIA extends HttpServlet {
         return validExtension && validMimeType;
     }
     
+    /**
+     * Sends the precomputed waveform peaks of a song (binary format described in WaveformPeaks).
+     * Peaks of content-addressed audio never change, so the browser caches them without revalidating.
+     * While the peaks are being computed the response is 202 with Retry-After.
+     */
+    private void sendWaveform(HttpServletRequest request, HttpServletResponse response, Song song) throws IOException {
+        File audio;
+        try {
+            audio = FileStorageManager.getFileSecurely(song.getAudioFilePath());
+        } catch (FileNotFoundException | SecurityException e) {
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Audio file not found.");
+            return;
+        }
+        if (!WaveformPeaks.isSupported(audio)) {
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Waveform not available for this audio format.");
+            return;
+        }
+
+        File peaks = WaveformPeaks.peaksFile(audio);
+        if (!peaks.isFile()) {
+            WaveformPeaks.generate(audio);
+            response.setHeader("Retry-After", String.valueOf(WAVEFORM_RETRY_SECONDS));
+            Map<String, Object> pending = new HashMap<>();
+            pending.put("pending", true);
+            sendSuccess(response, pending, HttpServletResponse.SC_ACCEPTED);
+            return;
+        }
+
+        byte[] body = Files.readAllBytes(peaks.toPath());
+        String etag = "\"" + Long.toHexString(peaks.lastModified()) + "-" + Integer.toHexString(body.length) + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", FileStorageManager.isImmutableFileName(peaks.getName())
+                ? "private, max-age=31536000, immutable" : "private, no-cache");
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/octet-stream");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    // Song uploads last as long as the client needs: no async timeout. Streamed song lists get a longer bound.
+    @Override
+    protected long getAsyncTimeout(HttpServletRequest request) {
+        if ("POST".equals(request.getMethod())) {
+            return 0;
+        }
+        long timeout = super.getAsyncTimeout(request);
+        if ("GET".equals(request.getMethod()) && wantsStream(request) && timeout > 0) {
+            return Math.max(timeout, STREAM_ASYNC_TIMEOUT_MS);
+        }
+        return timeout;
+    }
+
+    // Accept: application/x-ndjson or ?stream=1
+    private boolean wantsStream(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return "1".equals(request.getParameter("stream"))
+                || (accept != null && accept.contains(NDJSON_CONTENT_TYPE));
+    }
+
+    /**
+     * Sends the song list as newline-delimited JSON, one song per line as each chunk is read from the database,
+     * flushing every STREAM_FLUSH_EVERY songs so the client can render while the rest is still coming.
+     * The last line is {"status": "success", "count": n}, or {"status": "error", ...} if the read failed
+     * after the response was committed, so a client can tell a complete list from a truncated one.
+     */
+    private void streamSongs(HttpServletResponse response, SongDAO songDAO, User user) throws SQLException, IOException {
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setStatus(HttpServletResponse.SC_OK);
+        PrintWriter writer = response.getWriter();
+        JsonWriter out = new JsonWriter(writer);
+        // Lenient: one top-level value per line
+        out.setLenient(true);
+        out.setSerializeNulls(false);
+        out.setHtmlSafe(true);
+
+        int[] written = {0};
+        int count;
+        try {
+            count = songDAO.forEachSongByUserId(user.getId(), song -> {
+                song.writeJSON(out);
+                writer.write('\n');
+                if (++written[0] % STREAM_FLUSH_EVERY == 0) {
+                    response.flushBuffer();
+                }
+            });
+        } catch (SQLException e) {
+            if (!response.isCommitted()) {
+                // Nothing sent yet: the caller answers with a regular JSON error
+                response.resetBuffer();
+                response.setContentType("application/json");
+                throw e;
+            }
+            e.printStackTrace();
+            out.beginObject();
+            out.name("status").value("error");
+            out.name("message").value("Database error while reading the songs.");
+            out.endObject();
+            writer.write('\n');
+            return;
+        }
+        out.beginObject();
+        out.name("status").value("success");
+        out.name("count").value(count);
+        out.endObject();
+        writer.write('\n');
+        out.flush();
+    }
+
     private void sendSuccess(HttpServletResponse response, Object data, int statusCode) throws IOException {
         Map<String, Object> responseMap = new HashMap<>();
         responseMap.put("status", "success");
@@ -477,14 +670,4 @@ public class SongServletRIA extends HttpServlet {
         response.setStatus(statusCode);
         response.getWriter().write(gson.toJson(errorResponse));
     }
-
-    public void destroy() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-    }
 }
\ No newline at end of file
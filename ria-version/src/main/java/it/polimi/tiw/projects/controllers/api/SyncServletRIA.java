@@ -0,0 +1,86 @@
+package it.polimi.tiw.projects.controllers.api;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+import com.google.gson.Gson;
+
+import it.polimi.tiw.projects.beans.LibraryDelta;
+import it.polimi.tiw.projects.beans.User;
+import it.polimi.tiw.projects.dao.ChangeLogDAO;
+import it.polimi.tiw.projects.utils.ConnectionHandler;
+
+/**
+ * GET /api/sync?since=<cursor> - Changes to the user's songs and playlists after the given cursor.
+ * The response holds the new cursor, the changed songs and playlists and the IDs of the deleted ones;
+ * with "reset": true (no cursor, or one that is too old) the client must load the whole library
+ * and keep the returned cursor for the next call.
+ */
+@WebServlet(urlPatterns = "/api/sync", asyncSupported = true)
+public class SyncServletRIA extends ApiServletBase {
+    private static final long serialVersionUID = 1L;
+    private DataSource dataSource;
+    private Gson gson = new Gson();
+
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        dataSource = ConnectionHandler.getDataSource(getServletContext());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        // The answer depends on the database state, never on a cached copy
+        response.setHeader("Cache-Control", "no-store");
+        HttpSession session = request.getSession(false);
+
+        if (session == null || session.getAttribute("user") == null) {
+            sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "User not authenticated.");
+            return;
+        }
+        User user = (User) session.getAttribute("user");
+
+        Long since = null;
+        String sinceParam = request.getParameter("since");
+        if (sinceParam != null && !sinceParam.trim().isEmpty()) {
+            try {
+                since = Long.parseLong(sinceParam.trim());
+            } catch (NumberFormatException e) {
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid sync cursor.");
+                return;
+            }
+        }
+
+        LibraryDelta delta;
+        try (Connection connection = dataSource.getConnection()) {
+            delta = new ChangeLogDAO(connection).getDeltaSince(user.getId(), since);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Database error: " + e.getMessage());
+            return;
+        }
+        sendSuccessStreaming(response, HttpServletResponse.SC_OK, delta::writeJSON);
+    }
+
+    private void sendError(HttpServletResponse response, int statusCode, String message) throws IOException {
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("status", "error");
+        errorResponse.put("message", message);
+        response.setStatus(statusCode);
+        response.getWriter().write(gson.toJson(errorResponse));
+    }
+}
@@ -0,0 +1,221 @@
+package it.polimi.tiw.projects.controllers.api;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import it.polimi.tiw.projects.beans.User;
+import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.UploadSessionManager;
+import it.polimi.tiw.projects.utils.UploadSessionManager.OffsetMismatchException;
+import it.polimi.tiw.projects.utils.UploadSessionManager.UploadSession;
+
+/**
+ * Resumable chunked uploads for files larger than the multipart limit.
+ * POST /api/uploads {"fileName", "size", "type": "audio"|"image"} opens a session,
+ * PUT /api/uploads/{id}?offset=n appends the raw request body, GET /api/uploads/{id}
+ * returns the offset to resume from and DELETE /api/uploads/{id} aborts the upload.
+ * A completed upload is referenced by ID (audioUploadId / imageUploadId) when creating the song.
+ */
+@WebServlet(urlPatterns = {"/api/uploads", "/api/uploads/*"}, asyncSupported = true)
+public class UploadServletRIA extends ApiServletBase {
+    private static final long serialVersionUID = 1L;
+    private Gson gson = new Gson();
+    private UploadSessionManager uploads;
+
+    // Request payload for POST /api/uploads
+    private static final class UploadRequest {
+        String fileName;
+        Long size;
+        String type;
+    }
+
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        try {
+            FileStorageManager.initialize(getServletContext());
+        } catch (Exception e) {
+            throw new ServletException("Failed to initialize FileStorageManager", e);
+        }
+        uploads = UploadSessionManager.getInstance();
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        User user = getUser(request);
+        if (user == null) {
+            sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "User not authenticated.");
+            return;
+        }
+        String pathInfo = request.getPathInfo();
+        if (pathInfo != null && !pathInfo.equals("/")) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid path for POST upload request.");
+            return;
+        }
+
+        String requestBody = request.getReader().lines().collect(Collectors.joining(System.lineSeparator()));
+        UploadRequest payload;
+        try {
+            payload = gson.fromJson(requestBody, UploadRequest.class);
+        } catch (JsonSyntaxException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid JSON format. Expected {\"fileName\", \"size\", \"type\"}");
+            return;
+        }
+        if (payload == null || payload.fileName == null || payload.size == null
+                || (!"audio".equals(payload.type) && !"image".equals(payload.type))) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST,
+                    "fileName, size and type (audio or image) are required.");
+            return;
+        }
+
+        String directory = "audio".equals(payload.type) ? "songs" : "covers";
+        try {
+            UploadSession upload = uploads.create(user.getId(), payload.fileName, directory, payload.size);
+            Map<String, Object> data = toJSON(upload);
+            data.put("chunkSize", UploadSessionManager.CHUNK_SIZE);
+            sendSuccess(response, data, HttpServletResponse.SC_CREATED);
+        } catch (SecurityException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Could not start upload: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        UploadSession upload = findUpload(request, response);
+        if (upload != null) {
+            sendSuccess(response, toJSON(upload), HttpServletResponse.SC_OK);
+        }
+    }
+
+    // A chunk PUT lasts as long as the client takes to send it: no async timeout
+    @Override
+    protected long getAsyncTimeout(HttpServletRequest request) {
+        return "PUT".equals(request.getMethod()) ? 0 : super.getAsyncTimeout(request);
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        UploadSession upload = findUpload(request, response);
+        if (upload == null) {
+            return;
+        }
+
+        long offset;
+        try {
+            offset = Long.parseLong(request.getParameter("offset"));
+        } catch (NumberFormatException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "A numeric offset parameter is required.");
+            return;
+        }
+
+        try {
+            uploads.appendChunk(upload, offset, request.getInputStream());
+            sendSuccess(response, toJSON(upload), HttpServletResponse.SC_OK);
+        } catch (OffsetMismatchException e) {
+            // The client resumes from the offset the server actually has
+            Map<String, String> errors = new HashMap<>();
+            errors.put("offset", String.valueOf(e.getExpectedOffset()));
+            sendError(response, HttpServletResponse.SC_CONFLICT, "Unexpected chunk offset.", errors);
+        } catch (IOException e) {
+            // Connection dropped or chunk past the declared size: the bytes received so far are discarded
+            System.err.println("Chunk upload failed for " + upload.getId() + ": " + e.getMessage());
+            if (!response.isCommitted()) {
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Chunk upload failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        UploadSession upload = findUpload(request, response);
+        if (upload != null) {
+            uploads.abort(upload);
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        }
+    }
+
+    /**
+     * Resolves /api/uploads/{id} for the logged user, sending the error response when it can't
+     */
+    private UploadSession findUpload(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        User user = getUser(request);
+        if (user == null) {
+            sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "User not authenticated.");
+            return null;
+        }
+        String pathInfo = request.getPathInfo();
+        String[] pathParts = pathInfo == null ? new String[0] : pathInfo.split("/");
+        if (pathParts.length != 2) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Upload ID is required.");
+            return null;
+        }
+        UploadSession upload = uploads.get(pathParts[1], user.getId());
+        if (upload == null) {
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "Upload not found or expired.");
+        }
+        return upload;
+    }
+
+    private User getUser(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        return session == null ? null : (User) session.getAttribute("user");
+    }
+
+    private Map<String, Object> toJSON(UploadSession upload) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("uploadId", upload.getId());
+        data.put("offset", upload.getOffset());
+        data.put("size", upload.getSize());
+        return data;
+    }
+
+    private void sendSuccess(HttpServletResponse response, Object data, int statusCode) throws IOException {
+        Map<String, Object> responseMap = new HashMap<>();
+        responseMap.put("status", "success");
+        responseMap.put("data", data);
+        response.setStatus(statusCode);
+        response.getWriter().write(gson.toJson(responseMap));
+    }
+
+    private void sendError(HttpServletResponse response, int statusCode, String message) throws IOException {
+        sendError(response, statusCode, message, null);
+    }
+
+    private void sendError(HttpServletResponse response, int statusCode, String message, Map<String, String> errors) throws IOException {
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("status", "error");
+        errorResponse.put("message", message);
+        if (errors != null && !errors.isEmpty()) {
+            errorResponse.put("errors", errors);
+        }
+        response.setStatus(statusCode);
+        response.getWriter().write(gson.toJson(errorResponse));
+    }
+}
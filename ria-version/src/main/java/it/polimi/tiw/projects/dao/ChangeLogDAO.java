@@ -0,0 +1,209 @@
+package it.polimi.tiw.projects.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.polimi.tiw.projects.beans.LibraryDelta;
+import it.polimi.tiw.projects.beans.Playlist;
+import it.polimi.tiw.projects.beans.Song;
+
+/**
+ * Accesso alla tabella ChangeLog: le modifiche alla libreria di ogni utente (canzoni e playlist),
+ * registrate dai DAO nella stessa transazione della modifica, da cui /api/sync ricava le differenze
+ * rispetto all'ultima versione vista dal client.
+ * Ogni modifica incrementa User.changeVersion: l'aggiornamento blocca la riga dell'utente, quindi le
+ * versioni di un utente diventano visibili in ordine e senza buchi (una transazione annullata non
+ * consuma la versione). Un client che ha visto la versione N deve solo leggere le righe con version > N.
+ */
+public class ChangeLogDAO {
+	public static final String SONG = "song";
+	public static final String PLAYLIST = "playlist";
+	public static final String UPSERT = "upsert";
+	public static final String DELETE = "delete";
+
+	// Versioni conservate per utente: un client più indietro riceve di nuovo la libreria completa
+	private static final int MAX_VERSIONS_KEPT = 1000;
+	// Le righe più vecchie vengono eliminate una volta ogni PRUNE_EVERY versioni
+	private static final int PRUNE_EVERY = 100;
+	// Numero massimo di ID in una singola lista IN (...)
+	private static final int IN_LIST_CHUNK_SIZE = 500;
+
+	private Connection connection;
+
+	public ChangeLogDAO (Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Registra la modifica di una canzone o di una playlist dell'utente.
+	 * Va chiamato nella transazione della modifica, dopo le altre scritture (blocca la riga User fino al commit).
+	 * @return La nuova versione della libreria dell'utente
+	 */
+	public long record(int userID, String entity, int entityID, String action) throws SQLException {
+	    String increment = "UPDATE User SET changeVersion = changeVersion + 1 WHERE ID = ?";
+	    String insert = "INSERT INTO ChangeLog (userID, version, entity, entityID, action) VALUES (?, ?, ?, ?, ?)";
+
+	    try (PreparedStatement pstatement = connection.prepareStatement(increment)) {
+	        pstatement.setInt(1, userID);
+	        if (pstatement.executeUpdate() == 0) {
+	            throw new SQLException("User " + userID + " not found");
+	        }
+	    }
+	    long version = readVersion(userID);
+	    try (PreparedStatement pstatement = connection.prepareStatement(insert)) {
+	        pstatement.setInt(1, userID);
+	        pstatement.setLong(2, version);
+	        pstatement.setString(3, entity);
+	        pstatement.setInt(4, entityID);
+	        pstatement.setString(5, action);
+	        pstatement.executeUpdate();
+	    }
+	    if (version % PRUNE_EVERY == 0) {
+	        String prune = "DELETE FROM ChangeLog WHERE userID = ? AND version <= ?";
+	        try (PreparedStatement pstatement = connection.prepareStatement(prune)) {
+	            pstatement.setInt(1, userID);
+	            pstatement.setLong(2, version - MAX_VERSIONS_KEPT);
+	            pstatement.executeUpdate();
+	        }
+	    }
+	    return version;
+	}
+
+	/**
+	 * Calcola le modifiche alla libreria dell'utente successive alla versione since, in una sola transazione
+	 * (le canzoni e le playlist restituite corrispondono esattamente alla versione indicata nel risultato).
+	 * Se since è null, successiva alla versione corrente o troppo vecchia (righe già eliminate)
+	 * il risultato ha reset = true e nessun dato: il client deve ricaricare la libreria completa.
+	 */
+	public LibraryDelta getDeltaSince(int userID, Long since) throws SQLException {
+	    boolean originalAutoCommit = connection.getAutoCommit();
+	    int originalIsolation = connection.getTransactionIsolation();
+	    try {
+	        // Snapshot consistente per tutte le letture
+	        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+	        connection.setAutoCommit(false);
+
+	        LibraryDelta delta = new LibraryDelta();
+	        long version = readVersion(userID);
+	        delta.setVersion(version);
+	        if (since == null || since < 0 || since > version) {
+	            delta.setReset(true);
+	            connection.commit();
+	            return delta;
+	        }
+
+	        // Per ogni entità conta solo l'ultima modifica
+	        Map<Integer, String> songActions = new LinkedHashMap<>();
+	        Map<Integer, String> playlistActions = new LinkedHashMap<>();
+	        String query = "SELECT version, entity, entityID, action FROM ChangeLog " +
+	                "WHERE userID = ? AND version > ? AND version <= ? ORDER BY version";
+	        long found = 0;
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            pstatement.setInt(1, userID);
+	            pstatement.setLong(2, since);
+	            pstatement.setLong(3, version);
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    found++;
+	                    Map<Integer, String> actions = SONG.equals(result.getString("entity")) ? songActions : playlistActions;
+	                    int entityID = result.getInt("entityID");
+	                    // Reinserita in fondo: l'ordine segue l'ultima modifica
+	                    actions.remove(entityID);
+	                    actions.put(entityID, result.getString("action"));
+	                }
+	            }
+	        }
+	        if (found != version - since) {
+	            // Le versioni sono consecutive: se ne manca qualcuna è stata eliminata da record
+	            delta.setReset(true);
+	            connection.commit();
+	            return delta;
+	        }
+
+	        List<Song> songs = new SongDAO(connection).getSongsByIDsAndUser(idsWithAction(songActions, UPSERT), userID);
+	        List<Playlist> playlists = new PlaylistDAO(connection).getPlaylistsByIDsAndUser(idsWithAction(playlistActions, UPSERT), userID);
+	        // Un'entità aggiornata ma non più presente viene trattata come eliminata
+	        for (Song song : songs) {
+	            songActions.remove(song.getID());
+	        }
+	        for (Playlist playlist : playlists) {
+	            playlistActions.remove(playlist.getID());
+	        }
+	        delta.setSongs(songs);
+	        delta.setPlaylists(playlists);
+	        delta.setDeletedSongIDs(new ArrayList<>(songActions.keySet()));
+	        delta.setDeletedPlaylistIDs(new ArrayList<>(playlistActions.keySet()));
+	        connection.commit();
+	        return delta;
+	    } catch (SQLException e) {
+	        connection.rollback();
+	        throw e;
+	    } finally {
+	        connection.setAutoCommit(originalAutoCommit);
+	        connection.setTransactionIsolation(originalIsolation);
+	    }
+	}
+
+	/**
+	 * Restituisce la versione corrente della libreria di ogni utente indicato (gli utenti inesistenti mancano)
+	 */
+	public Map<Integer, Long> getVersions(Collection<Integer> userIDs) throws SQLException {
+	    Map<Integer, Long> versions = new HashMap<>();
+	    List<Integer> ids = new ArrayList<>(userIDs);
+	    for (int start = 0; start < ids.size(); start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, ids.size());
+	        String query = "SELECT ID, changeVersion FROM User WHERE ID IN (" +
+	                String.join(",", Collections.nCopies(end - start, "?")) + ")";
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            for (int i = start; i < end; i++) {
+	                pstatement.setInt(i - start + 1, ids.get(i));
+	            }
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    versions.put(result.getInt("ID"), result.getLong("changeVersion"));
+	                }
+	            }
+	        }
+	    }
+	    return versions;
+	}
+
+	/**
+	 * Restituisce la versione corrente della libreria dell'utente
+	 */
+	public long getVersion(int userID) throws SQLException {
+	    return readVersion(userID);
+	}
+
+	private long readVersion(int userID) throws SQLException {
+	    String query = "SELECT changeVersion FROM User WHERE ID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, userID);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            if (!result.next()) {
+	                throw new SQLException("User " + userID + " not found");
+	            }
+	            return result.getLong(1);
+	        }
+	    }
+	}
+
+	private static List<Integer> idsWithAction(Map<Integer, String> actions, String action) {
+	    List<Integer> ids = new ArrayList<>();
+	    for (Map.Entry<Integer, String> entry : actions.entrySet()) {
+	        if (action.equals(entry.getValue())) {
+	            ids.add(entry.getKey());
+	        }
+	    }
+	    return ids;
+	}
+}
@@ -0,0 +1,113 @@
+package it.polimi.tiw.projects.dao;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import it.polimi.tiw.projects.beans.FileTombstone;
+import it.polimi.tiw.projects.utils.FileStorageManager;
+
+/**
+ * Accesso alla tabella FileTombstone: i file da eliminare, registrati nella stessa transazione
+ * che li rende inutili (eliminazione di canzoni e account) e rimossi a blocchi da StorageSweeper.
+ * Se la transazione viene annullata non resta nessuna riga; se il server si ferma le righe restano
+ * e i file vengono eliminati al passaggio successivo.
+ */
+public class FileTombstoneDAO {
+	// Numero massimo di ID in una singola lista IN (...)
+	private static final int IN_LIST_CHUNK_SIZE = 500;
+
+	private Connection connection;
+
+	public FileTombstoneDAO (Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Registra i file da eliminare: i blob staccati da MediaBlobDAO.releaseReferences e i file con nome
+	 * univoco della lista (i blob indirizzati per contenuto della lista vengono ignorati: se ne occupa il
+	 * conteggio dei riferimenti). Va chiamato nella transazione dell'eliminazione.
+	 */
+	public void addTombstones(Collection<Path> detachedBlobs, Collection<String> relativePaths) throws SQLException {
+	    String query = "INSERT INTO FileTombstone (path, detachedBlob) VALUES (?, ?)";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        int count = 0;
+	        for (Path detached : detachedBlobs) {
+	            pstatement.setString(1, detached.getFileName().toString());
+	            pstatement.setBoolean(2, true);
+	            pstatement.addBatch();
+	            count++;
+	        }
+	        for (String path : relativePaths) {
+	            if (path != null && !path.isEmpty() && !FileStorageManager.isContentAddressedPath(path)) {
+	                pstatement.setString(1, path);
+	                pstatement.setBoolean(2, false);
+	                pstatement.addBatch();
+	                count++;
+	            }
+	        }
+	        if (count > 0) {
+	            pstatement.executeBatch();
+	        }
+	    }
+	}
+
+	/**
+	 * Restituisce fino a limit righe con ID maggiore di afterId, in ordine di ID
+	 * (permette di scorrere la tabella a blocchi anche se alcune righe non si riescono a eliminare)
+	 */
+	public List<FileTombstone> getBatch(long afterId, int limit) throws SQLException {
+	    String query = "SELECT ID, path, detachedBlob FROM FileTombstone WHERE ID > ? ORDER BY ID LIMIT ?";
+	    List<FileTombstone> tombstones = new ArrayList<>();
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setLong(1, afterId);
+	        pstatement.setInt(2, limit);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            while (result.next()) {
+	                FileTombstone tombstone = new FileTombstone();
+	                tombstone.setID(result.getLong("ID"));
+	                tombstone.setPath(result.getString("path"));
+	                tombstone.setDetachedBlob(result.getBoolean("detachedBlob"));
+	                tombstones.add(tombstone);
+	            }
+	        }
+	    }
+	    return tombstones;
+	}
+
+	/**
+	 * Elimina le righe dei file già rimossi
+	 */
+	public void deleteTombstones(List<Long> tombstoneIDs) throws SQLException {
+	    for (int start = 0; start < tombstoneIDs.size(); start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, tombstoneIDs.size());
+	        String query = "DELETE FROM FileTombstone WHERE ID IN (" +
+	                String.join(",", Collections.nCopies(end - start, "?")) + ")";
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            for (int i = start; i < end; i++) {
+	                pstatement.setLong(i - start + 1, tombstoneIDs.get(i));
+	            }
+	            pstatement.executeUpdate();
+	        }
+	    }
+	}
+
+	/**
+	 * Indica se l'eliminazione del blob staccato è registrata
+	 */
+	public boolean hasDetachedBlob(String detachedName) throws SQLException {
+	    String query = "SELECT 1 FROM FileTombstone WHERE path = ? AND detachedBlob = TRUE LIMIT 1";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setString(1, detachedName);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            return result.next();
+	        }
+	    }
+	}
+}
@@ -0,0 +1,150 @@
+package it.polimi.tiw.projects.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+
+import it.polimi.tiw.projects.beans.Job;
+
+/**
+ * Accesso alla tabella Job, la coda persistente dei lavori in background eseguiti da JobQueue.
+ * Un lavoro è PENDING finché non viene preso da un worker (RUNNING); quando termina la riga
+ * viene eliminata, dopo l'ultimo tentativo fallito resta FAILED con l'errore.
+ */
+public class JobDAO {
+	// Lunghezza della colonna lastError
+	private static final int MAX_ERROR_LENGTH = 1000;
+
+	private Connection connection;
+
+	public JobDAO (Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Accoda un lavoro. Va chiamato dentro la transazione che rende il lavoro necessario:
+	 * se la transazione viene annullata, anche il lavoro sparisce.
+	 */
+	public void enqueue(String type, String payload) throws SQLException {
+	    String query = "INSERT INTO Job (type, payload) VALUES (?, ?)";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setString(1, type);
+	        pstatement.setString(2, payload);
+	        pstatement.executeUpdate();
+	    }
+	}
+
+	/**
+	 * Prende il lavoro pronto più vecchio tra i tipi indicati e lo segna RUNNING per il proprietario dato.
+	 * Con SKIP LOCKED i worker (anche di altre istanze) non si bloccano sulle righe già prese da altri.
+	 * @return null se non ci sono lavori pronti
+	 */
+	public Job claimNext(Collection<String> types, String owner) throws SQLException {
+	    if (types.isEmpty()) {
+	        return null;
+	    }
+	    String select = "SELECT ID, type, payload, attempts FROM Job " +
+	            "WHERE status = 'PENDING' AND runAfter <= NOW(3) AND type IN (" +
+	            String.join(",", Collections.nCopies(types.size(), "?")) + ") " +
+	            "ORDER BY runAfter, ID LIMIT 1 FOR UPDATE SKIP LOCKED";
+	    String update = "UPDATE Job SET status = 'RUNNING', attempts = attempts + 1, lockedBy = ?, lockedAt = NOW(3) WHERE ID = ?";
+
+	    boolean originalAutoCommit = connection.getAutoCommit();
+	    try {
+	        connection.setAutoCommit(false);
+	        Job job = null;
+	        try (PreparedStatement pstatement = connection.prepareStatement(select)) {
+	            int index = 1;
+	            for (String type : types) {
+	                pstatement.setString(index++, type);
+	            }
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                if (result.next()) {
+	                    job = new Job();
+	                    job.setID(result.getLong("ID"));
+	                    job.setType(result.getString("type"));
+	                    job.setPayload(result.getString("payload"));
+	                    job.setAttempts(result.getInt("attempts") + 1);
+	                }
+	            }
+	        }
+	        if (job != null) {
+	            try (PreparedStatement pstatement = connection.prepareStatement(update)) {
+	                pstatement.setString(1, owner);
+	                pstatement.setLong(2, job.getID());
+	                pstatement.executeUpdate();
+	            }
+	        }
+	        connection.commit();
+	        return job;
+	    } catch (SQLException e) {
+	        connection.rollback();
+	        throw e;
+	    } finally {
+	        connection.setAutoCommit(originalAutoCommit);
+	    }
+	}
+
+	/**
+	 * Elimina un lavoro terminato con successo
+	 */
+	public void complete(long jobId) throws SQLException {
+	    String query = "DELETE FROM Job WHERE ID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setLong(1, jobId);
+	        pstatement.executeUpdate();
+	    }
+	}
+
+	/**
+	 * Rimette in coda un lavoro fallito, eseguibile di nuovo dopo delayMs millisecondi
+	 */
+	public void retry(long jobId, long delayMs, String error) throws SQLException {
+	    String query = "UPDATE Job SET status = 'PENDING', runAfter = NOW(3) + INTERVAL ? MICROSECOND, " +
+	            "lockedBy = NULL, lockedAt = NULL, lastError = ? WHERE ID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setLong(1, delayMs * 1000);
+	        pstatement.setString(2, truncate(error));
+	        pstatement.setLong(3, jobId);
+	        pstatement.executeUpdate();
+	    }
+	}
+
+	/**
+	 * Segna come fallito definitivamente un lavoro che ha esaurito i tentativi (la riga resta per l'analisi)
+	 */
+	public void fail(long jobId, String error) throws SQLException {
+	    String query = "UPDATE Job SET status = 'FAILED', lockedBy = NULL, lockedAt = NULL, lastError = ? WHERE ID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setString(1, truncate(error));
+	        pstatement.setLong(2, jobId);
+	        pstatement.executeUpdate();
+	    }
+	}
+
+	/**
+	 * Rimette in coda i lavori rimasti RUNNING: quelli del proprietario dato (interrotti dall'arresto
+	 * precedente di questa istanza; null per non considerarli) e quelli presi da più di staleSeconds secondi
+	 * (istanza terminata senza rilasciarli)
+	 * @return Il numero di lavori rimessi in coda
+	 */
+	public int releaseInterrupted(String owner, int staleSeconds) throws SQLException {
+	    String query = "UPDATE Job SET status = 'PENDING', lockedBy = NULL, lockedAt = NULL " +
+	            "WHERE status = 'RUNNING' AND (lockedBy = ? OR lockedAt < NOW(3) - INTERVAL ? SECOND)";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setString(1, owner);
+	        pstatement.setInt(2, staleSeconds);
+	        return pstatement.executeUpdate();
+	    }
+	}
+
+	private static String truncate(String error) {
+	    if (error == null || error.length() <= MAX_ERROR_LENGTH) {
+	        return error;
+	    }
+	    return error.substring(0, MAX_ERROR_LENGTH);
+	}
+}
@@ -0,0 +1,175 @@
+package it.polimi.tiw.projects.dao;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import it.polimi.tiw.projects.utils.FileStorageManager;
+
+/**
+ * Conteggio dei riferimenti ai file indirizzati per contenuto: lo stesso blob può essere
+ * usato da più canzoni (anche di utenti diversi) e viene eliminato solo all'ultimo rilascio.
+ * I metodi vanno chiamati dentro la transazione che inserisce o elimina le canzoni.
+ * I percorsi non indirizzati per contenuto (file con nome UUID) vengono ignorati.
+ */
+public class MediaBlobDAO {
+	private Connection connection;
+	
+	public MediaBlobDAO (Connection connection) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * Aggiunge un riferimento al blob, creando la riga se è il primo.
+	 * L'upsert blocca la riga fino al commit: se nel frattempo un'eliminazione concorrente
+	 * ha già rimosso il file, l'operazione fallisce e l'upload va ripetuto.
+	 */
+	public void addReference(String relativePath) throws SQLException {
+	    if (!FileStorageManager.isContentAddressedPath(relativePath)) {
+	        return;
+	    }
+	    Path blob = FileStorageManager.validateAndNormalizePath(relativePath);
+	    long size;
+	    try {
+	        size = Files.size(blob);
+	    } catch (IOException e) {
+	        throw new SQLException("Stored file " + relativePath + " is no longer available, upload it again", e);
+	    }
+	    
+	    String query = "INSERT INTO MediaBlob (path, sha256, size, refCount) VALUES (?, ?, ?, 1) " +
+	            "ON DUPLICATE KEY UPDATE refCount = refCount + 1";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setString(1, relativePath);
+	        pstatement.setString(2, FileStorageManager.getBlobHash(relativePath));
+	        pstatement.setLong(3, size);
+	        pstatement.executeUpdate();
+	    }
+	    
+	    if (!Files.exists(blob)) {
+	        throw new SQLException("Stored file " + relativePath + " was removed concurrently, upload it again");
+	    }
+	}
+	
+	/**
+	 * Rilascia un riferimento per ogni percorso della lista (un percorso può comparire più volte).
+	 * I blob rimasti senza riferimenti vengono staccati dallo storage prima del commit: la loro eliminazione
+	 * va registrata nella stessa transazione con FileTombstoneDAO.addTombstones, dopo un rollback vanno ripristinati
+	 * con FileStorageManager.restoreDetachedBlobs.
+	 * @return I blob staccati, per percorso relativo
+	 */
+	public Map<String, Path> releaseReferences(List<String> relativePaths) throws SQLException {
+	    Map<String, Path> detachedBlobs = new LinkedHashMap<>();
+	    String decrement = "UPDATE MediaBlob SET refCount = refCount - 1 WHERE path = ? AND refCount > 0";
+	    String deleteUnused = "DELETE FROM MediaBlob WHERE path = ? AND refCount = 0";
+	    
+	    try (PreparedStatement decrementStatement = connection.prepareStatement(decrement);
+	         PreparedStatement deleteStatement = connection.prepareStatement(deleteUnused)) {
+	        for (String relativePath : relativePaths) {
+	            if (!FileStorageManager.isContentAddressedPath(relativePath)) {
+	                continue;
+	            }
+	            decrementStatement.setString(1, relativePath);
+	            if (decrementStatement.executeUpdate() == 0) {
+	                continue;
+	            }
+	            deleteStatement.setString(1, relativePath);
+	            if (deleteStatement.executeUpdate() == 0) {
+	                continue;
+	            }
+	            try {
+	                Path detached = FileStorageManager.detachBlob(relativePath);
+	                if (detached != null) {
+	                    detachedBlobs.put(relativePath, detached);
+	                }
+	            } catch (IOException e) {
+	                FileStorageManager.restoreDetachedBlobs(detachedBlobs);
+	                throw new SQLException("Could not remove stored file " + relativePath, e);
+	            }
+	        }
+	    }
+	    return detachedBlobs;
+	}
+	
+	/**
+	 * Elimina un blob che nessuna canzone usa (trovato dalla scansione dei file orfani, es. un upload fallito
+	 * dopo il salvataggio del file). Blocca la riga MediaBlob (o, se manca, il suo intervallo dell'indice)
+	 * come releaseReferences, così un upload concorrente dello stesso contenuto fallisce invece di riusare
+	 * il file; il blob staccato viene registrato in FileTombstone nella stessa transazione.
+	 * @return true se il blob è stato staccato
+	 */
+	public boolean reclaimOrphan(String relativePath) throws SQLException {
+	    if (!FileStorageManager.isContentAddressedPath(relativePath)) {
+	        return false;
+	    }
+	    String lock = "SELECT refCount FROM MediaBlob WHERE path = ? FOR UPDATE";
+	    String used = "SELECT 1 FROM Song WHERE file = ? OR albumCover = ? LIMIT 1";
+	    String delete = "DELETE FROM MediaBlob WHERE path = ?";
+	    
+	    boolean originalAutoCommit = connection.getAutoCommit();
+	    Path detached = null;
+	    try {
+	        connection.setAutoCommit(false);
+	        // La query serve solo a prendere il blocco
+	        try (PreparedStatement pstatement = connection.prepareStatement(lock)) {
+	            pstatement.setString(1, relativePath);
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                result.next();
+	            }
+	        }
+	        try (PreparedStatement pstatement = connection.prepareStatement(used)) {
+	            pstatement.setString(1, relativePath);
+	            pstatement.setString(2, relativePath);
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                if (result.next()) {
+	                    connection.rollback();
+	                    return false;
+	                }
+	            }
+	        }
+	        try (PreparedStatement pstatement = connection.prepareStatement(delete)) {
+	            pstatement.setString(1, relativePath);
+	            pstatement.executeUpdate();
+	        }
+	        try {
+	            detached = FileStorageManager.detachBlob(relativePath);
+	        } catch (IOException e) {
+	            throw new SQLException("Could not remove stored file " + relativePath, e);
+	        }
+	        if (detached != null) {
+	            new FileTombstoneDAO(connection).addTombstones(
+	                    Collections.singletonList(detached), Collections.emptyList());
+	        }
+	        connection.commit();
+	        return detached != null;
+	    } catch (SQLException e) {
+	        connection.rollback();
+	        if (detached != null) {
+	            FileStorageManager.restoreDetachedBlobs(Collections.singletonMap(relativePath, detached));
+	        }
+	        throw e;
+	    } finally {
+	        connection.setAutoCommit(originalAutoCommit);
+	    }
+	}
+	
+	/**
+	 * Restituisce il percorso del blob con l'hash dato, null se non è registrato
+	 */
+	public String getPathBySha256(String sha256) throws SQLException {
+	    String query = "SELECT path FROM MediaBlob WHERE sha256 = ? LIMIT 1";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setString(1, sha256);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            return result.next() ? result.getString("path") : null;
+	        }
+	    }
+	}
+}
@@ -6,16 +6,32 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.sql.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import it.polimi.tiw.projects.beans.Playlist;
 import it.polimi.tiw.projects.beans.Song;
+import it.polimi.tiw.projects.utils.LibraryCache;
+import it.polimi.tiw.projects.utils.LibraryEvents;
 
 public class PlaylistDAO {
+	// Numero massimo di righe per ogni executeBatch
+	private static final int INSERT_BATCH_SIZE = 1000;
+	// Numero massimo di ID in una singola lista IN (...)
+	private static final int IN_LIST_CHUNK_SIZE = 500;
+	// Ordine di visualizzazione: prima l'ordine personalizzato, poi artista e anno (ID per stabilità)
+	private static final String SONG_ORDER_BY =
+	        "ORDER BY ps.customOrder IS NULL, ps.customOrder, s.albumArtist ASC, s.albumReleaseYear ASC, s.ID ASC";
+	// Distanza tra chiavi customOrder consecutive: lascia spazio per spostare una canzone aggiornando una sola riga
+	private static final int ORDER_KEY_STEP = 1024;
+	
 	private Connection connection;
 	
 	public PlaylistDAO (Connection connection) {
@@ -36,17 +52,21 @@ public class PlaylistDAO {
 	            throw new SQLException("Playlist with name '" + name + "' already exists for this user.");
 	        }
 	        
+	        // Verifica in blocco che tutte le canzoni appartengano all'utente
+	        SongDAO songDAO = new SongDAO(connection);
+	        Set<Integer> invalidSongIDs = songDAO.findInvalidSongIDs(songIDs, userID);
+	        if (!invalidSongIDs.isEmpty()) {
+	            throw new SQLException("Song IDs " + invalidSongIDs + " do not belong to user " + userID);
+	        }
+	        
 	        playlistID = insertPlaylistAndGetId(name, userID);
 	        
-	        SongDAO songDAO = new SongDAO(connection); // Assuming SongDAO is available and connection managed
-	        for (int songID : songIDs) {
-	            if (!songDAO.songBelongsToUser(songID, userID)) {
-	                throw new SQLException("Song ID " + songID + " does not belong to user " + userID);
-	            }
-	            addSongToPlaylistAssociation(playlistID, songID);
-	        }
+	        addSongAssociationsBatch(playlistID, songIDs, null);
+	        long version = new ChangeLogDAO(connection).record(userID, ChangeLogDAO.PLAYLIST, playlistID, ChangeLogDAO.UPSERT);
 	        
 	        connection.commit();
+	        LibraryCache.getInstance().invalidatePlaylists(userID);
+	        LibraryEvents.publish(userID, version, ChangeLogDAO.PLAYLIST, playlistID, ChangeLogDAO.UPSERT);
 	        
 	        // After successful commit, fetch the created playlist with its songs
 	        return getPlaylistByIdAndUser(playlistID, userID, true); // true to fetch songs
@@ -92,14 +112,39 @@ public class PlaylistDAO {
         }
     }
 	
-	// Renamed from addSongToPlaylist for clarity
-	private void addSongToPlaylistAssociation(int playlistID, int songID) throws SQLException {
-        String query = "INSERT INTO PlaylistSong (playlistID, songID, customOrder) VALUES (?, ?, NULL)"; // Assuming customOrder can be NULL initially
+	/**
+	 * Inserisce le associazioni playlist-canzone in batch (un solo statement preparato,
+	 * riscritto in INSERT multi-riga dal driver con rewriteBatchedStatements).
+	 * Le canzoni già presenti nella playlist vengono ignorate. Se firstOrder non è null
+	 * le canzoni ricevono un customOrder crescente (passo ORDER_KEY_STEP) a partire da firstOrder
+	 * (eventuali duplicati lasciano un buco nella sequenza, che resta comunque ordinata).
+	 */
+	private void addSongAssociationsBatch(int playlistID, int[] songIDs, Integer firstOrder) throws SQLException {
+        String query = "INSERT INTO PlaylistSong (playlistID, songID, customOrder) VALUES (?, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE songID = songID";
         
         try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-            pstatement.setInt(1, playlistID);
-            pstatement.setInt(2, songID);
-            pstatement.executeUpdate();
+            int order = firstOrder != null ? firstOrder : 0;
+            int pending = 0;
+            for (int songID : songIDs) {
+                pstatement.setInt(1, playlistID);
+                pstatement.setInt(2, songID);
+                if (firstOrder != null) {
+                    pstatement.setInt(3, order);
+                    order += ORDER_KEY_STEP;
+                } else {
+                    pstatement.setNull(3, Types.INTEGER);
+                }
+                pstatement.addBatch();
+                
+                if (++pending == INSERT_BATCH_SIZE) {
+                    pstatement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                pstatement.executeBatch();
+            }
         }
     }
 
@@ -117,6 +162,15 @@ public class PlaylistDAO {
 	}
 
 	public List<Playlist> getAllPlaylistsByUserId(int userID) throws SQLException {
+	    // Prima la cache: vale solo per la versione corrente della libreria, letta prima dei dati
+	    LibraryCache cache = LibraryCache.getInstance();
+	    long version = new ChangeLogDAO(connection).getVersion(userID);
+	    List<Playlist> cached = cache.getPlaylists(userID, version);
+	    if (cached != null) {
+	        return cached;
+	    }
+	    LibraryCache.Entry entry = cache.entryFor(userID, version);
+		
 		String query = "SELECT * FROM Playlist WHERE userID = ? ORDER BY creationDate DESC;";
 	    List<Playlist> playlists = new ArrayList<>();
 	    
@@ -136,6 +190,35 @@ public class PlaylistDAO {
 	            }
 	        }
 	    }
+	    return cache.putPlaylists(userID, entry, playlists);
+	}
+	
+	/**
+	 * Restituisce le playlist dell'utente con gli ID indicati, senza canzoni e senza passare dalla cache
+	 */
+	public List<Playlist> getPlaylistsByIDsAndUser(List<Integer> playlistIDs, int userID) throws SQLException {
+	    List<Playlist> playlists = new ArrayList<>();
+	    for (int start = 0; start < playlistIDs.size(); start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, playlistIDs.size());
+	        String query = "SELECT * FROM Playlist WHERE userID = ? AND ID IN (" +
+	                String.join(",", Collections.nCopies(end - start, "?")) + ")";
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            pstatement.setInt(1, userID);
+	            for (int i = start; i < end; i++) {
+	                pstatement.setInt(i - start + 2, playlistIDs.get(i));
+	            }
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    Playlist playlist = new Playlist();
+	                    playlist.setID(result.getInt("ID"));
+	                    playlist.setUserID(result.getInt("userID"));
+	                    playlist.setName(result.getString("name"));
+	                    playlist.setCreationDate(result.getDate("creationDate"));
+	                    playlists.add(playlist);
+	                }
+	            }
+	        }
+	    }
 	    return playlists;
 	}
 	
@@ -157,14 +240,12 @@ public class PlaylistDAO {
 	                playlist.setUserID(result.getInt("userID"));
 	                playlist.setName(result.getString("name"));
 	                playlist.setCreationDate(result.getDate("creationDate"));
-	                if (fetchSongs) {
-	                    playlist.setSongs(getSongsFromPlaylistOrdered(playlist.getID()));
-                        // Also fetch custom order if exists
-                        playlist.setCustomSongOrder(getCustomSongOrder(playlist.getID()));
-	                }
 	            }
 	        }
 	    }
+	    if (playlist != null && fetchSongs) {
+	        return getPlaylistByIdAndUser(playlist.getID(), userId, true);
+	    }
 	    return playlist;
 	}
 
@@ -173,6 +254,9 @@ public class PlaylistDAO {
     }
 
 	public Playlist getPlaylistByIdAndUser(int playlistId, int userId, boolean fetchSongs) throws SQLException {
+	    if (fetchSongs) {
+	        return loadPlaylistWithSongs(playlistId, userId);
+	    }
 	    String query = "SELECT * FROM Playlist WHERE ID = ? AND userID = ?";
 	    Playlist playlist = null;
 	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
@@ -185,69 +269,169 @@ public class PlaylistDAO {
 	                playlist.setUserID(result.getInt("userID"));
 	                playlist.setName(result.getString("name"));
 	                playlist.setCreationDate(result.getDate("creationDate"));
-	                if (fetchSongs) {
-	                    playlist.setSongs(getSongsFromPlaylistOrdered(playlist.getID()));
-                        playlist.setCustomSongOrder(getCustomSongOrder(playlist.getID()));
+	            }
+	        }
+	    }
+	    return playlist;
+	}
+	
+	/**
+	 * Carica intestazione, canzoni ordinate e vettore dell'ordine personalizzato con una sola query.
+	 * Le canzoni con customOrder vengono prima (in quell'ordine), le altre seguono per artista e anno.
+	 */
+	private Playlist loadPlaylistWithSongs(int playlistId, int userId) throws SQLException {
+	    String query = "SELECT p.ID AS playlistID, p.userID AS playlistUserID, p.name AS playlistName, p.creationDate, " +
+	                   "s.ID, s.userID, s.name, s.albumName, s.albumArtist, s.albumReleaseYear, s.albumCover, s.file, " +
+	                   "s.durationMs, s.bitrate, s.sampleRate, s.channels, s.codec, s.hlsPlaylist, " +
+	                   "g.name AS genreName, ps.customOrder " +
+	                   "FROM Playlist p " +
+	                   "LEFT JOIN PlaylistSong ps ON ps.playlistID = p.ID " +
+	                   "LEFT JOIN Song s ON s.ID = ps.songID " +
+	                   "LEFT JOIN Genre g ON g.ID = s.genreID " +
+	                   "WHERE p.ID = ? AND p.userID = ? " +
+	                   SONG_ORDER_BY;
+	    Playlist playlist = null;
+	    List<Song> songs = new ArrayList<>();
+	    List<Integer> customOrder = new ArrayList<>();
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        pstatement.setInt(2, userId);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            while (result.next()) {
+	                if (playlist == null) {
+	                    playlist = new Playlist();
+	                    playlist.setID(result.getInt("playlistID"));
+	                    playlist.setUserID(result.getInt("playlistUserID"));
+	                    playlist.setName(result.getString("playlistName"));
+	                    playlist.setCreationDate(result.getDate("creationDate"));
+	                }
+	                if (result.getObject("ID") == null) {
+	                    continue; // Playlist vuota: solo la riga dell'intestazione
+	                }
+	                Song song = mapRowToSong(result);
+	                songs.add(song);
+	                if (result.getObject("customOrder") != null) {
+	                    customOrder.add(song.getID());
 	                }
 	            }
 	        }
 	    }
+	    if (playlist != null) {
+	        playlist.setSongs(songs);
+	        playlist.setCustomSongOrder(customOrder.isEmpty() ? null : customOrder);
+	    }
 	    return playlist;
 	}
 	
-    // Renamed from getSongsFromPlaylist to getSongsFromPlaylistOrdered for clarity
 	public List<Song> getSongsFromPlaylistOrdered(int playlistId) throws SQLException {
-	    // Check if custom order exists
-        List<Integer> customOrder = getCustomSongOrder(playlistId);
-        List<Song> songs = new ArrayList<>();
-        String query;
-
-        if (customOrder != null && !customOrder.isEmpty()) {
-            // Fetch songs based on custom order
-            query = "SELECT s.*, g.name as genreName, ps.customOrder " +
-                    "FROM Song s " +
-                    "JOIN PlaylistSong ps ON s.ID = ps.songID " +
-                    "JOIN Genre g ON s.genreID = g.ID " +
-                    "WHERE ps.playlistID = ?";
-            Map<Integer, Song> songMap = new HashMap<>();
-             try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-                pstatement.setInt(1, playlistId);
-                try (ResultSet result = pstatement.executeQuery()) {
-                    while (result.next()) {
-                        Song song = mapRowToSong(result);
-                        songMap.put(song.getID(), song);
-                    }
-                }
-            }
-            for(Integer songId : customOrder) {
-                if(songMap.containsKey(songId)) {
-                    songs.add(songMap.get(songId));
-                }
-            }
-
-        } else {
-            // Fetch songs with default order: artist, then year
-            query = "SELECT s.*, g.name as genreName, ps.customOrder " +
-                    "FROM Song s " +
-                    "JOIN PlaylistSong ps ON s.ID = ps.songID " +
-                    "JOIN Genre g ON s.genreID = g.ID " +
-                    "WHERE ps.playlistID = ? " +
-                    "ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC";
-            try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-                pstatement.setInt(1, playlistId);
-                try (ResultSet result = pstatement.executeQuery()) {
-                    while (result.next()) {
-                        songs.add(mapRowToSong(result));
-                    }
-                }
-            }
-        }
+	    String query = "SELECT s.*, g.name as genreName, ps.customOrder " +
+	                   "FROM Song s " +
+	                   "JOIN PlaylistSong ps ON s.ID = ps.songID " +
+	                   "JOIN Genre g ON s.genreID = g.ID " +
+	                   "WHERE ps.playlistID = ? " +
+	                   SONG_ORDER_BY;
+	    List<Song> songs = new ArrayList<>();
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            while (result.next()) {
+	                songs.add(mapRowToSong(result));
+	            }
+	        }
+	    }
+	    return songs;
+	}
+	
+	public int countSongsInPlaylist(int playlistId) throws SQLException {
+	    String query = "SELECT COUNT(*) FROM PlaylistSong WHERE playlistID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            return result.next() ? result.getInt(1) : 0;
+	        }
+	    }
+	}
+	
+	/**
+	 * Keyset pagination: al massimo limit canzoni che seguono afterSongId nell'ordine di visualizzazione.
+	 * Il cursore è confrontato come tupla (customOrder IS NULL, customOrder, artista, anno, ID),
+	 * coerente con SONG_ORDER_BY. Con afterSongId = -1 restituisce la prima pagina.
+	 * Restituisce null se afterSongId non è più nella playlist (la sua posizione non è più nota):
+	 * il chiamante ricade sulla paginazione per offset.
+	 * Il cursore evita di scorrere le righe delle pagine precedenti, ma l'ordinamento usa colonne di Song
+	 * oltre a PlaylistSong, quindi nessun indice lo copre: ogni pagina ordina comunque tutte le canzoni
+	 * della playlist e il suo costo cresce con la dimensione della playlist, non con la posizione della pagina.
+	 */
+	public List<Song> getSongsFromPlaylistAfter(int playlistId, int afterSongId, int limit) throws SQLException {
+	    if (afterSongId != -1 && !isSongInPlaylist(playlistId, afterSongId)) {
+	        return null;
+	    }
+	    String query = "SELECT s.*, g.name as genreName, ps.customOrder " +
+	                   "FROM PlaylistSong ps " +
+	                   "JOIN Song s ON s.ID = ps.songID " +
+	                   "JOIN Genre g ON s.genreID = g.ID " +
+	                   "WHERE ps.playlistID = ? " +
+	                   (afterSongId != -1
+	                       ? "AND (ps.customOrder IS NULL, COALESCE(ps.customOrder, 0), s.albumArtist, s.albumReleaseYear, s.ID) > " +
+	                         "(SELECT cps.customOrder IS NULL, COALESCE(cps.customOrder, 0), cs.albumArtist, cs.albumReleaseYear, cs.ID " +
+	                         "FROM PlaylistSong cps JOIN Song cs ON cs.ID = cps.songID " +
+	                         "WHERE cps.playlistID = ? AND cps.songID = ?) "
+	                       : "") +
+	                   SONG_ORDER_BY + " LIMIT ?";
+	    List<Song> songs = new ArrayList<>();
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        int index = 1;
+	        pstatement.setInt(index++, playlistId);
+	        if (afterSongId != -1) {
+	            pstatement.setInt(index++, playlistId);
+	            pstatement.setInt(index++, afterSongId);
+	        }
+	        pstatement.setInt(index, limit);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            while (result.next()) {
+	                songs.add(mapRowToSong(result));
+	            }
+	        }
+	    }
+	    return songs;
+	}
+	
+	private boolean isSongInPlaylist(int playlistId, int songId) throws SQLException {
+	    String query = "SELECT 1 FROM PlaylistSong WHERE playlistID = ? AND songID = ?";
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        pstatement.setInt(2, songId);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            return result.next();
+	        }
+	    }
+	}
+	
+	// Pagina per offset, usata quando il client non fornisce un cursore
+	public List<Song> getSongsFromPlaylistPage(int playlistId, int offset, int limit) throws SQLException {
+	    String query = "SELECT s.*, g.name as genreName, ps.customOrder " +
+	                   "FROM PlaylistSong ps " +
+	                   "JOIN Song s ON s.ID = ps.songID " +
+	                   "JOIN Genre g ON s.genreID = g.ID " +
+	                   "WHERE ps.playlistID = ? " +
+	                   SONG_ORDER_BY + " LIMIT ? OFFSET ?";
+	    List<Song> songs = new ArrayList<>();
+	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	        pstatement.setInt(1, playlistId);
+	        pstatement.setInt(2, limit);
+	        pstatement.setInt(3, offset);
+	        try (ResultSet result = pstatement.executeQuery()) {
+	            while (result.next()) {
+	                songs.add(mapRowToSong(result));
+	            }
+	        }
+	    }
 	    return songs;
 	}
 	
 	public List<Song> getSongsNotInPlaylist(int playlistId, int userId) throws SQLException {
 	    String query = "SELECT s.*, g.name as genreName FROM Song s JOIN Genre g ON s.genreID = g.ID " +
-	                   "WHERE s.userID = ? AND s.ID NOT IN (SELECT ps.songID FROM PlaylistSong ps WHERE ps.playlistID = ?) " +
+	                   "WHERE s.userID = ? AND NOT EXISTS (SELECT 1 FROM PlaylistSong ps WHERE ps.playlistID = ? AND ps.songID = s.ID) " +
 	                   "ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC";
 	    List<Song> songs = new ArrayList<>();
 	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
@@ -267,47 +451,31 @@ public class PlaylistDAO {
 	    try {
 	        connection.setAutoCommit(false);
 	        SongDAO songDAO = new SongDAO(connection);
+	        Set<Integer> invalidSongIDs = songDAO.findInvalidSongIDs(songIDs, userId);
+	        if (!invalidSongIDs.isEmpty()) {
+	            throw new SQLException("Song IDs " + invalidSongIDs + " do not belong to user " + userId);
+	        }
 
-	        // Controlla se la playlist ha già un ordine personalizzato
-	        List<Integer> existingOrder = getCustomSongOrder(playlistId);
-	        boolean hasCustomOrder = (existingOrder != null && !existingOrder.isEmpty());
-	        
-	        // Se non c'è un ordine personalizzato, non impostare customOrder
-	        if (!hasCustomOrder) {
-	            // Aggiungi le canzoni senza customOrder
-	            for (int songID : songIDs) {
-	                if (!songDAO.songBelongsToUser(songID, userId)) {
-	                    throw new SQLException("Song ID " + songID + " does not belong to user " + userId);
-	                }
-	                if (!isSongInPlaylist(playlistId, songID)) {
-	                    addSongToPlaylistAssociation(playlistId, songID); // Usa il metodo senza order
-	                }
-	            }
-	        } else {
-	            // Se c'è già un ordine personalizzato, calcola il maxOrder
-	            int maxOrder = 0;
-	            String maxOrderQuery = "SELECT MAX(customOrder) FROM PlaylistSong WHERE playlistID = ?";
-	            try (PreparedStatement pstatement = connection.prepareStatement(maxOrderQuery)) {
-	                pstatement.setInt(1, playlistId);
-	                try (ResultSet rs = pstatement.executeQuery()) {
-	                    if (rs.next()) {
-	                        maxOrder = rs.getInt(1);
-	                    }
-	                }
-	            }
-
-	            for (int songID : songIDs) {
-	                if (!songDAO.songBelongsToUser(songID, userId)) {
-	                    throw new SQLException("Song ID " + songID + " does not belong to user " + userId);
-	                }
-	                if (!isSongInPlaylist(playlistId, songID)) {
-	                    maxOrder++;
-	                    addSongToPlaylistAssociationWithOrder(playlistId, songID, maxOrder);
+	        // Controlla se la playlist ha già un ordine personalizzato (MAX è NULL se non c'è)
+	        Integer maxOrder = null;
+	        String maxOrderQuery = "SELECT MAX(customOrder) FROM PlaylistSong WHERE playlistID = ?";
+	        try (PreparedStatement pstatement = connection.prepareStatement(maxOrderQuery)) {
+	            pstatement.setInt(1, playlistId);
+	            try (ResultSet rs = pstatement.executeQuery()) {
+	                if (rs.next()) {
+	                    int value = rs.getInt(1);
+	                    maxOrder = rs.wasNull() ? null : value;
 	                }
 	            }
 	        }
 	        
+	        // Senza ordine personalizzato le nuove canzoni non hanno customOrder,
+	        // altrimenti vengono accodate dopo il maxOrder
+	        addSongAssociationsBatch(playlistId, songIDs, maxOrder == null ? null : maxOrder + ORDER_KEY_STEP);
+	        long version = new ChangeLogDAO(connection).record(userId, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.UPSERT);
+	        
 	        connection.commit();
+	        LibraryEvents.publish(userId, version, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.UPSERT);
 	        return true;
 	    } catch (SQLException e) {
 	        connection.rollback();
@@ -317,17 +485,6 @@ public class PlaylistDAO {
 	    }
 	}
 	
-	private boolean isSongInPlaylist(int playlistId, int songId) throws SQLException {
-	    String query = "SELECT COUNT(*) FROM PlaylistSong WHERE playlistID = ? AND songID = ?";
-	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-	        pstatement.setInt(1, playlistId);
-	        pstatement.setInt(2, songId);
-	        try (ResultSet result = pstatement.executeQuery()) {
-	            return result.next() && result.getInt(1) > 0;
-	        }
-	    }
-	}
-	
 	public boolean deletePlaylist(int playlistId, int userId) throws SQLException {
         boolean originalAutoCommit = connection.getAutoCommit();
 	    try {
@@ -349,7 +506,10 @@ public class PlaylistDAO {
 	                connection.rollback(); return false;
 	            }
 	        }
+	        long version = new ChangeLogDAO(connection).record(userId, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.DELETE);
 	        connection.commit();
+	        LibraryCache.getInstance().invalidatePlaylists(userId);
+	        LibraryEvents.publish(userId, version, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.DELETE);
 	        return true;
 	    } catch (SQLException e) {
 	        connection.rollback(); throw e;
@@ -370,6 +530,7 @@ public class PlaylistDAO {
         song.setGenre(result.getString("genreName"));
         song.setAlbumCoverPath(result.getString("albumCover"));
         song.setAudioFilePath(result.getString("file"));
+        SongDAO.mapAudioMetadata(result, song);
         return song;
     }
 
@@ -389,68 +550,100 @@ public class PlaylistDAO {
         return order.isEmpty() ? null : order; // Return null if no custom order set
     }
 
+    /**
+     * Salva un nuovo ordine completo. La validazione e la lettura dello stato corrente
+     * avvengono con una sola query; l'aggiornamento è un unico batch che tocca solo
+     * le righe la cui chiave cambia. Le canzoni non presenti in songIdsInOrder
+     * vengono accodate mantenendo il loro ordine attuale.
+     */
     public void saveCustomSongOrder(int playlistId, List<Integer> songIdsInOrder, int userId) throws SQLException {
         // First, verify playlist belongs to user
         if (getPlaylistByIdAndUser(playlistId, userId) == null) {
             throw new SQLException("Playlist not found or user mismatch.");
         }
-        
-        // Validate that all songIdsInOrder actually belong to this playlist
-        String validateQuery = "SELECT COUNT(*) FROM PlaylistSong WHERE playlistID = ? AND songID = ?";
-        try (PreparedStatement validateStatement = connection.prepareStatement(validateQuery)) {
-            for (Integer songId : songIdsInOrder) {
-                validateStatement.setInt(1, playlistId);
-                validateStatement.setInt(2, songId);
-                try (ResultSet rs = validateStatement.executeQuery()) {
-                    if (rs.next() && rs.getInt(1) == 0) {
-                        throw new SQLException("Song ID " + songId + " does not belong to playlist " + playlistId);
-                    }
+
+        boolean originalAutoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+
+            // Stato corrente della playlist (songID -> chiave), nell'ordine visualizzato
+            LinkedHashMap<Integer, Integer> currentKeys = loadOrderKeys(playlistId);
+
+            // Validate that all songIdsInOrder actually belong to this playlist
+            LinkedHashSet<Integer> newOrder = new LinkedHashSet<>(songIdsInOrder);
+            for (Integer songId : newOrder) {
+                if (!currentKeys.containsKey(songId)) {
+                    throw new SQLException("Song ID " + songId + " does not belong to playlist " + playlistId);
                 }
             }
+            // Songs not in the reorder list go after the ordered ones
+            newOrder.addAll(currentKeys.keySet());
+
+            applyOrderKeys(playlistId, new ArrayList<>(newOrder), currentKeys);
+            long version = new ChangeLogDAO(connection).record(userId, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.UPSERT);
+            connection.commit();
+            LibraryEvents.publish(userId, version, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.UPSERT);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(originalAutoCommit);
+        }
+    }
+
+    /**
+     * Sposta una sola canzone alla posizione indicata (0-based) nell'ordine visualizzato.
+     * Grazie alle chiavi distanziate di ORDER_KEY_STEP di norma viene aggiornata una sola riga;
+     * le chiavi vengono ridistribuite solo quando tra le due vicine non c'è più spazio.
+     * Restituisce false se la canzone non è nella playlist.
+     */
+    public boolean moveSongInPlaylist(int playlistId, int songId, int position, int userId) throws SQLException {
+        if (getPlaylistByIdAndUser(playlistId, userId) == null) {
+            throw new SQLException("Playlist not found or user mismatch.");
         }
 
         boolean originalAutoCommit = connection.getAutoCommit();
         try {
             connection.setAutoCommit(false);
 
-            // Get all songs currently in the playlist
-            List<Integer> allSongsInPlaylist = new ArrayList<>();
-            String getAllSongsQuery = "SELECT songID FROM PlaylistSong WHERE playlistID = ?";
-            try (PreparedStatement getAllStatement = connection.prepareStatement(getAllSongsQuery)) {
-                getAllStatement.setInt(1, playlistId);
-                try (ResultSet rs = getAllStatement.executeQuery()) {
-                    while (rs.next()) {
-                        allSongsInPlaylist.add(rs.getInt("songID"));
-                    }
-                }
+            LinkedHashMap<Integer, Integer> currentKeys = loadOrderKeys(playlistId);
+            if (!currentKeys.containsKey(songId)) {
+                connection.rollback();
+                return false;
             }
-            
-            // Update customOrder for songs in the new order (1-based)
-            String updateQuery = "UPDATE PlaylistSong SET customOrder = ? WHERE playlistID = ? AND songID = ?";
-            try (PreparedStatement pstatement = connection.prepareStatement(updateQuery)) {
-                for (int i = 0; i < songIdsInOrder.size(); i++) {
-                    pstatement.setInt(1, i + 1); // Order is 1-based
-                    pstatement.setInt(2, playlistId);
-                    pstatement.setInt(3, songIdsInOrder.get(i));
-                    pstatement.addBatch();
+
+            List<Integer> order = new ArrayList<>(currentKeys.keySet());
+            order.remove(Integer.valueOf(songId));
+            int target = Math.max(0, Math.min(position, order.size()));
+            order.add(target, songId);
+
+            Integer newKey = null;
+            // Senza ordine personalizzato (chiavi NULL) la prima mossa materializza l'ordine corrente
+            if (!currentKeys.containsValue(null)) {
+                int previousKey = target > 0 ? currentKeys.get(order.get(target - 1)) : 0;
+                int nextKey = target < order.size() - 1 ? currentKeys.get(order.get(target + 1)) : previousKey + 2 * ORDER_KEY_STEP;
+                if (nextKey - previousKey > 1) {
+                    newKey = previousKey + (nextKey - previousKey) / 2;
                 }
-                pstatement.executeBatch();
             }
-            
-            // Assign order to songs not in the reorder list (they go after the ordered ones)
-            int nextOrder = songIdsInOrder.size() + 1;
-            for (Integer songId : allSongsInPlaylist) {
-                if (!songIdsInOrder.contains(songId)) {
-                    try (PreparedStatement pstatement = connection.prepareStatement(updateQuery)) {
-                        pstatement.setInt(1, nextOrder++);
-                        pstatement.setInt(2, playlistId);
-                        pstatement.setInt(3, songId);
-                        pstatement.executeUpdate();
-                    }
+
+            if (newKey != null) {
+                String updateQuery = "UPDATE PlaylistSong SET customOrder = ? WHERE playlistID = ? AND songID = ?";
+                try (PreparedStatement pstatement = connection.prepareStatement(updateQuery)) {
+                    pstatement.setInt(1, newKey);
+                    pstatement.setInt(2, playlistId);
+                    pstatement.setInt(3, songId);
+                    pstatement.executeUpdate();
                 }
+            } else {
+                // Nessuno spazio tra le chiavi vicine: ridistribuisce tutte le chiavi
+                applyOrderKeys(playlistId, order, currentKeys);
             }
+            long version = new ChangeLogDAO(connection).record(userId, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.UPSERT);
 
             connection.commit();
+            LibraryEvents.publish(userId, version, ChangeLogDAO.PLAYLIST, playlistId, ChangeLogDAO.UPSERT);
+            return true;
         } catch (SQLException e) {
             connection.rollback();
             throw e;
@@ -458,15 +651,48 @@ public class PlaylistDAO {
             connection.setAutoCommit(originalAutoCommit);
         }
     }
-    
-    // New method for adding songs with order, used by addSongsToPlaylist
-    private void addSongToPlaylistAssociationWithOrder(int playlistID, int songID, int order) throws SQLException {
-        String query = "INSERT INTO PlaylistSong (playlistID, songID, customOrder) VALUES (?, ?, ?)";
+
+    // Legge le chiavi d'ordine della playlist (NULL se non c'è un ordine personalizzato) nell'ordine visualizzato
+    private LinkedHashMap<Integer, Integer> loadOrderKeys(int playlistId) throws SQLException {
+        String query = "SELECT ps.songID, ps.customOrder FROM PlaylistSong ps JOIN Song s ON s.ID = ps.songID "
+                + "WHERE ps.playlistID = ? "
+                + SONG_ORDER_BY;
+        LinkedHashMap<Integer, Integer> keys = new LinkedHashMap<>();
         try (PreparedStatement pstatement = connection.prepareStatement(query)) {
-            pstatement.setInt(1, playlistID);
-            pstatement.setInt(2, songID);
-            pstatement.setInt(3, order); // Set the order
-            pstatement.executeUpdate();
+            pstatement.setInt(1, playlistId);
+            try (ResultSet rs = pstatement.executeQuery()) {
+                while (rs.next()) {
+                    int key = rs.getInt("customOrder");
+                    keys.put(rs.getInt("songID"), rs.wasNull() ? null : key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    // Assegna chiavi distanziate (ORDER_KEY_STEP, 2*ORDER_KEY_STEP, ...) in un unico batch, saltando le righe invariate
+    private void applyOrderKeys(int playlistId, List<Integer> order, Map<Integer, Integer> currentKeys) throws SQLException {
+        String updateQuery = "UPDATE PlaylistSong SET customOrder = ? WHERE playlistID = ? AND songID = ?";
+        try (PreparedStatement pstatement = connection.prepareStatement(updateQuery)) {
+            int pending = 0;
+            for (int i = 0; i < order.size(); i++) {
+                int songId = order.get(i);
+                int key = (i + 1) * ORDER_KEY_STEP;
+                if (Integer.valueOf(key).equals(currentKeys.get(songId))) {
+                    continue;
+                }
+                pstatement.setInt(1, key);
+                pstatement.setInt(2, playlistId);
+                pstatement.setInt(3, songId);
+                pstatement.addBatch();
+                if (++pending == INSERT_BATCH_SIZE) {
+                    pstatement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                pstatement.executeBatch();
+            }
         }
     }
 
@@ -1,6 +1,7 @@
 package it.polimi.tiw.projects.dao;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
@@ -9,14 +10,40 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import it.polimi.tiw.projects.beans.Song;
 import it.polimi.tiw.projects.utils.FileStorageManager; // Assuming this utility is set up
+import it.polimi.tiw.projects.utils.JobQueue;
+import it.polimi.tiw.projects.utils.LibraryCache;
+import it.polimi.tiw.projects.utils.LibraryEvents;
+import it.polimi.tiw.projects.utils.MediaJobs;
+import it.polimi.tiw.projects.utils.StorageSweeper;
 
 public class SongDAO {
+	// Numero massimo di ID in una singola lista IN (...)
+	private static final int IN_LIST_CHUNK_SIZE = 500;
+	// Canzoni lette per ogni query di forEachSongByUserId
+	private static final int VISIT_CHUNK_SIZE = 500;
+	
 	private Connection connection;
 	
+	/**
+	 * Riceve le canzoni una alla volta da forEachSongByUserId
+	 */
+	@FunctionalInterface
+	public interface SongVisitor {
+	    void visit(Song song) throws IOException;
+	}
+	
 	public SongDAO (Connection connection) {
 		this.connection = connection;
 	}
@@ -42,8 +69,9 @@ public class SongDAO {
 	
 	// Modified to return the created Song object
 	public Song uploadSong(Song song) throws SQLException {
-		String query = "INSERT INTO Song (userID, name, genreID, file, albumCover, albumName, albumArtist, albumReleaseYear) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+		String query = "INSERT INTO Song (userID, name, genreID, file, albumCover, albumName, albumArtist, albumReleaseYear, " +
+                "durationMs, bitrate, sampleRate, channels, codec) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 		int generatedSongId = -1;
 		
 		// Validate genre is provided and exists
@@ -65,46 +93,76 @@ public class SongDAO {
 		
 		int genreId = genreIdInteger; // Safe conversion since we checked for null
 
+		// Audio file path is mandatory for RIA
+		if (song.getAudioFilePath() == null || song.getAudioFilePath().trim().isEmpty()) {
+		    throw new SQLException("Audio file is mandatory and cannot be empty.");
+		}
+		// Album cover is now mandatory
+		if (song.getAlbumCoverPath() == null || song.getAlbumCoverPath().trim().isEmpty()) {
+		    throw new SQLException("Album cover is mandatory and cannot be empty.");
+		}
+
+		boolean originalAutoCommit = connection.getAutoCommit();
 		try (PreparedStatement pstatement = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS)) {
+			connection.setAutoCommit(false);
 			pstatement.setInt(1, song.getUserID());
 			pstatement.setString(2, song.getName());
 			pstatement.setInt(3, genreId); // Use resolved genreId
-	        
-            // Audio file path is mandatory for RIA
-        if (song.getAudioFilePath() == null || song.getAudioFilePath().trim().isEmpty()) {
-            throw new SQLException("Audio file is mandatory and cannot be empty.");
-        }
-        pstatement.setString(4, song.getAudioFilePath());
-	        
-            // Album cover is now mandatory
-        if (song.getAlbumCoverPath() == null || song.getAlbumCoverPath().trim().isEmpty()) {
-            throw new SQLException("Album cover is mandatory and cannot be empty.");
-        }
-        pstatement.setString(5, song.getAlbumCoverPath());
+	        pstatement.setString(4, song.getAudioFilePath());
+	        pstatement.setString(5, song.getAlbumCoverPath());
 	        pstatement.setString(6, song.getAlbumName());
 	        pstatement.setString(7, song.getArtistName());
 	        pstatement.setInt(8, song.getAlbumReleaseYear());
+	        pstatement.setObject(9, song.getDurationMs(), java.sql.Types.INTEGER);
+	        pstatement.setObject(10, song.getBitrate(), java.sql.Types.INTEGER);
+	        pstatement.setObject(11, song.getSampleRate(), java.sql.Types.INTEGER);
+	        pstatement.setObject(12, song.getChannels(), java.sql.Types.TINYINT);
+	        pstatement.setString(13, song.getCodec());
 	        
 	        int affectedRows = pstatement.executeUpdate();
-
-	        if (affectedRows > 0) {
-	        	try (ResultSet generatedKeys = pstatement.getGeneratedKeys()) {
-	                if (generatedKeys.next()) {
-	                    generatedSongId = generatedKeys.getInt(1);
-	                    // Fetch the newly created song to return it (this ensures all fields are fresh from DB)
-	                    return getSongByIDAndUser(generatedSongId, song.getUserID());
-	                } else {
-	                    throw new SQLException("Creating song failed, no ID obtained.");
-	                }
-	            }
-	        } else {
+	        if (affectedRows == 0) {
 	        	throw new SQLException("Creating song failed, no rows affected.");
 	        }
+	        try (ResultSet generatedKeys = pstatement.getGeneratedKeys()) {
+	            if (!generatedKeys.next()) {
+	                throw new SQLException("Creating song failed, no ID obtained.");
+	            }
+	            generatedSongId = generatedKeys.getInt(1);
+	        }
+	        
+	        // Riferimenti ai file condivisi, nella stessa transazione dell'inserimento
+	        MediaBlobDAO mediaBlobDAO = new MediaBlobDAO(connection);
+	        mediaBlobDAO.addReference(song.getAudioFilePath());
+	        mediaBlobDAO.addReference(song.getAlbumCoverPath());
+	        // Miniature, forma d'onda e segmenti HLS vengono generati in background dopo il commit
+	        MediaJobs.enqueueDerivedFiles(connection, song.getAudioFilePath(), song.getAlbumCoverPath());
+	        long version = new ChangeLogDAO(connection).record(song.getUserID(), ChangeLogDAO.SONG, generatedSongId, ChangeLogDAO.UPSERT);
+	        
+	        connection.commit();
+	        LibraryCache.getInstance().invalidateSongs(song.getUserID());
+	        LibraryEvents.publish(song.getUserID(), version, ChangeLogDAO.SONG, generatedSongId, ChangeLogDAO.UPSERT);
+	        JobQueue.wakeUp();
+	        // Fetch the newly created song to return it (this ensures all fields are fresh from DB)
+	        return getSongByIDAndUser(generatedSongId, song.getUserID());
+		} catch (SQLException e) {
+		    connection.rollback();
+		    throw e;
+		} finally {
+		    connection.setAutoCommit(originalAutoCommit);
 		}
 	}
 	
 	public List<Song> getAllSongsByUserId(int userID) throws SQLException {
-		String query = "SELECT s.*, g.name as genreName FROM Song s JOIN Genre g ON s.genreID = g.ID WHERE s.userID = ? ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC";
+	    // Prima la cache: vale solo per la versione corrente della libreria, letta prima dei dati
+	    LibraryCache cache = LibraryCache.getInstance();
+	    long version = new ChangeLogDAO(connection).getVersion(userID);
+	    List<Song> cached = cache.getSongs(userID, version);
+	    if (cached != null) {
+	        return cached;
+	    }
+	    LibraryCache.Entry entry = cache.entryFor(userID, version);
+	    
+		String query = "SELECT s.*, g.name as genreName FROM Song s JOIN Genre g ON s.genreID = g.ID WHERE s.userID = ? ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC, s.ID ASC";
 	    List<Song> songs = new ArrayList<>();
 	    try (PreparedStatement pstatement = connection.prepareStatement(query)) {
 	        pstatement.setInt(1, userID);
@@ -114,17 +172,134 @@ public class SongDAO {
 	            }
 	        }
 	    }
-	    return songs;
+	    return cache.putSongs(userID, entry, songs);
+	}
+	
+	/**
+	 * Passa al visitor le canzoni dell'utente nello stesso ordine di getAllSongsByUserId, a blocchi di
+	 * VISIT_CHUNK_SIZE: ogni blocco è una query keyset su (artista, anno, ID), servita dall'indice
+	 * idx_song_user_artist_year, e il ResultSet viene chiuso prima di passare le canzoni al visitor,
+	 * così un client lento non tiene aperto un cursore sul server. Se la libreria è in cache viene usata quella;
+	 * altrimenti la lista letta popola la cache, solo se la versione della libreria non è cambiata durante la lettura.
+	 * @return Il numero di canzoni visitate
+	 */
+	public int forEachSongByUserId(int userID, SongVisitor visitor) throws SQLException, IOException {
+	    LibraryCache cache = LibraryCache.getInstance();
+	    long version = new ChangeLogDAO(connection).getVersion(userID);
+	    List<Song> cached = cache.getSongs(userID, version);
+	    if (cached != null) {
+	        for (Song song : cached) {
+	            visitor.visit(song);
+	        }
+	        return cached.size();
+	    }
+	    LibraryCache.Entry entry = cache.entryFor(userID, version);
+	    
+	    String select = "SELECT s.*, g.name as genreName FROM Song s JOIN Genre g ON s.genreID = g.ID WHERE s.userID = ? ";
+	    String order = "ORDER BY s.albumArtist ASC, s.albumReleaseYear ASC, s.ID ASC LIMIT ?";
+	    String firstQuery = select + order;
+	    String nextQuery = select + "AND (s.albumArtist > ? OR (s.albumArtist = ? AND (s.albumReleaseYear > ? " +
+	                       "OR (s.albumReleaseYear = ? AND s.ID > ?)))) " + order;
+	    List<Song> songs = new ArrayList<>();
+	    List<Song> chunk;
+	    do {
+	        chunk = new ArrayList<>();
+	        Song last = songs.isEmpty() ? null : songs.get(songs.size() - 1);
+	        try (PreparedStatement pstatement = connection.prepareStatement(last == null ? firstQuery : nextQuery)) {
+	            int index = 1;
+	            pstatement.setInt(index++, userID);
+	            if (last != null) {
+	                pstatement.setString(index++, last.getArtistName());
+	                pstatement.setString(index++, last.getArtistName());
+	                pstatement.setInt(index++, last.getAlbumReleaseYear());
+	                pstatement.setInt(index++, last.getAlbumReleaseYear());
+	                pstatement.setInt(index++, last.getID());
+	            }
+	            pstatement.setInt(index, VISIT_CHUNK_SIZE);
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    chunk.add(mapRowToSong(result));
+	                }
+	            }
+	        }
+	        for (Song song : chunk) {
+	            visitor.visit(song);
+	        }
+	        songs.addAll(chunk);
+	    } while (chunk.size() == VISIT_CHUNK_SIZE);
+	    
+	    // I blocchi sono letti in momenti diversi: se nel frattempo la libreria è cambiata la lista non va in cache
+	    if (new ChangeLogDAO(connection).getVersion(userID) == version) {
+	        cache.putSongs(userID, entry, songs);
+	    }
+	    return songs.size();
 	}
 	
 	public boolean existAllSongsByIDsAndUser(int[] songIDs, int userID) throws SQLException {
-	    if (songIDs == null || songIDs.length == 0) return true; // Or false, depending on desired logic for empty array
-	    for (int songID : songIDs) {
-	        if (!songBelongsToUser(songID, userID)) {
-	            return false;
+	    return findInvalidSongIDs(songIDs, userID).isEmpty();
+	}
+	
+	/**
+	 * Restituisce gli ID che non esistono o non appartengono all'utente.
+	 * Usa una query IN (...) per ogni blocco di IN_LIST_CHUNK_SIZE ID invece di una query per canzone.
+	 */
+	public Set<Integer> findInvalidSongIDs(int[] songIDs, int userID) throws SQLException {
+	    Set<Integer> invalidIDs = new LinkedHashSet<>();
+	    if (songIDs == null || songIDs.length == 0) return invalidIDs;
+	    
+	    int[] distinctIDs = Arrays.stream(songIDs).distinct().toArray();
+	    Set<Integer> ownedIDs = new HashSet<>();
+	    
+	    for (int start = 0; start < distinctIDs.length; start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, distinctIDs.length);
+	        String query = "SELECT ID FROM Song WHERE userID = ? AND ID IN (" + placeholders(end - start) + ")";
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            pstatement.setInt(1, userID);
+	            for (int i = start; i < end; i++) {
+	                pstatement.setInt(i - start + 2, distinctIDs[i]);
+	            }
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    ownedIDs.add(result.getInt(1));
+	                }
+	            }
+	        }
+	    }
+	    
+	    for (int songID : distinctIDs) {
+	        if (!ownedIDs.contains(songID)) {
+	            invalidIDs.add(songID);
 	        }
 	    }
-	    return true;
+	    return invalidIDs;
+	}
+	
+	/**
+	 * Restituisce le canzoni dell'utente con gli ID indicati (gli altri vengono ignorati), senza passare dalla cache
+	 */
+	public List<Song> getSongsByIDsAndUser(List<Integer> songIDs, int userID) throws SQLException {
+	    List<Song> songs = new ArrayList<>();
+	    for (int start = 0; start < songIDs.size(); start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, songIDs.size());
+	        String query = "SELECT s.*, g.name as genreName FROM Song s JOIN Genre g ON s.genreID = g.ID " +
+	                "WHERE s.userID = ? AND s.ID IN (" + placeholders(end - start) + ")";
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            pstatement.setInt(1, userID);
+	            for (int i = start; i < end; i++) {
+	                pstatement.setInt(i - start + 2, songIDs.get(i));
+	            }
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    songs.add(mapRowToSong(result));
+	                }
+	            }
+	        }
+	    }
+	    return songs;
+	}
+	
+	private static String placeholders(int count) {
+	    return String.join(",", Collections.nCopies(count, "?"));
 	}
 	
 	public Song getSongByIDAndUser(int songId, int userId) throws SQLException {
@@ -144,6 +319,7 @@ public class SongDAO {
 	
 	public boolean deleteSong(int songID, int userID) throws SQLException {
 	    boolean originalAutoCommit = connection.getAutoCommit();
+	    Map<String, Path> detachedBlobs = Collections.emptyMap();
 	    try {
 	        connection.setAutoCommit(false);
 	        Song song = getSongByIDAndUser(songID, userID);
@@ -167,29 +343,25 @@ public class SongDAO {
 	                throw new SQLException("Failed to delete song record, no rows affected.");
 	            }
 	        }
+	        List<String> filePaths = Arrays.asList(song.getAudioFilePath(), song.getAlbumCoverPath());
+	        detachedBlobs = new MediaBlobDAO(connection).releaseReferences(filePaths);
+	        // The files are deleted by the storage sweeper once the deletion is committed
+	        new FileTombstoneDAO(connection).addTombstones(detachedBlobs.values(), filePaths);
+	        long version = new ChangeLogDAO(connection).record(userID, ChangeLogDAO.SONG, songID, ChangeLogDAO.DELETE);
 	        connection.commit();
-	        deletePhysicalFiles(song); // Delete files after successful DB commit
+	        LibraryCache.getInstance().invalidateSongs(userID);
+	        LibraryEvents.publish(userID, version, ChangeLogDAO.SONG, songID, ChangeLogDAO.DELETE);
+	        StorageSweeper.wakeUp();
 	        return true;
 	    } catch (SQLException e) {
 	        connection.rollback();
+	        FileStorageManager.restoreDetachedBlobs(detachedBlobs);
 	        throw e;
 	    } finally {
 	        connection.setAutoCommit(originalAutoCommit);
 	    }
 	}
 	
-	private void deletePhysicalFiles(Song song) {
-	    FileStorageManager.cleanupFiles(
-	        song.getAlbumCoverPath(),
-	        song.getAudioFilePath()
-	    );
-	    
-	    // Il metodo cleanupFiles gestisce automaticamente:
-	    // - Validazione dei percorsi
-	    // - Controlli di sicurezza
-	    // - Gestione degli errori (best effort)
-	}
-	
 	/**
 	 * Securely deletes a file with path validation to prevent path traversal attacks.
 	 * This method ensures that files can only be deleted from the expected directories
@@ -328,7 +500,93 @@ public class SongDAO {
         song.setGenre(result.getString("genreName")); 
         song.setAlbumCoverPath(result.getString("albumCover"));
         song.setAudioFilePath(result.getString("file"));
+        mapAudioMetadata(result, song);
         return song;
     }
 
+	/**
+	 * Registra la playlist HLS di un file audio per tutte le canzoni che lo usano
+	 * (con lo storage indirizzato per contenuto più canzoni possono condividere lo stesso file)
+	 */
+	public void setHlsPlaylist(String audioFilePath, String playlistPath) throws SQLException {
+	    String update = "UPDATE Song SET hlsPlaylist = ? WHERE file = ?";
+	    String select = "SELECT ID, userID FROM Song WHERE file = ?";
+	    boolean originalAutoCommit = connection.getAutoCommit();
+	    // ID della canzone -> utente
+	    Map<Integer, Integer> changedSongs = new LinkedHashMap<>();
+	    // ID della canzone -> versione della libreria registrata
+	    Map<Integer, Long> versions = new HashMap<>();
+	    try {
+	        connection.setAutoCommit(false);
+	        try (PreparedStatement pstatement = connection.prepareStatement(update)) {
+	            pstatement.setString(1, playlistPath);
+	            pstatement.setString(2, audioFilePath);
+	            pstatement.executeUpdate();
+	        }
+	        try (PreparedStatement pstatement = connection.prepareStatement(select)) {
+	            pstatement.setString(1, audioFilePath);
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    changedSongs.put(result.getInt("ID"), result.getInt("userID"));
+	                }
+	            }
+	        }
+	        // Le canzoni modificate vanno registrate per la sincronizzazione dei client
+	        ChangeLogDAO changeLogDAO = new ChangeLogDAO(connection);
+	        for (Map.Entry<Integer, Integer> song : changedSongs.entrySet()) {
+	            versions.put(song.getKey(), changeLogDAO.record(song.getValue(), ChangeLogDAO.SONG, song.getKey(), ChangeLogDAO.UPSERT));
+	        }
+	        connection.commit();
+	    } catch (SQLException e) {
+	        connection.rollback();
+	        throw e;
+	    } finally {
+	        connection.setAutoCommit(originalAutoCommit);
+	    }
+	    for (int userID : new HashSet<>(changedSongs.values())) {
+	        LibraryCache.getInstance().invalidateSongs(userID);
+	    }
+	    for (Map.Entry<Integer, Integer> song : changedSongs.entrySet()) {
+	        LibraryEvents.publish(song.getValue(), versions.get(song.getKey()), ChangeLogDAO.SONG, song.getKey(), ChangeLogDAO.UPSERT);
+	    }
+	}
+
+	/**
+	 * Restituisce i percorsi della lista usati da almeno una canzone, come file audio o come copertina
+	 * (scansione dei file orfani: una query per blocco di IN_LIST_CHUNK_SIZE percorsi)
+	 */
+	public Set<String> findReferencedPaths(List<String> relativePaths) throws SQLException {
+	    Set<String> referenced = new HashSet<>();
+	    for (int start = 0; start < relativePaths.size(); start += IN_LIST_CHUNK_SIZE) {
+	        int end = Math.min(start + IN_LIST_CHUNK_SIZE, relativePaths.size());
+	        String inList = placeholders(end - start);
+	        String query = "SELECT file FROM Song WHERE file IN (" + inList + ") " +
+	                "UNION SELECT albumCover FROM Song WHERE albumCover IN (" + inList + ")";
+	        try (PreparedStatement pstatement = connection.prepareStatement(query)) {
+	            for (int i = start; i < end; i++) {
+	                pstatement.setString(i - start + 1, relativePaths.get(i));
+	                pstatement.setString(i - start + 1 + (end - start), relativePaths.get(i));
+	            }
+	            try (ResultSet result = pstatement.executeQuery()) {
+	                while (result.next()) {
+	                    referenced.add(result.getString(1));
+	                }
+	            }
+	        }
+	    }
+	    return referenced;
+	}
+
+	/**
+	 * Legge le colonne dei metadati audio e della playlist HLS
+	 * (possono essere NULL per le canzoni caricate prima dell'analisi o non ancora segmentate)
+	 */
+	static void mapAudioMetadata(ResultSet result, Song song) throws SQLException {
+	    song.setDurationMs(result.getObject("durationMs", Integer.class));
+	    song.setBitrate(result.getObject("bitrate", Integer.class));
+	    song.setSampleRate(result.getObject("sampleRate", Integer.class));
+	    song.setChannels(result.getObject("channels", Integer.class));
+	    song.setCodec(result.getString("codec"));
+	    song.setHlsPlaylistPath(result.getString("hlsPlaylist"));
+	}
 }
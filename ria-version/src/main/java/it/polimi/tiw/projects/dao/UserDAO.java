@@ -1,16 +1,21 @@
 package it.polimi.tiw.projects.dao;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import it.polimi.tiw.projects.beans.User;
 import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.LibraryCache;
+import it.polimi.tiw.projects.utils.StorageSweeper;
 
 public class UserDAO {
 	private Connection connection;
@@ -42,6 +47,7 @@ public class UserDAO {
 	
 	public boolean deleteUser(int userId) throws SQLException {
 		boolean originalAutoCommit = connection.getAutoCommit();
+		Map<String, Path> detachedBlobs = Collections.emptyMap();
 		
 		try {
 			connection.setAutoCommit(false);
@@ -72,19 +78,25 @@ public class UserDAO {
 				}
 			}
 			
-			connection.commit();
-			
+			// Rilascia i riferimenti ai file condivisi delle canzoni dell'utente
+			List<String> filePaths = new ArrayList<>();
 			for (String[] files : filesToDelete) {
-				String audioFilePath = files[0];
-				String coverFilePath = files[1];
-				
-				FileStorageManager.cleanupFiles(coverFilePath, audioFilePath);
+				filePaths.add(files[0]);
+				filePaths.add(files[1]);
 			}
+			detachedBlobs = new MediaBlobDAO(connection).releaseReferences(filePaths);
+			// I file vengono eliminati in background, solo dopo il commit
+			new FileTombstoneDAO(connection).addTombstones(detachedBlobs.values(), filePaths);
+			
+			connection.commit();
+			LibraryCache.getInstance().invalidate(userId);
+			StorageSweeper.wakeUp();
 			
 			return true;
 			
 		} catch (SQLException e) {
 			connection.rollback();
+			FileStorageManager.restoreDetachedBlobs(detachedBlobs);
 			throw e;
 		} finally {
 			try {
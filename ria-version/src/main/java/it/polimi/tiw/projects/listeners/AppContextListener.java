@@ -0,0 +1,92 @@
+package it.polimi.tiw.projects.listeners;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.UnavailableException;
+import jakarta.servlet.annotation.WebListener;
+
+import it.polimi.tiw.projects.controllers.api.ApiServletBase;
+import it.polimi.tiw.projects.utils.ConnectionHandler;
+import it.polimi.tiw.projects.utils.FileStorageManager;
+import it.polimi.tiw.projects.utils.GenreCatalog;
+import it.polimi.tiw.projects.utils.JobQueue;
+import it.polimi.tiw.projects.utils.LibraryEvents;
+import it.polimi.tiw.projects.utils.MediaJobs;
+import it.polimi.tiw.projects.utils.MediaProcessingExecutor;
+import it.polimi.tiw.projects.utils.StorageSweeper;
+
+/**
+ * Gestisce le risorse condivise dalla webapp (pool di connessioni, catalogo dei generi,
+ * executor a virtual thread per le API, pool per l'elaborazione dei file multimediali, coda dei lavori in background, eliminazione dei file)
+ */
+@WebListener
+public class AppContextListener implements ServletContextListener {
+
+    // Parametro di contesto (web.xml) che attiva l'esecuzione delle API su virtual thread
+    private static final String VIRTUAL_THREADS_PARAM = "apiVirtualThreads";
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        if (Boolean.parseBoolean(sce.getServletContext().getInitParameter(VIRTUAL_THREADS_PARAM))) {
+            ExecutorService executor = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("api-", 0).factory());
+            sce.getServletContext().setAttribute(ApiServletBase.EXECUTOR_ATTRIBUTE, executor);
+        }
+        
+        // Carica il catalogo dei generi; se il database non è raggiungibile
+        // verrà caricato alla prima richiesta che ne ha bisogno
+        try (Connection connection = ConnectionHandler.getConnection(sce.getServletContext())) {
+            GenreCatalog.reload(connection);
+        } catch (UnavailableException | SQLException e) {
+            System.err.println("Genre catalog not loaded at startup: " + e.getMessage());
+        }
+        
+        // Avvia la coda dei lavori in background (miniature, forme d'onda, segmenti HLS) e l'eliminazione dei file;
+        // se storage o database non sono disponibili lavori e file restano nel database fino al prossimo avvio
+        try {
+            FileStorageManager.initialize(sce.getServletContext());
+            DataSource dataSource = ConnectionHandler.getDataSource(sce.getServletContext());
+            MediaJobs.register(dataSource);
+            JobQueue.start(dataSource, sce.getServletContext().getContextPath());
+            StorageSweeper.start(dataSource);
+            // Canale push delle modifiche alla libreria (/api/events)
+            LibraryEvents.start(dataSource);
+        } catch (UnavailableException e) {
+            System.err.println("Job queue, storage sweeper and library events not started: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        // Attende brevemente le richieste API ancora in corso
+        ExecutorService executor = (ExecutorService) sce.getServletContext().getAttribute(ApiServletBase.EXECUTOR_ATTRIBUTE);
+        if (executor != null) {
+            sce.getServletContext().removeAttribute(ApiServletBase.EXECUTOR_ATTRIBUTE);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        // Chiude le connessioni del canale push
+        LibraryEvents.shutdown();
+        
+        // Ferma i lavori in background e l'elaborazione delle miniature
+        JobQueue.shutdown();
+        StorageSweeper.shutdown();
+        MediaProcessingExecutor.shutdown();
+        
+        // Chiude le connessioni del pool condiviso
+        ConnectionHandler.shutdown();
+    }
+}
@@ -0,0 +1,155 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Invia le parti di un file in modo non bloccante: il thread della richiesta viene rilasciato
+ * subito e i blocchi sono scritti dal container solo quando il client è pronto a riceverli,
+ * così un client lento non occupa un thread per tutta la durata del download.
+ */
+final class AsyncFileStreamer implements WriteListener, AsyncListener {
+    // Durata massima di un download, dopo la quale la risposta viene chiusa
+    private static final long ASYNC_TIMEOUT_MS = 60 * 60 * 1000L;
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream out;
+    private final FileChannel channel;
+    private final List<MediaResponseWriter.BodyPart> parts;
+    // ServletOutputStream accetta solo byte[]: un buffer diretto richiederebbe una copia in più
+    private final ByteBuffer buffer;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private int partIndex = 0;
+    private boolean partStarted = false;
+    private long position;
+    private long remaining;
+
+    private AsyncFileStreamer(AsyncContext asyncContext, ServletOutputStream out, FileChannel channel,
+                              List<MediaResponseWriter.BodyPart> parts, int chunkSize) {
+        this.asyncContext = asyncContext;
+        this.out = out;
+        this.channel = channel;
+        this.parts = parts;
+        this.buffer = ByteBuffer.allocate(chunkSize);
+    }
+
+    /**
+     * Avvia la modalità asincrona e registra il listener; il metodo ritorna subito
+     */
+    static void start(HttpServletRequest request, HttpServletResponse response, File file,
+                      List<MediaResponseWriter.BodyPart> parts, int chunkSize) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            AsyncContext asyncContext = request.startAsync();
+            asyncContext.setTimeout(ASYNC_TIMEOUT_MS);
+            AsyncFileStreamer streamer = new AsyncFileStreamer(asyncContext, response.getOutputStream(),
+                    channel, parts, chunkSize);
+            asyncContext.addListener(streamer);
+            streamer.out.setWriteListener(streamer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        try {
+            // Scrive finché il container accetta dati senza bloccare
+            while (out.isReady()) {
+                if (partIndex == parts.size()) {
+                    finish();
+                    return;
+                }
+
+                MediaResponseWriter.BodyPart part = parts.get(partIndex);
+                if (!partStarted) {
+                    partStarted = true;
+                    position = part.start;
+                    remaining = part.count;
+                    if (part.prefix != null) {
+                        out.write(part.prefix);
+                        continue;
+                    }
+                }
+
+                if (remaining == 0) {
+                    partIndex++;
+                    partStarted = false;
+                    continue;
+                }
+
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("File truncated while sending");
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // Le IOException sono quasi sempre client che chiudono la connessione (seek, cambio brano)
+        if (!(t instanceof IOException)) {
+            System.err.println("Error while streaming file: " + t);
+        }
+        finish();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        closeChannel();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        System.err.println("File streaming timed out after " + ASYNC_TIMEOUT_MS + " ms");
+        finish();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        finish();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private void finish() {
+        if (finished.compareAndSet(false, true)) {
+            closeChannel();
+            asyncContext.complete();
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
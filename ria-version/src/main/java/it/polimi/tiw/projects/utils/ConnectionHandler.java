@@ -1,47 +1,104 @@
 package it.polimi.tiw.projects.utils;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.IOException;
 import java.io.InputStream;
 
+import javax.sql.DataSource;
+
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.UnavailableException;
 
 public class ConnectionHandler {
 	private static final String PROPERTIES_FILE = "/WEB-INF/database.properties";
 
+	// Pool condiviso da tutte le servlet della webapp, creato alla prima richiesta
+	private static volatile ConnectionPool pool;
+	private static final ReentrantLock poolLock = new ReentrantLock();
+
+	/**
+	 * Restituisce il DataSource condiviso della webapp, creandolo al primo utilizzo.
+	 * Le connessioni ottenute vanno chiuse (try-with-resources) per restituirle al pool.
+	 */
+	public static DataSource getDataSource(ServletContext context) throws UnavailableException {
+		ConnectionPool current = pool;
+		if (current != null) {
+			return current;
+		}
+		poolLock.lock();
+		try {
+			if (pool == null) {
+				pool = createPool(context);
+			}
+			return pool;
+		} finally {
+			poolLock.unlock();
+		}
+	}
+
+	/**
+	 * Prende in prestito una connessione dal pool; close() la restituisce
+	 */
 	public static Connection getConnection(ServletContext context) throws UnavailableException {
-		Connection connection = null;
+		try {
+			return getDataSource(context).getConnection();
+		} catch (SQLException e) {
+			throw new UnavailableException("Couldn't get db connection");
+		}
+	}
+
+	public static void closeConnection(Connection connection) throws SQLException {
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Chiude il pool allo shutdown della webapp
+	 */
+	public static void shutdown() {
+		poolLock.lock();
+		try {
+			if (pool != null) {
+				pool.close();
+				pool = null;
+			}
+		} finally {
+			poolLock.unlock();
+		}
+	}
+
+	private static ConnectionPool createPool(ServletContext context) throws UnavailableException {
 		Properties dbProperties = new Properties();
-		
+
 		try {
 			// Carica il file di proprietà dalla directory WEB-INF
 			InputStream inputStream = context.getResourceAsStream(PROPERTIES_FILE);
 			if (inputStream == null) {
 				throw new UnavailableException("Database configuration file not found: " + PROPERTIES_FILE);
 			}
-			
+
 			// Carica le proprietà dal file
 			dbProperties.load(inputStream);
 			inputStream.close();
-			
+
 			// Ottieni le credenziali dal file properties
 			String driver = dbProperties.getProperty("dbDriver");
 			String url = dbProperties.getProperty("dbUrl");
 			String user = dbProperties.getProperty("dbUser");
 			String password = dbProperties.getProperty("dbPassword");
-			
+
 			// Verifica che tutte le proprietà necessarie siano presenti
 			if (driver == null || url == null || user == null || password == null) {
 				throw new UnavailableException("Missing database connection parameters in configuration file");
 			}
-			// Stabilisci la connessione
+			// Crea il pool (le proprietà pool* sono opzionali)
 			Class.forName(driver);
-			connection = DriverManager.getConnection(url, user, password);
-			
+			return new ConnectionPool(url, user, password, dbProperties);
+
 		} catch (ClassNotFoundException e) {
 			throw new UnavailableException("Can't load database driver");
 		} catch (SQLException e) {
@@ -49,13 +106,6 @@ public class ConnectionHandler {
 		}catch (IOException e) {
 			throw new UnavailableException("Error reading database configuration file: " + e.getMessage());
 		}
-		return connection;
 	}
 
-	public static void closeConnection(Connection connection) throws SQLException {
-		if (connection != null) {
-			connection.close();
-		}
-	}
-	
 }
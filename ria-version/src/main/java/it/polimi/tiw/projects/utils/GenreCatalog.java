@@ -0,0 +1,104 @@
+package it.polimi.tiw.projects.utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+/**
+ * Catalogo immutabile dei generi musicali, caricato una volta all'avvio della webapp.
+ * La tabella Genre è popolata dallo schema e non cambia a runtime: le ricerche per nome
+ * e per ID non interrogano il database. reload() sostituisce il catalogo in blocco.
+ * Il confronto dei nomi ignora maiuscole/minuscole, come la collation di default di MySQL.
+ */
+public final class GenreCatalog {
+    private static final String QUERY = "SELECT ID, name FROM Genre ORDER BY ID";
+
+    private static volatile GenreCatalog current;
+
+    private final List<String> names;
+    private final Map<String, Integer> idsByName;
+    private final Map<Integer, String> namesById;
+
+    private GenreCatalog(List<String> names, Map<String, Integer> idsByName, Map<Integer, String> namesById) {
+        this.names = Collections.unmodifiableList(names);
+        this.idsByName = Collections.unmodifiableMap(idsByName);
+        this.namesById = Collections.unmodifiableMap(namesById);
+    }
+
+    /**
+     * Restituisce il catalogo corrente, caricandolo con la connessione data se non è ancora presente
+     */
+    public static GenreCatalog get(Connection connection) throws SQLException {
+        GenreCatalog catalog = current;
+        if (catalog == null) {
+            catalog = reload(connection);
+        }
+        return catalog;
+    }
+
+    /**
+     * Come get(Connection), ma prende una connessione dal pool solo se il catalogo va caricato
+     */
+    public static GenreCatalog get(DataSource dataSource) throws SQLException {
+        GenreCatalog catalog = current;
+        if (catalog == null) {
+            try (Connection connection = dataSource.getConnection()) {
+                catalog = get(connection);
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Rilegge i generi dal database e sostituisce il catalogo corrente
+     */
+    public static GenreCatalog reload(Connection connection) throws SQLException {
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> idsByName = new HashMap<>();
+        Map<Integer, String> namesById = new HashMap<>();
+
+        try (PreparedStatement pstatement = connection.prepareStatement(QUERY);
+             ResultSet result = pstatement.executeQuery()) {
+            while (result.next()) {
+                int id = result.getInt("ID");
+                String name = result.getString("name");
+                names.add(name);
+                idsByName.put(key(name), id);
+                namesById.put(id, name);
+            }
+        }
+
+        GenreCatalog catalog = new GenreCatalog(names, idsByName, namesById);
+        current = catalog;
+        return catalog;
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public boolean contains(String name) {
+        return name != null && idsByName.containsKey(key(name));
+    }
+
+    public Integer getIdByName(String name) {
+        return name == null ? null : idsByName.get(key(name));
+    }
+
+    public String getNameById(int id) {
+        return namesById.get(id);
+    }
+
+    private static String key(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,278 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Divide i file MP3 in segmenti HLS di durata fissa, senza ricodifica: i tagli cadono sui confini
+ * dei frame MPEG, quindi ogni segmento è a sua volta un MP3 valido ("packed audio" HLS).
+ * I segmenti e la playlist sono salvati in una directory accanto all'audio
+ * (es. songs/ab/cd/hash.mp3 -> songs/ab/cd/hash.hls/index.m3u8, seg00000.mp3, ...),
+ * scritta in una directory temporanea e rinominata atomicamente quando è completa.
+ * La segmentazione è opzionale (proprietà hlsSegmenting) e viene eseguita da un lavoro della JobQueue.
+ */
+public final class HlsSegmenter {
+    public static final String PLAYLIST_NAME = "index.m3u8";
+    private static final String DIRECTORY_SUFFIX = ".hls";
+    // Durata obiettivo dei segmenti (secondi): quella consigliata dalle specifiche Apple
+    private static final double TARGET_SEGMENT_SECONDS = 10.0;
+    // Byte ignorati al massimo per ritrovare un frame dopo dati non validi
+    private static final int MAX_RESYNC_BYTES = 64 * 1024;
+    // Proprietario del frame PRIV con il timestamp di inizio segmento (richiesto per il packed audio)
+    private static final String TIMESTAMP_OWNER = "com.apple.streaming.transportStreamTimestamp";
+
+    private HlsSegmenter() {
+    }
+
+    /**
+     * Indica se il file audio può essere segmentato
+     */
+    public static boolean isSupported(File audio) {
+        return audio.getName().toLowerCase(Locale.ROOT).endsWith(".mp3");
+    }
+
+    /**
+     * Restituisce la directory dei segmenti di un file audio (che può non esistere ancora)
+     */
+    public static File hlsDirectory(File audio) {
+        String name = audio.getName();
+        int dotIndex = name.lastIndexOf('.');
+        String baseName = dotIndex > 0 ? name.substring(0, dotIndex) : name;
+        return new File(audio.getParentFile(), baseName + DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * Percorso relativo della playlist per il percorso relativo di un file audio
+     * (es. /songs/ab/cd/hash.mp3 -> /songs/ab/cd/hash.hls/index.m3u8)
+     */
+    public static String playlistPath(String audioRelativePath) {
+        int dotIndex = audioRelativePath.lastIndexOf('.');
+        String basePath = dotIndex > audioRelativePath.lastIndexOf('/') ? audioRelativePath.substring(0, dotIndex) : audioRelativePath;
+        return basePath + DIRECTORY_SUFFIX + "/" + PLAYLIST_NAME;
+    }
+
+    /**
+     * Segmenta il file audio, se i segmenti non esistono già (lavoro eseguito dalla JobQueue)
+     */
+    public static void segment(File audio) throws IOException {
+        if (!isSupported(audio)) {
+            throw new IOException("HLS segmenting not supported for " + audio.getName());
+        }
+        File directory = hlsDirectory(audio);
+        if (!new File(directory, PLAYLIST_NAME).isFile()) {
+            createSegments(audio, directory);
+        }
+    }
+
+    /**
+     * Elimina la directory dei segmenti di un file audio (chiamato quando l'audio viene rimosso)
+     */
+    public static void deleteSegments(Path audio) {
+        deleteDirectory(hlsDirectory(audio.toFile()).toPath());
+    }
+
+    /**
+     * Sposta la directory dei segmenti insieme al file audio (es. quando un blob viene staccato o ripristinato)
+     */
+    public static void moveSegments(Path audio, Path target) {
+        Path source = hlsDirectory(audio.toFile()).toPath();
+        if (!Files.isDirectory(source)) {
+            return;
+        }
+        try {
+            Files.move(source, hlsDirectory(target.toFile()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // I segmenti si possono rigenerare: se lo spostamento fallisce vengono eliminati
+            System.err.println("Could not move HLS segments of " + audio.getFileName() + ": " + e.getMessage());
+            deleteDirectory(source);
+        }
+    }
+
+    private static void createSegments(File audio, File directory) throws IOException {
+        Path temp = directory.toPath().resolveSibling("." + directory.getName() + "-" + UUID.randomUUID());
+        Files.createDirectory(temp);
+        try {
+            List<Double> durations = writeSegments(audio, temp);
+            if (durations.isEmpty()) {
+                throw new IOException("No MPEG audio frames found");
+            }
+            writePlaylist(temp.resolve(PLAYLIST_NAME), durations);
+            try {
+                // Rinomina atomica: chi legge vede la directory solo quando è completa
+                Files.move(temp, directory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // Segmenti creati nel frattempo (es. dopo il ripristino di un blob)
+            }
+        } finally {
+            deleteDirectory(temp);
+        }
+    }
+
+    /**
+     * Copia i frame MPEG nei segmenti, chiudendo ogni segmento appena raggiunge la durata obiettivo
+     * @return La durata in secondi di ogni segmento scritto
+     */
+    private static List<Double> writeSegments(File audio, Path directory) throws IOException {
+        List<Double> durations = new ArrayList<>();
+        long audioStart;
+        try (FileChannel channel = FileChannel.open(audio.toPath(), StandardOpenOption.READ)) {
+            audioStart = AudioMetadataParser.mp3AudioStart(channel);
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(audio.toPath()), 64 * 1024))) {
+            input.skipNBytes(audioStart);
+            OutputStream segment = null;
+            long totalSamples = 0;
+            long segmentSamples = 0;
+            int sampleRate = 0;
+            boolean firstFrame = true;
+            byte[] frameBytes = new byte[4096];
+            try {
+                while (true) {
+                    AudioMetadataParser.Mp3Frame frame = nextFrame(input, frameBytes);
+                    if (frame == null) {
+                        break;
+                    }
+                    if (firstFrame) {
+                        firstFrame = false;
+                        // Il frame Xing/Info non contiene audio e descrive l'intero file: non va nei segmenti
+                        if (AudioMetadataParser.isMp3InfoFrame(ByteBuffer.wrap(frameBytes, 0, frame.length), 0, frame)) {
+                            continue;
+                        }
+                    }
+                    sampleRate = frame.sampleRate;
+                    if (segment == null) {
+                        String name = String.format("seg%05d.mp3", durations.size());
+                        segment = new BufferedOutputStream(Files.newOutputStream(directory.resolve(name)));
+                        segment.write(timestampTag(totalSamples * 90000 / sampleRate));
+                    }
+                    segment.write(frameBytes, 0, frame.length);
+                    segmentSamples += frame.samplesPerFrame;
+                    totalSamples += frame.samplesPerFrame;
+                    if ((double) segmentSamples / sampleRate >= TARGET_SEGMENT_SECONDS) {
+                        segment.close();
+                        segment = null;
+                        durations.add((double) segmentSamples / sampleRate);
+                        segmentSamples = 0;
+                    }
+                }
+                if (segment != null) {
+                    segment.close();
+                    segment = null;
+                    durations.add((double) segmentSamples / sampleRate);
+                }
+            } finally {
+                if (segment != null) {
+                    segment.close();
+                }
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * Legge il prossimo frame in frameBytes, saltando eventuali byte non validi
+     * @return L'header del frame, oppure null a fine file (o prima di un tag ID3v1 finale)
+     */
+    private static AudioMetadataParser.Mp3Frame nextFrame(DataInputStream input, byte[] frameBytes) throws IOException {
+        int header = 0;
+        int bytesRead = 0;
+        for (int skipped = 0; skipped <= MAX_RESYNC_BYTES; skipped++) {
+            int next = input.read();
+            if (next < 0) {
+                return null;
+            }
+            header = (header << 8) | next;
+            if (++bytesRead < 4) {
+                continue;
+            }
+            AudioMetadataParser.Mp3Frame frame = AudioMetadataParser.Mp3Frame.decode(header);
+            if (frame != null && frame.length <= frameBytes.length) {
+                ByteBuffer.wrap(frameBytes).putInt(header);
+                try {
+                    input.readFully(frameBytes, 4, frame.length - 4);
+                } catch (EOFException e) {
+                    return null; // Ultimo frame troncato
+                }
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tag ID3v2.4 con il frame PRIV che indica il timestamp MPEG-2 (90 kHz) di inizio del segmento
+     */
+    private static byte[] timestampTag(long pts) {
+        byte[] owner = TIMESTAMP_OWNER.getBytes(StandardCharsets.ISO_8859_1);
+        int frameDataSize = owner.length + 1 + 8;
+        int tagSize = 10 + frameDataSize;
+        ByteBuffer tag = ByteBuffer.allocate(10 + tagSize);
+        tag.put(new byte[] {'I', 'D', '3', 4, 0, 0});
+        tag.put(syncsafe(tagSize));
+        tag.put(new byte[] {'P', 'R', 'I', 'V'});
+        tag.put(syncsafe(frameDataSize));
+        tag.put(new byte[] {0, 0});
+        tag.put(owner).put((byte) 0);
+        tag.putLong(pts & 0x1FFFFFFFFL); // 33 bit
+        return tag.array();
+    }
+
+    private static byte[] syncsafe(int value) {
+        return new byte[] {(byte) ((value >> 21) & 0x7F), (byte) ((value >> 14) & 0x7F),
+                (byte) ((value >> 7) & 0x7F), (byte) (value & 0x7F)};
+    }
+
+    private static void writePlaylist(Path playlist, List<Double> durations) throws IOException {
+        double longest = durations.stream().mapToDouble(Double::doubleValue).max().orElse(TARGET_SEGMENT_SECONDS);
+        try (Writer writer = Files.newBufferedWriter(playlist, StandardCharsets.UTF_8)) {
+            writer.write("#EXTM3U\n");
+            writer.write("#EXT-X-VERSION:3\n");
+            writer.write("#EXT-X-TARGETDURATION:" + (long) Math.ceil(longest) + "\n");
+            writer.write("#EXT-X-MEDIA-SEQUENCE:0\n");
+            writer.write("#EXT-X-PLAYLIST-TYPE:VOD\n");
+            for (int i = 0; i < durations.size(); i++) {
+                writer.write(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", durations.get(i)));
+                writer.write(String.format("seg%05d.mp3\n", i));
+            }
+            writer.write("#EXT-X-ENDLIST\n");
+        }
+    }
+
+    private static void deleteDirectory(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + path + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Could not delete HLS segments in " + directory + ": " + e.getMessage());
+        }
+    }
+}
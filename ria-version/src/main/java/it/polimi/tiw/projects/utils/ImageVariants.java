@@ -0,0 +1,285 @@
+package it.polimi.tiw.projects.utils;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Miniature delle copertine a larghezze fisse, salvate accanto all'originale
+ * (es. covers/ab/cd/hash.jpg -> covers/ab/cd/hash.w160.jpg).
+ * Sono generate dopo il caricamento da un lavoro della JobQueue e, se mancano, alla prima richiesta
+ * sul MediaProcessingExecutor: la richiesta resta in modalità asincrona senza occupare un thread.
+ */
+public final class ImageVariants {
+    // Larghezze disponibili (px): elenchi, griglia delle playlist, pagina del player
+    private static final int[] SIZES = {64, 160, 320};
+    // Immagini più grandi non vengono decodificate (proteggono da "decompression bomb")
+    private static final long MAX_SOURCE_PIXELS = 40_000_000L;
+    private static final float JPEG_QUALITY = 0.85f;
+    // Attesa massima di una miniatura prima di servire l'originale
+    private static final long GENERATION_TIMEOUT_MS = 15_000;
+    // Attributo che segna la richiesta già rimandata in attesa della miniatura
+    private static final String DISPATCHED_ATTRIBUTE = "it.polimi.tiw.projects.imageVariantDispatched";
+
+    // Miniature in generazione, per non accodare due volte lo stesso lavoro
+    private static final Map<Path, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    static {
+        // Evita i file temporanei di ImageIO: le immagini sono piccole
+        ImageIO.setUseCache(false);
+    }
+
+    private ImageVariants() {
+    }
+
+    /**
+     * Converte il parametro size nella più piccola larghezza disponibile non inferiore a quella richiesta.
+     * @return null se il parametro non è valido o supera la larghezza massima (va servito l'originale)
+     */
+    public static Integer resolveSize(String sizeParam) {
+        if (sizeParam == null) {
+            return null;
+        }
+        int requested;
+        try {
+            requested = Integer.parseInt(sizeParam.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (requested <= 0) {
+            return null;
+        }
+        for (int size : SIZES) {
+            if (size >= requested) {
+                return size;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restituisce il file della miniatura (che può non esistere ancora)
+     */
+    public static File variantFile(File original, int size) {
+        String name = original.getName();
+        int dotIndex = name.lastIndexOf('.');
+        String baseName = dotIndex > 0 ? name.substring(0, dotIndex) : name;
+        return new File(original.getParentFile(), baseName + ".w" + size + "." + outputFormat(original));
+    }
+
+    /**
+     * Se la miniatura manca, mette la richiesta in modalità asincrona e la rimanda alla servlet
+     * quando la miniatura è pronta (o dopo il timeout, o se il pool è pieno).
+     * @return true se la richiesta è stata sospesa: la servlet deve solo ritornare
+     */
+    public static boolean dispatchWhenReady(HttpServletRequest request, File original, int size) {
+        if (request.getAttribute(DISPATCHED_ATTRIBUTE) != null || !request.isAsyncSupported()) {
+            return false;
+        }
+        CompletableFuture<Void> generation = generate(original, size);
+        if (generation.isDone()) {
+            return false;
+        }
+
+        request.setAttribute(DISPATCHED_ATTRIBUTE, Boolean.TRUE);
+        AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(GENERATION_TIMEOUT_MS);
+        AtomicBoolean dispatched = new AtomicBoolean();
+        Runnable dispatch = () -> {
+            if (dispatched.compareAndSet(false, true)) {
+                asyncContext.dispatch();
+            }
+        };
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                dispatch.run();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                dispatched.set(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        generation.whenComplete((result, error) -> dispatch.run());
+        return true;
+    }
+
+    /**
+     * Accoda la generazione della miniatura, se non esiste già
+     */
+    public static CompletableFuture<Void> generate(File original, int size) {
+        File variant = variantFile(original, size);
+        if (variant.isFile()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Path key = variant.toPath();
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> existing = pending.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            MediaProcessingExecutor.get().execute(() -> {
+                try {
+                    createVariant(original, variant, size);
+                    future.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Thumbnail generation failed for " + original.getName() + ": " + e.getMessage());
+                    future.completeExceptionally(e);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Crea le miniature mancanti di una copertina appena caricata (lavoro eseguito dalla JobQueue)
+     */
+    public static void createAll(File original) throws IOException {
+        for (int size : SIZES) {
+            File variant = variantFile(original, size);
+            if (!variant.isFile()) {
+                createVariant(original, variant, size);
+            }
+        }
+    }
+
+    /**
+     * Elimina le miniature di una copertina (chiamato quando l'originale viene rimosso)
+     */
+    public static void deleteVariants(Path original) {
+        for (int size : SIZES) {
+            try {
+                Files.deleteIfExists(variantFile(original.toFile(), size).toPath());
+            } catch (IOException e) {
+                System.err.println("Could not delete thumbnail of " + original.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void createVariant(File original, File variant, int size) throws IOException {
+        BufferedImage source = readImage(original);
+        Path temp = Files.createTempFile(variant.toPath().getParent(), ".thumb-", ".tmp");
+        try {
+            // Un originale già abbastanza piccolo viene solo ricodificato (le GIF diventano PNG)
+            BufferedImage image = source.getWidth() <= size ? source : resize(source, size);
+            writeImage(image, outputFormat(original), temp.toFile());
+            // Spostamento atomico: chi legge non vede mai una miniatura scritta a metà
+            Files.move(temp, variant.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static BufferedImage readImage(File original) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(original)) {
+            if (input == null) {
+                throw new IOException("Cannot open image");
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (pixels > MAX_SOURCE_PIXELS) {
+                    throw new IOException("Image too large for thumbnails: " + pixels + " pixels");
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Ridimensiona dimezzando più volte e poi alla larghezza finale: con la sola interpolazione
+     * bilineare un unico passaggio da immagini grandi produce miniature sgranate
+     */
+    private static BufferedImage resize(BufferedImage source, int targetWidth) {
+        int targetHeight = Math.max(1, (int) Math.round((double) source.getHeight() * targetWidth / source.getWidth()));
+        int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage step = new BufferedImage(width, height, type);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = step;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    private static void writeImage(BufferedImage image, String format, File target) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(target)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Le JPEG restano JPEG; PNG e GIF diventano PNG per conservare la trasparenza
+     */
+    private static String outputFormat(File original) {
+        String name = original.getName().toLowerCase(Locale.ROOT);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg") ? "jpg" : "png";
+    }
+}
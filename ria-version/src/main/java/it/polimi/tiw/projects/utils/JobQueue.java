@@ -0,0 +1,276 @@
+package it.polimi.tiw.projects.utils;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import it.polimi.tiw.projects.beans.Job;
+import it.polimi.tiw.projects.dao.JobDAO;
+
+/**
+ * Esegue in background i lavori accodati nella tabella Job (miniature, forme d'onda, segmenti HLS).
+ * I lavori sono inseriti con JobDAO.enqueue nella stessa transazione
+ * che li rende necessari, quindi la risposta HTTP non li aspetta e non vanno persi se la webapp si ferma.
+ * Un numero fisso di thread prende i lavori dal database, con un limite di concorrenza per tipo
+ * e nuovi tentativi con attesa esponenziale; all'avvio i lavori interrotti tornano in coda.
+ * I gestori devono essere idempotenti: un lavoro interrotto a metà viene eseguito di nuovo.
+ */
+public final class JobQueue {
+    // Intervallo di controllo della tabella quando non ci sono lavori pronti
+    private static final long POLL_INTERVAL_MS = 2_000;
+    // Pausa dopo un errore del database, per non riempire il log
+    private static final long ERROR_PAUSE_MS = 30_000;
+    // Attesa prima del secondo tentativo, raddoppiata a ogni tentativo successivo
+    private static final long BASE_RETRY_DELAY_MS = 5_000;
+    private static final long MAX_RETRY_DELAY_MS = 30 * 60 * 1000L;
+    // Un lavoro RUNNING da più di questo tempo appartiene a un'istanza terminata
+    private static final int STALE_LOCK_SECONDS = 30 * 60;
+    private static final long STALE_CHECK_INTERVAL_MS = 5 * 60 * 1000L;
+    // Attesa massima dei lavori in corso allo spegnimento
+    private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+    /**
+     * Esegue un lavoro; un'eccezione provoca un nuovo tentativo finché non si esauriscono
+     */
+    @FunctionalInterface
+    public interface Handler {
+        void run(String payload) throws Exception;
+    }
+
+    private static final class JobType {
+        final Handler handler;
+        final int maxConcurrency;
+        final int maxAttempts;
+        // Lavori di questo tipo in esecuzione (protetto da claimLock)
+        int running = 0;
+
+        JobType(Handler handler, int maxConcurrency, int maxAttempts) {
+            this.handler = handler;
+            this.maxConcurrency = maxConcurrency;
+            this.maxAttempts = maxAttempts;
+        }
+    }
+
+    private static final Map<String, JobType> types = new LinkedHashMap<>();
+    // Serializza la scelta dei tipi disponibili e la presa del lavoro
+    private static final Object claimLock = new Object();
+    // Segnale per svegliare i worker in attesa quando viene accodato un lavoro
+    private static final Object signal = new Object();
+    private static boolean signalled = false;
+
+    private static final List<Thread> workers = new ArrayList<>();
+    private static volatile boolean running = false;
+    private static DataSource dataSource;
+    private static String owner;
+    private static long lastStaleCheck = 0;
+
+    private JobQueue() {
+    }
+
+    /**
+     * Registra il gestore di un tipo di lavoro; va chiamato prima di start
+     * @param maxConcurrency Numero massimo di lavori di questo tipo eseguiti insieme
+     * @param maxAttempts Numero di tentativi prima che il lavoro resti FAILED
+     */
+    public static synchronized void register(String type, int maxConcurrency, int maxAttempts, Handler handler) {
+        if (running) {
+            throw new IllegalStateException("Job types must be registered before the queue starts");
+        }
+        types.put(type, new JobType(handler, maxConcurrency, maxAttempts));
+    }
+
+    /**
+     * Rimette in coda i lavori interrotti e avvia i worker
+     * @param instanceName Nome dell'istanza (es. il context path), per riconoscere i propri lavori dopo un riavvio
+     */
+    public static synchronized void start(DataSource source, String instanceName) {
+        if (running) {
+            return;
+        }
+        dataSource = source;
+        owner = hostName() + instanceName;
+
+        try (Connection connection = dataSource.getConnection()) {
+            int released = new JobDAO(connection).releaseInterrupted(owner, STALE_LOCK_SECONDS);
+            if (released > 0) {
+                System.err.println("Job queue: " + released + " interrupted jobs queued again");
+            }
+            lastStaleCheck = System.currentTimeMillis();
+        } catch (SQLException e) {
+            // I lavori interrotti verranno ripresi al primo controllo periodico
+            System.err.println("Job queue: could not release interrupted jobs: " + e.getMessage());
+        }
+
+        running = true;
+        // Il lavoro è soprattutto CPU (decodifica di immagini e audio): pochi thread
+        int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        for (int i = 1; i <= threads; i++) {
+            Thread worker = new Thread(JobQueue::workLoop, "job-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.NORM_PRIORITY - 1);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Sveglia i worker in attesa (da chiamare dopo il commit di una transazione che ha accodato lavori)
+     */
+    public static void wakeUp() {
+        synchronized (signal) {
+            signalled = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * Ferma i worker allo spegnimento della webapp, attendendo brevemente i lavori in corso.
+     * I lavori ancora RUNNING tornano in coda al prossimo avvio.
+     */
+    public static void shutdown() {
+        List<Thread> current;
+        synchronized (JobQueue.class) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            current = new ArrayList<>(workers);
+            workers.clear();
+        }
+        wakeUp();
+
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MS;
+        try {
+            for (Thread worker : current) {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread worker : current) {
+            if (worker.isAlive()) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    private static void workLoop() {
+        try {
+            while (running) {
+                Job job;
+                try {
+                    job = claim();
+                } catch (SQLException e) {
+                    System.err.println("Job queue: database error: " + e.getMessage());
+                    awaitSignal(ERROR_PAUSE_MS);
+                    continue;
+                }
+                if (job != null) {
+                    execute(job);
+                } else {
+                    awaitSignal(POLL_INTERVAL_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Interrotto allo spegnimento
+        }
+    }
+
+    /**
+     * Prende il prossimo lavoro pronto tra i tipi che non hanno raggiunto il limite di concorrenza
+     */
+    private static Job claim() throws SQLException {
+        synchronized (claimLock) {
+            List<String> available = new ArrayList<>();
+            for (Map.Entry<String, JobType> entry : types.entrySet()) {
+                if (entry.getValue().running < entry.getValue().maxConcurrency) {
+                    available.add(entry.getKey());
+                }
+            }
+            if (available.isEmpty()) {
+                return null;
+            }
+
+            try (Connection connection = dataSource.getConnection()) {
+                JobDAO jobDAO = new JobDAO(connection);
+                long now = System.currentTimeMillis();
+                if (now - lastStaleCheck >= STALE_CHECK_INTERVAL_MS) {
+                    lastStaleCheck = now;
+                    jobDAO.releaseInterrupted(null, STALE_LOCK_SECONDS);
+                }
+                Job job = jobDAO.claimNext(available, owner);
+                if (job != null) {
+                    types.get(job.getType()).running++;
+                }
+                return job;
+            }
+        }
+    }
+
+    private static void execute(Job job) throws InterruptedException {
+        JobType type = types.get(job.getType());
+        try {
+            type.handler.run(job.getPayload());
+            try (Connection connection = dataSource.getConnection()) {
+                new JobDAO(connection).complete(job.getID());
+            }
+        } catch (InterruptedException e) {
+            // Spegnimento: il lavoro resta RUNNING e viene ripreso al prossimo avvio
+            throw e;
+        } catch (Exception e) {
+            recordFailure(job, type, e);
+        } finally {
+            synchronized (claimLock) {
+                type.running--;
+            }
+        }
+        // Si è liberato un posto per questo tipo
+        wakeUp();
+    }
+
+    private static void recordFailure(Job job, JobType type, Exception failure) {
+        String error = failure.getClass().getSimpleName() + ": " + failure.getMessage();
+        try (Connection connection = dataSource.getConnection()) {
+            JobDAO jobDAO = new JobDAO(connection);
+            if (job.getAttempts() >= type.maxAttempts) {
+                System.err.println("Job " + job.getID() + " (" + job.getType() + " " + job.getPayload()
+                        + ") failed after " + job.getAttempts() + " attempts: " + error);
+                jobDAO.fail(job.getID(), error);
+            } else {
+                jobDAO.retry(job.getID(), retryDelay(job.getAttempts()), error);
+            }
+        } catch (SQLException e) {
+            // Il lavoro resta RUNNING e viene ripreso dal controllo dei lavori bloccati
+            System.err.println("Job queue: could not record failure of job " + job.getID() + ": " + e.getMessage());
+        }
+    }
+
+    private static long retryDelay(int attempts) {
+        long delay = BASE_RETRY_DELAY_MS << Math.min(attempts - 1, 20);
+        return Math.min(delay, MAX_RETRY_DELAY_MS);
+    }
+
+    private static void awaitSignal(long timeoutMs) throws InterruptedException {
+        synchronized (signal) {
+            if (!signalled && running) {
+                signal.wait(timeoutMs);
+            }
+            signalled = false;
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+}
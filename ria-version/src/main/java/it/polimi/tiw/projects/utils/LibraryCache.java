@@ -0,0 +1,184 @@
+package it.polimi.tiw.projects.utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import it.polimi.tiw.projects.beans.Playlist;
+import it.polimi.tiw.projects.beans.Song;
+
+/**
+ * Cache in memoria, limitata e LRU, della libreria di ogni utente (canzoni e playlist).
+ * I DAO la consultano nelle letture e la invalidano dopo il commit delle scritture.
+ * Ogni Entry è legata alla versione della libreria (User.changeVersion) letta prima dei dati:
+ * una lettura con una versione diversa non la usa, così anche le modifiche fatte dall'altra webapp
+ * o da un altro nodo, che non passano dall'invalidazione, rendono la cache non più valida.
+ */
+public class LibraryCache {
+    // Numero massimo di utenti tenuti in cache
+    private static final int MAX_USERS = 1000;
+
+    private static final LibraryCache INSTANCE = new LibraryCache(MAX_USERS);
+
+    private final int maxUsers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Dati in cache di un utente. Un'invalidazione rimuove l'Entry dalla mappa:
+     * una lettura iniziata prima non può più ripopolarla con dati vecchi.
+     */
+    public static final class Entry {
+        private final long version;
+        private volatile List<Song> songs;
+        private volatile List<Playlist> playlists;
+
+        private Entry(long version) {
+            this.version = version;
+        }
+    }
+
+    private LibraryCache(int maxUsers) {
+        this.maxUsers = maxUsers;
+        // accessOrder = true: l'ordine di iterazione va dal meno al più recentemente usato
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                if (size() > LibraryCache.this.maxUsers) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static LibraryCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Restituisce l'Entry corrente dell'utente per la versione indicata (creandola se manca o è più vecchia).
+     * Va ottenuta PRIMA di leggere dal database e passata a putSongs/putPlaylists.
+     * Se in cache c'è già una versione più recente l'Entry restituita non viene registrata
+     * (i dati letti con una versione vecchia non entrano in cache).
+     */
+    public Entry entryFor(int userID, long version) {
+        lock.lock();
+        try {
+            Entry current = entries.get(userID);
+            if (current != null && current.version == version) {
+                return current;
+            }
+            Entry entry = new Entry(version);
+            if (current == null || current.version < version) {
+                entries.put(userID, entry);
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<Song> getSongs(int userID, long version) {
+        Entry entry = lookup(userID, version);
+        return record(entry != null ? entry.songs : null);
+    }
+
+    public List<Playlist> getPlaylists(int userID, long version) {
+        Entry entry = lookup(userID, version);
+        return record(entry != null ? entry.playlists : null);
+    }
+
+    public List<Song> putSongs(int userID, Entry entry, List<Song> songs) {
+        List<Song> cached = Collections.unmodifiableList(songs);
+        if (isCurrent(userID, entry)) {
+            entry.songs = cached;
+        }
+        return cached;
+    }
+
+    public List<Playlist> putPlaylists(int userID, Entry entry, List<Playlist> playlists) {
+        List<Playlist> cached = Collections.unmodifiableList(playlists);
+        if (isCurrent(userID, entry)) {
+            entry.playlists = cached;
+        }
+        return cached;
+    }
+
+    public void invalidateSongs(int userID) {
+        invalidate(userID);
+    }
+
+    public void invalidatePlaylists(int userID) {
+        invalidate(userID);
+    }
+
+    /**
+     * Rimuove tutti i dati in cache dell'utente
+     */
+    public void invalidate(int userID) {
+        lock.lock();
+        try {
+            if (entries.remove(userID) != null) {
+                invalidations.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            stats.put("users", entries.size());
+        } finally {
+            lock.unlock();
+        }
+        stats.put("maxUsers", maxUsers);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    private Entry lookup(int userID, long version) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(userID); // get aggiorna anche l'ordine LRU
+            return entry != null && entry.version == version ? entry : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isCurrent(int userID, Entry entry) {
+        lock.lock();
+        try {
+            return entries.get(userID) == entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> List<T> record(List<T> value) {
+        if (value != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,408 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+import com.google.gson.JsonObject;
+
+import it.polimi.tiw.projects.dao.ChangeLogDAO;
+
+/**
+ * Canale push delle modifiche alla libreria (Server-Sent Events, /api/events).
+ * Ogni scheda del browser tiene aperta una connessione asincrona, registrata qui fino alla chiusura e
+ * identificata da sessione e ID della scheda (le schede dello stesso browser condividono la sessione):
+ * una riconnessione della stessa scheda sostituisce la connessione precedente. Il registro è locale al nodo
+ * e limitato a MAX_SUBSCRIBERS connessioni, al massimo MAX_STREAMS_PER_SESSION per sessione: il posto
+ * viene riservato con contatori atomici, quindi richieste concorrenti non superano i limiti.
+ * I DAO pubblicano dopo il commit un evento compatto (versione, entità, ID, azione): il client
+ * non riceve i dati ma sa che deve chiedere le differenze a /api/sync.
+ * Le scritture sono non bloccanti (WriteListener): ogni connessione ha una coda di al massimo
+ * MAX_QUEUED_MESSAGES messaggi, svuotata quando il container segnala che il socket accetta dati,
+ * e una connessione la cui coda si riempie viene chiusa (il browser si riconnette e recupera con /api/sync).
+ * Così né chi pubblica né gli altri client aspettano mai un client lento.
+ * Ogni HEARTBEAT_SECONDS un task invia un commento di keep-alive e un altro confronta le versioni in
+ * User.changeVersion: così arrivano anche le modifiche fatte da altri nodi o dalla versione HTML,
+ * che non passano da questo registro. La query non ritarda il keep-alive.
+ */
+public final class LibraryEvents {
+    public static final int MAX_SUBSCRIBERS = 1000;
+    public static final int MAX_STREAMS_PER_SESSION = 8;
+    // Messaggi in attesa di scrittura su una connessione, oltre i quali la connessione viene chiusa
+    public static final int MAX_QUEUED_MESSAGES = 16;
+    private static final long HEARTBEAT_SECONDS = 25;
+    // Attesa suggerita al browser prima di riconnettersi dopo una chiusura
+    private static final long RETRY_MS = 5000;
+    private static final byte[] PING = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final class Subscriber implements WriteListener {
+        final AsyncContext context;
+        final int userID;
+        final String sessionID;
+        // Chiave nel registro: sessione e scheda
+        final String key;
+        // Stato della connessione, protetto dal lock del Subscriber
+        private final Deque<byte[]> queue = new ArrayDeque<>();
+        private ServletOutputStream out;
+        // Ultima versione annunciata su questa connessione
+        private long version;
+        // Il WriteListener è registrato: da qui in poi si può chiamare isReady
+        private boolean listening;
+        // L'ultimo messaggio scritto non è ancora stato inviato con flush
+        private boolean pendingFlush;
+        private boolean closed;
+
+        Subscriber(AsyncContext context, int userID, String sessionID, String tabID, long version) {
+            this.context = context;
+            this.userID = userID;
+            this.sessionID = sessionID;
+            this.key = sessionID + ":" + tabID;
+            this.version = version;
+        }
+
+        /**
+         * Accoda un messaggio e scrive quanto il socket accetta senza bloccare
+         * @return false se la coda è piena o la connessione è interrotta (va chiusa)
+         */
+        synchronized boolean enqueue(byte[] message) {
+            if (closed) {
+                return true;
+            }
+            if (queue.size() >= MAX_QUEUED_MESSAGES) {
+                return false;
+            }
+            queue.add(message);
+            return !listening || drain();
+        }
+
+        // Accoda l'evento solo se la connessione non ha già visto questa versione
+        synchronized boolean announce(long newVersion, JsonObject change) {
+            if (closed || newVersion <= version) {
+                return true;
+            }
+            version = newVersion;
+            return enqueue(("id: " + newVersion + "\nevent: library\ndata: " + change + "\n\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Da chiamare con il lock: si ferma quando il socket non accetta altri dati, il container richiamerà onWritePossible
+        private boolean drain() {
+            try {
+                while (out.isReady()) {
+                    if (pendingFlush) {
+                        pendingFlush = false;
+                        out.flush();
+                        continue;
+                    }
+                    byte[] next = queue.poll();
+                    if (next == null) {
+                        return true;
+                    }
+                    pendingFlush = true;
+                    out.write(next);
+                }
+                return true;
+            } catch (IOException | IllegalStateException e) {
+                // Client disconnesso o richiesta già conclusa
+                return false;
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            boolean open;
+            synchronized (this) {
+                listening = true;
+                open = closed || drain();
+            }
+            if (!open) {
+                close(this);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close(this);
+        }
+
+        // Segna la connessione come chiusa: true solo la prima volta
+        synchronized boolean markClosed() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            queue.clear();
+            return true;
+        }
+    }
+
+    // Connessioni aperte, per sessione e scheda
+    private static final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    // Posti riservati nel registro, in totale e per sessione
+    private static final AtomicInteger reserved = new AtomicInteger();
+    private static final Map<String, Integer> reservedPerSession = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService executor;
+    private static DataSource dataSource;
+
+    private LibraryEvents() {
+    }
+
+    /**
+     * Avvia i task periodici di keep-alive e di confronto delle versioni
+     */
+    public static synchronized void start(DataSource source) {
+        if (executor != null) {
+            return;
+        }
+        dataSource = source;
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, task -> {
+            Thread thread = new Thread(task, "library-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(LibraryEvents::ping, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(LibraryEvents::checkVersions, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        executor = scheduler;
+    }
+
+    /**
+     * Registra la connessione asincrona di una scheda, che sostituisce quella precedente della stessa scheda.
+     * Va chiamato dal thread della richiesta: registra il WriteListener sull'output della risposta.
+     * @param version La versione della libreria già nota al client (le modifiche successive vengono annunciate)
+     * @return false se il registro o le connessioni della sessione sono al limite (la connessione non viene registrata
+     *         e la risposta non è stata toccata)
+     */
+    public static boolean subscribe(AsyncContext context, int userID, String sessionID, String tabID, long version)
+            throws IOException {
+        if (executor == null) {
+            return false;
+        }
+        Subscriber subscriber = new Subscriber(context, userID, sessionID, tabID, version);
+        Subscriber[] previous = new Subscriber[1];
+        Subscriber registered = subscribers.compute(subscriber.key, (key, existing) -> {
+            if (existing != null) {
+                // La stessa scheda si riconnette: il posto passa alla nuova connessione
+                previous[0] = existing;
+                return subscriber;
+            }
+            return reserve(sessionID) ? subscriber : null;
+        });
+        if (registered != subscriber) {
+            return false;
+        }
+        if (previous[0] != null) {
+            close(previous[0]);
+        }
+
+        context.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                close(subscriber);
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                // Il browser si riconnette da solo alla chiusura
+                close(subscriber);
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                close(subscriber);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        boolean open;
+        try {
+            ServletOutputStream out = context.getResponse().getOutputStream();
+            synchronized (subscriber) {
+                subscriber.out = out;
+                subscriber.queue.add(("retry: " + RETRY_MS + "\n\n").getBytes(StandardCharsets.UTF_8));
+            }
+            out.setWriteListener(subscriber);
+            synchronized (subscriber) {
+                subscriber.listening = true;
+                open = subscriber.closed || subscriber.drain();
+            }
+        } catch (IOException | RuntimeException e) {
+            close(subscriber);
+            throw e;
+        }
+        if (!open) {
+            close(subscriber);
+        }
+        return true;
+    }
+
+    /**
+     * Chiude tutte le connessioni di una sessione (logout o eliminazione dell'account)
+     */
+    public static void unsubscribe(String sessionID) {
+        for (Subscriber subscriber : new ArrayList<>(subscribers.values())) {
+            if (subscriber.sessionID.equals(sessionID)) {
+                close(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Annuncia una modifica alla libreria dell'utente alle sue connessioni (da chiamare dopo il commit).
+     * Non blocca: i messaggi vengono solo accodati.
+     */
+    public static void publish(int userID, long version, String entity, int entityID, String action) {
+        if (executor == null) {
+            return;
+        }
+        JsonObject change = new JsonObject();
+        change.addProperty("version", version);
+        change.addProperty("entity", entity);
+        change.addProperty("entityID", entityID);
+        change.addProperty("action", action);
+        announce(userID, version, change);
+    }
+
+    /**
+     * Annuncia la versione corrente della libreria alle connessioni dell'utente che non l'hanno ancora vista.
+     * Il servlet la chiama dopo la registrazione: le modifiche fatte tra l'ultima sincronizzazione del client
+     * e la registrazione vengono annunciate subito invece che alla modifica successiva.
+     */
+    public static void catchUp(int userID, long version) {
+        if (executor == null) {
+            return;
+        }
+        announce(userID, version, versionOnly(version));
+    }
+
+    /**
+     * Chiude tutte le connessioni allo spegnimento della webapp
+     */
+    public static void shutdown() {
+        ScheduledExecutorService current;
+        synchronized (LibraryEvents.class) {
+            current = executor;
+            executor = null;
+        }
+        if (current == null) {
+            return;
+        }
+        current.shutdownNow();
+        try {
+            current.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Subscriber subscriber : new ArrayList<>(subscribers.values())) {
+            close(subscriber);
+        }
+    }
+
+    // Riserva un posto nel registro per una nuova scheda della sessione
+    private static boolean reserve(String sessionID) {
+        if (reserved.incrementAndGet() > MAX_SUBSCRIBERS) {
+            reserved.decrementAndGet();
+            return false;
+        }
+        boolean[] accepted = new boolean[1];
+        reservedPerSession.compute(sessionID, (id, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= MAX_STREAMS_PER_SESSION) {
+                return count;
+            }
+            accepted[0] = true;
+            return current + 1;
+        });
+        if (!accepted[0]) {
+            reserved.decrementAndGet();
+        }
+        return accepted[0];
+    }
+
+    private static void release(String sessionID) {
+        reserved.decrementAndGet();
+        reservedPerSession.computeIfPresent(sessionID, (id, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static void announce(int userID, long version, JsonObject change) {
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.userID == userID && !subscriber.announce(version, change)) {
+                close(subscriber);
+            }
+        }
+    }
+
+    // Keep-alive di tutte le connessioni
+    private static void ping() {
+        for (Subscriber subscriber : subscribers.values()) {
+            if (!subscriber.enqueue(PING)) {
+                close(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Annuncia le modifiche fatte fuori da questo nodo, confrontando le versioni in User.changeVersion
+     */
+    private static void checkVersions() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Set<Integer> userIDs = new HashSet<>();
+        for (Subscriber subscriber : subscribers.values()) {
+            userIDs.add(subscriber.userID);
+        }
+        Map<Integer, Long> versions;
+        try (Connection connection = dataSource.getConnection()) {
+            versions = new ChangeLogDAO(connection).getVersions(userIDs);
+        } catch (SQLException e) {
+            // Le versioni verranno confrontate al prossimo giro
+            System.err.println("Library events: version check failed: " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<Integer, Long> entry : versions.entrySet()) {
+            announce(entry.getKey(), entry.getValue(), versionOnly(entry.getValue()));
+        }
+    }
+
+    // Evento di una modifica di cui si conosce solo la versione
+    private static JsonObject versionOnly(long version) {
+        JsonObject change = new JsonObject();
+        change.addProperty("version", version);
+        return change;
+    }
+
+    private static void close(Subscriber subscriber) {
+        if (subscribers.remove(subscriber.key, subscriber)) {
+            release(subscriber.sessionID);
+        }
+        if (!subscriber.markClosed()) {
+            return;
+        }
+        try {
+            subscriber.context.complete();
+        } catch (IllegalStateException e) {
+            // Già completata dal container
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package it.polimi.tiw.projects.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool di thread limitato per l'elaborazione dei file multimediali richiesta da una pagina
+ * (miniature o forme d'onda non ancora generate dalla JobQueue).
+ * Pochi thread e una coda di dimensione fissa: quando la coda è piena il lavoro viene rifiutato
+ * (RejectedExecutionException) invece di accumularsi, e i thread delle richieste non restano mai in attesa.
+ */
+public final class MediaProcessingExecutor {
+    private static final int QUEUE_CAPACITY = 64;
+    // I thread inattivi vengono chiusi dopo questo tempo
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static ThreadPoolExecutor executor;
+
+    private MediaProcessingExecutor() {
+    }
+
+    /**
+     * Restituisce il pool, creandolo al primo utilizzo
+     */
+    public static synchronized ExecutorService get() {
+        if (executor == null || executor.isShutdown()) {
+            // La decodifica di immagini e audio usa la CPU: al massimo metà dei core, almeno uno
+            int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+            executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(QUEUE_CAPACITY), new MediaThreadFactory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Ferma il pool allo spegnimento della webapp, attendendo brevemente i lavori in corso
+     */
+    public static void shutdown() {
+        ThreadPoolExecutor current;
+        synchronized (MediaProcessingExecutor.class) {
+            current = executor;
+            executor = null;
+        }
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(10, TimeUnit.SECONDS)) {
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class MediaThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "media-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
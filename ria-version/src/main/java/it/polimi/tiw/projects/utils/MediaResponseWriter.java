@@ -0,0 +1,395 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Invia un file come risposta HTTP con supporto alle richieste parziali (RFC 7233):
+ * Range singoli e multipli (206, multipart/byteranges), If-Range e 416 per range non soddisfacibili.
+ * Le GET condizionali (If-None-Match, If-Modified-Since) ricevono 304 senza leggere il file.
+ * I byte sono trasferiti con il sendfile del connettore Tomcat quando disponibile, altrimenti
+ * con scritture non bloccanti (AsyncFileStreamer) che non occupano un thread durante il download.
+ */
+public final class MediaResponseWriter {
+    // Oltre questo numero di range la richiesta viene servita per intero
+    private static final int MAX_RANGES = 16;
+    // Sotto questa dimensione il sendfile non conviene (stesso default del DefaultServlet di Tomcat)
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    // I file con nome univoco non cambiano mai: il browser li tiene per un anno senza rivalidarli
+    private static final String IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+    // Gli altri file (es. caricati a mano nella cartella) vanno rivalidati a ogni uso
+    private static final String REVALIDATE_CACHE_CONTROL = "private, no-cache";
+
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private MediaResponseWriter() {
+    }
+
+    /**
+     * Intervallo chiuso di byte [start, end]
+     */
+    static final class ByteRange {
+        final long start;
+        final long end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    /**
+     * Parte del corpo della risposta: un eventuale prefisso (header multipart) seguito
+     * da count byte del file a partire da start
+     */
+    static final class BodyPart {
+        final byte[] prefix;
+        final long start;
+        final long count;
+
+        BodyPart(byte[] prefix, long start, long count) {
+            this.prefix = prefix;
+            this.start = start;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Scrive il file nella risposta rispettando gli header Range e If-Range della richiesta
+     */
+    public static void write(HttpServletRequest request, HttpServletResponse response,
+                             File file, String contentType) throws IOException {
+        write(request, response, file, contentType, FileStorageManager.isImmutableFile(file));
+    }
+
+    /**
+     * Come write, ma il file va sempre rivalidato: usato quando sostituisce temporaneamente
+     * quello richiesto (es. l'originale inviato al posto di una miniatura non ancora pronta)
+     */
+    public static void writeRevalidated(HttpServletRequest request, HttpServletResponse response,
+                                        File file, String contentType) throws IOException {
+        write(request, response, file, contentType, false);
+    }
+
+    private static void write(HttpServletRequest request, HttpServletResponse response,
+                              File file, String contentType, boolean immutable) throws IOException {
+        long length = file.length();
+        // Le date HTTP hanno la precisione del secondo
+        long lastModified = file.lastModified() / 1000 * 1000;
+        String etag = etagFor(length, lastModified);
+
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setHeader("Cache-Control", immutable ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL);
+
+        boolean headOnly = "HEAD".equals(request.getMethod());
+        if ((headOnly || "GET".equals(request.getMethod())) && isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        List<ByteRange> ranges = null;
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader != null && isIfRangeSatisfied(request, etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, length);
+            if (ranges != null && ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+
+        List<BodyPart> parts;
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            parts = List.of(new BodyPart(null, 0, length));
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", contentRange(range, length));
+            response.setContentLengthLong(range.length());
+            parts = List.of(new BodyPart(null, range.start, range.length()));
+        } else {
+            parts = multipartBody(response, contentType, ranges, length);
+        }
+
+        if (!headOnly) {
+            sendBody(request, response, file, parts);
+        }
+    }
+
+    /**
+     * Interpreta l'header Range. Restituisce null se l'header va ignorato (sintassi non valida,
+     * unità diversa da bytes, troppi range), una lista vuota se nessun range è soddisfacibile,
+     * altrimenti i range ordinati con quelli sovrapposti o adiacenti uniti.
+     */
+    static List<ByteRange> parseRanges(String header, long length) {
+        String value = header.trim();
+        if (!value.toLowerCase(Locale.ROOT).startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = value.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        boolean anySpec = false;
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            anySpec = true;
+
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                // Suffisso "-N": gli ultimi N byte
+                long suffix = parseNumber(last);
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix > 0 && length > 0) {
+                    ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                }
+                continue;
+            }
+
+            long start = parseNumber(first);
+            if (start < 0) {
+                return null;
+            }
+            long end;
+            if (last.isEmpty()) {
+                end = length - 1;
+            } else {
+                end = parseNumber(last);
+                if (end < 0 || end < start) {
+                    return null;
+                }
+                end = Math.min(end, length - 1);
+            }
+            if (start < length) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+
+        if (!anySpec) {
+            return null;
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(range -> range.start));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    // Numero decimale non negativo (saturato a Long.MAX_VALUE), -1 se non valido
+    private static long parseNumber(String value) {
+        if (value.isEmpty()) {
+            return -1;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE; // solo cifre: il valore supera un long
+        }
+    }
+
+    /**
+     * If-None-Match ha la precedenza; If-Modified-Since è considerato solo se manca (RFC 7232)
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String value = candidate.trim();
+                if (value.startsWith("W/")) {
+                    value = value.substring(2); // per If-None-Match basta il confronto debole
+                }
+                if (value.equals("*") || value.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * If-Range: il Range vale solo se il validatore coincide con la versione corrente del file
+     */
+    private static boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Confronto forte: un ETag debole non soddisfa mai If-Range
+            return ifRange.equals(etag);
+        }
+        try {
+            return request.getDateHeader("If-Range") == lastModified;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    static String etagFor(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    private static String contentRange(ByteRange range, long length) {
+        return "bytes " + range.start + "-" + range.end + "/" + length;
+    }
+
+    /**
+     * Imposta gli header di una risposta multipart/byteranges e ne restituisce le parti
+     */
+    private static List<BodyPart> multipartBody(HttpServletResponse response, String contentType,
+                                                List<ByteRange> ranges, long length) {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+
+        // Gli header di ogni parte sono calcolati prima per conoscere la Content-Length totale
+        List<BodyPart> parts = new ArrayList<>(ranges.size() + 1);
+        long totalLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + contentRange(range, length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            parts.add(new BodyPart(partHeader, range.start, range.length()));
+            totalLength += partHeader.length + range.length();
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        parts.add(new BodyPart(closing, 0, 0));
+        totalLength += closing.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(totalLength);
+        return parts;
+    }
+
+    /**
+     * Invia il corpo: con il sendfile di Tomcat se possibile, altrimenti in modo asincrono
+     * (WriteListener) se la richiesta lo consente, altrimenti con una copia bloccante
+     */
+    private static void sendBody(HttpServletRequest request, HttpServletResponse response,
+                                 File file, List<BodyPart> parts) throws IOException {
+        if (parts.size() == 1 && parts.get(0).prefix == null) {
+            BodyPart part = parts.get(0);
+            if (part.count == 0) {
+                return;
+            }
+            if (canUseSendfile(request, response, part.count)) {
+                // Il connettore invia il file direttamente dal kernel dopo il ritorno della servlet
+                request.setAttribute(SENDFILE_FILENAME_ATTR, file.getCanonicalPath());
+                request.setAttribute(SENDFILE_START_ATTR, Long.valueOf(part.start));
+                request.setAttribute(SENDFILE_END_ATTR, Long.valueOf(part.start + part.count));
+                return;
+            }
+        }
+
+        if (request.isAsyncSupported()) {
+            AsyncFileStreamer.start(request, response, file, parts, FileStorageManager.getStreamChunkSize());
+            return;
+        }
+
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (BodyPart part : parts) {
+                if (part.prefix != null) {
+                    out.write(part.prefix);
+                }
+                copy(channel, part.start, part.count, target);
+            }
+        }
+    }
+
+    // Il sendfile richiede request e response non avvolte da wrapper (come nel DefaultServlet di Tomcat)
+    private static boolean canUseSendfile(HttpServletRequest request, HttpServletResponse response, long count) {
+        return count >= SENDFILE_MIN_SIZE
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))
+                && request.getClass().getName().equals("org.apache.catalina.connector.RequestFacade")
+                && response.getClass().getName().equals("org.apache.catalina.connector.ResponseFacade");
+    }
+
+    private static void copy(FileChannel channel, long start, long count, WritableByteChannel target) throws IOException {
+        long position = start;
+        long remaining = count;
+        while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, target);
+            if (sent <= 0 && position >= channel.size()) {
+                throw new EOFException("File truncated while sending");
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+}
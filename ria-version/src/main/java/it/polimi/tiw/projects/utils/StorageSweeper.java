@@ -0,0 +1,374 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import it.polimi.tiw.projects.beans.FileTombstone;
+import it.polimi.tiw.projects.dao.FileTombstoneDAO;
+import it.polimi.tiw.projects.dao.MediaBlobDAO;
+import it.polimi.tiw.projects.dao.SongDAO;
+
+/**
+ * Eliminazione dei file non più usati, su un thread proprio e mai durante le richieste.
+ * Il passaggio di pulizia elimina a blocchi i file registrati in FileTombstone (le eliminazioni di
+ * canzoni e account li registrano nella loro transazione). Una volta al giorno la scansione degli orfani
+ * confronta le directory dello storage con le tabelle Song e MediaBlob e rimuove ciò che è rimasto
+ * indietro: file di upload falliti dopo il salvataggio, miniature, forme d'onda e segmenti HLS di file
+ * già eliminati, file temporanei lasciati da un arresto improvviso.
+ */
+public final class StorageSweeper {
+    // Righe di FileTombstone lette e rimosse per ogni blocco
+    private static final int BATCH_SIZE = 200;
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+    private static final long ORPHAN_SCAN_DELAY_MINUTES = 10;
+    private static final long ORPHAN_SCAN_INTERVAL_HOURS = 24;
+    // I file più recenti non vengono mai considerati orfani: possono appartenere a un upload in corso
+    // (una sessione di upload a blocchi scade 24 ore dopo l'ultimo blocco ricevuto)
+    private static final long ORPHAN_MIN_AGE_MS = 25L * 60 * 60 * 1000;
+
+    private static final String STORED_NAME = "([0-9a-f]{64}|[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})";
+    // File caricati dagli utenti (quelli registrati in Song)
+    private static final Pattern PRIMARY_FILE = Pattern.compile(STORED_NAME + "\\.(jpg|jpeg|png|gif|mp3|wav|ogg|m4a)");
+    // Miniature, forme d'onda e directory dei segmenti HLS, accanto al file da cui derivano
+    private static final Pattern DERIVED_FILE = Pattern.compile(STORED_NAME + "\\.(w[0-9]+\\.(jpg|png)|peaks|hls)");
+
+    private static volatile ScheduledExecutorService scheduler;
+    private static DataSource dataSource;
+    // Evita di accodare più passaggi di pulizia quando arrivano molte eliminazioni insieme
+    private static final AtomicBoolean sweepQueued = new AtomicBoolean();
+
+    private StorageSweeper() {
+    }
+
+    /**
+     * Avvia i passaggi periodici (pulizia subito e ogni minuto, scansione degli orfani dopo 10 minuti e ogni giorno)
+     */
+    public static synchronized void start(DataSource source) {
+        if (scheduler != null) {
+            return;
+        }
+        dataSource = source;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "storage-sweeper");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(StorageSweeper::sweep, 0, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        executor.scheduleWithFixedDelay(StorageSweeper::scanOrphans, TimeUnit.MINUTES.toSeconds(ORPHAN_SCAN_DELAY_MINUTES),
+                TimeUnit.HOURS.toSeconds(ORPHAN_SCAN_INTERVAL_HOURS), TimeUnit.SECONDS);
+        scheduler = executor;
+    }
+
+    /**
+     * Anticipa il prossimo passaggio di pulizia (da chiamare dopo il commit di un'eliminazione)
+     */
+    public static void wakeUp() {
+        ScheduledExecutorService current = scheduler;
+        if (current == null || !sweepQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            current.execute(() -> {
+                sweepQueued.set(false);
+                sweep();
+            });
+        } catch (RejectedExecutionException e) {
+            sweepQueued.set(false);
+        }
+    }
+
+    /**
+     * Ferma i passaggi allo spegnimento della webapp; i file non ancora eliminati restano in FileTombstone
+     */
+    public static void shutdown() {
+        ScheduledExecutorService current;
+        synchronized (StorageSweeper.class) {
+            current = scheduler;
+            scheduler = null;
+        }
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(10, TimeUnit.SECONDS)) {
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Elimina i file registrati in FileTombstone, un blocco alla volta. Le righe dei file che non si
+     * riescono a eliminare restano e vengono riprovate al passaggio successivo.
+     */
+    private static void sweep() {
+        try (Connection connection = dataSource.getConnection()) {
+            FileTombstoneDAO fileTombstoneDAO = new FileTombstoneDAO(connection);
+            long lastID = 0;
+            List<FileTombstone> batch;
+            do {
+                batch = fileTombstoneDAO.getBatch(lastID, BATCH_SIZE);
+                List<Long> reclaimed = new ArrayList<>();
+                for (FileTombstone tombstone : batch) {
+                    lastID = tombstone.getID();
+                    if (reclaim(tombstone)) {
+                        reclaimed.add(tombstone.getID());
+                    }
+                }
+                fileTombstoneDAO.deleteTombstones(reclaimed);
+            } while (batch.size() == BATCH_SIZE && !Thread.currentThread().isInterrupted());
+        } catch (SQLException | RuntimeException e) {
+            // Un'eccezione fermerebbe i passaggi successivi dello scheduler
+            System.err.println("File sweep failed: " + e.getMessage());
+        }
+    }
+
+    private static boolean reclaim(FileTombstone tombstone) {
+        String path = tombstone.getPath();
+        try {
+            if (tombstone.isDetachedBlob()) {
+                FileStorageManager.deleteDetachedBlob(path);
+            } else if (!FileStorageManager.isPathSafe(path)) {
+                // Non potrà mai essere eliminato: la riga viene scartata
+                System.err.println("Discarding tombstone with invalid path: " + path);
+            } else if (!FileStorageManager.deleteFileSecurely(path)) {
+                throw new IOException("file not deleted");
+            }
+            return true;
+        } catch (IOException | SecurityException e) {
+            System.err.println("Could not delete " + path + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Confronta lo storage con il database ed elimina i file che non appartengono più a nessuna canzone
+     */
+    private static void scanOrphans() {
+        long cutoff = System.currentTimeMillis() - ORPHAN_MIN_AGE_MS;
+        try (Connection connection = dataSource.getConnection()) {
+            int removed = scanDirectory(connection, "covers", Paths.get(FileStorageManager.getCoverImagesPath()), cutoff)
+                    + scanDirectory(connection, "songs", Paths.get(FileStorageManager.getAudioFilesPath()), cutoff)
+                    + scanUploads(connection, Paths.get(FileStorageManager.getTempUploadPath()), cutoff);
+            if (removed > 0) {
+                System.err.println("Orphan scan removed " + removed + " files");
+                wakeUp();
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            System.err.println("Orphan scan failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scansiona una directory dello storage (covers o songs)
+     * @return Il numero di file rimossi o registrati per la rimozione
+     */
+    private static int scanDirectory(Connection connection, String directory, Path root, long cutoff)
+            throws IOException, SQLException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        // Nomi (senza estensione) dei file caricati presenti in ogni sottodirectory
+        Map<Path, Set<String>> storedNames = new HashMap<>();
+        Map<String, Path> candidates = new HashMap<>();
+        List<Path> derivedFiles = new ArrayList<>();
+        List<Path> leftovers = new ArrayList<>();
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String name = dir.getFileName().toString();
+                if (name.startsWith(".")) {
+                    // Directory temporanea di una segmentazione interrotta
+                    if (attrs.lastModifiedTime().toMillis() < cutoff) {
+                        leftovers.add(dir);
+                    }
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (DERIVED_FILE.matcher(name).matches()) {
+                    derivedFiles.add(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                boolean old = attrs.lastModifiedTime().toMillis() < cutoff;
+                Matcher primary = PRIMARY_FILE.matcher(name);
+                if (primary.matches()) {
+                    storedNames.computeIfAbsent(file.getParent(), key -> new HashSet<>()).add(primary.group(1));
+                    if (old) {
+                        String relativePath = "/" + directory + "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+                        candidates.put(relativePath, file);
+                    }
+                } else if (DERIVED_FILE.matcher(name).matches()) {
+                    derivedFiles.add(file);
+                } else if (name.startsWith(".") && old) {
+                    // File temporaneo di una miniatura o di una forma d'onda interrotta
+                    leftovers.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // File eliminato durante la scansione
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        int removed = 0;
+        // File derivati rimasti senza il file da cui sono stati generati
+        for (Path derived : derivedFiles) {
+            Matcher matcher = DERIVED_FILE.matcher(derived.getFileName().toString());
+            matcher.matches();
+            Set<String> names = storedNames.getOrDefault(derived.getParent(), Collections.emptySet());
+            if (!names.contains(matcher.group(1)) && lastModified(derived) < cutoff) {
+                deleteRecursively(derived);
+                removed++;
+            }
+        }
+        for (Path leftover : leftovers) {
+            deleteRecursively(leftover);
+            removed++;
+        }
+
+        // File caricati che nessuna canzone usa
+        List<String> paths = new ArrayList<>(candidates.keySet());
+        Set<String> referenced = new SongDAO(connection).findReferencedPaths(paths);
+        MediaBlobDAO mediaBlobDAO = new MediaBlobDAO(connection);
+        for (String path : paths) {
+            if (referenced.contains(path)) {
+                continue;
+            }
+            try {
+                if (FileStorageManager.isContentAddressedPath(path)) {
+                    // Il blob viene staccato sotto il blocco di MediaBlob e registrato in FileTombstone
+                    if (mediaBlobDAO.reclaimOrphan(path)) {
+                        removed++;
+                    }
+                } else if (FileStorageManager.deleteFileSecurely(path)) {
+                    removed++;
+                }
+            } catch (SQLException | SecurityException e) {
+                System.err.println("Could not remove orphan file " + path + ": " + e.getMessage());
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Scansiona la directory degli upload temporanei: upload mai completati e blob staccati
+     * da una transazione interrotta prima del commit (senza riga in FileTombstone)
+     */
+    private static int scanUploads(Connection connection, Path uploads, long cutoff) throws IOException, SQLException {
+        if (!Files.isDirectory(uploads)) {
+            return 0;
+        }
+        List<Path> files;
+        try (Stream<Path> entries = Files.list(uploads)) {
+            files = entries.filter(Files::isRegularFile).toList();
+        }
+
+        int removed = 0;
+        FileTombstoneDAO fileTombstoneDAO = new FileTombstoneDAO(connection);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (lastModified(file) >= cutoff) {
+                continue;
+            }
+            if (name.endsWith(".part")) {
+                Files.deleteIfExists(file);
+                removed++;
+            } else if (name.endsWith(".deleted") && !fileTombstoneDAO.hasDetachedBlob(name)) {
+                try {
+                    if (!restoreDetachedBlob(connection, file)) {
+                        FileStorageManager.deleteDetachedBlob(name);
+                        removed++;
+                    }
+                } catch (SecurityException e) {
+                    System.err.println("Could not remove detached blob " + name + ": " + e.getMessage());
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Un blob staccato senza riga in FileTombstone appartiene a una transazione che non ha fatto il commit:
+     * se MediaBlob lo registra ancora e il file manca, viene rimesso al suo posto
+     * @return true se il blob è stato ripristinato
+     */
+    private static boolean restoreDetachedBlob(Connection connection, Path detached) throws IOException, SQLException {
+        MessageDigest digest = FileStorageManager.newSha256();
+        try (InputStream input = Files.newInputStream(detached)) {
+            FileStorageManager.copyAndHash(input, OutputStream.nullOutputStream(), digest, Long.MAX_VALUE);
+        }
+        String path = new MediaBlobDAO(connection).getPathBySha256(FileStorageManager.toHex(digest.digest()));
+        if (path == null || Files.exists(FileStorageManager.validateAndNormalizePath(path))) {
+            return false;
+        }
+        FileStorageManager.restoreDetachedBlobs(Collections.singletonMap(path, detached));
+        System.err.println("Restored stored file " + path + " detached by an interrupted transaction");
+        return true;
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        try (Stream<Path> entries = Files.walk(path)) {
+            entries.sorted(Collections.reverseOrder()).forEach(entry -> {
+                try {
+                    Files.deleteIfExists(entry);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + entry + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Could not delete " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package it.polimi.tiw.projects.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sessioni di upload a blocchi (riprendibili) per file più grandi del limite multipart.
+ * Il client apre una sessione, invia i blocchi in ordine indicando l'offset e, se la
+ * connessione cade, chiede l'offset corrente e riprende da lì. I byte vanno direttamente
+ * in un file temporaneo dello storage mentre se ne calcola l'hash; a upload completo il
+ * file viene verificato e spostato atomicamente nella directory finale.
+ * Le sessioni sono in memoria: un riavvio del server le perde (i file temporanei restano
+ * in .uploads e possono essere rimossi).
+ */
+public final class UploadSessionManager {
+    // Dimensioni massime per directory
+    public static final long MAX_AUDIO_SIZE = 200L * 1024 * 1024;
+    public static final long MAX_IMAGE_SIZE = 10L * 1024 * 1024;
+    // Dimensione dei blocchi suggerita al client
+    public static final int CHUNK_SIZE = 2 * 1024 * 1024;
+    // Una sessione inattiva per più di 24 ore viene scartata
+    private static final long SESSION_TTL_MS = 24L * 60 * 60 * 1000;
+    private static final int MAX_SESSIONS_PER_USER = 4;
+
+    private static final UploadSessionManager INSTANCE = new UploadSessionManager();
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private UploadSessionManager() {
+    }
+
+    public static UploadSessionManager getInstance() {
+        return INSTANCE;
+    }
+
+    public static final class UploadSession {
+        private final String id;
+        private final int userId;
+        private final String fileName;
+        private final String directory;
+        private final long size;
+        private final Path tempFile;
+        private MessageDigest digest = FileStorageManager.newSha256();
+        private final ReentrantLock lock = new ReentrantLock();
+        private long offset = 0;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private UploadSession(String id, int userId, String fileName, String directory, long size, Path tempFile) {
+            this.id = id;
+            this.userId = userId;
+            this.fileName = fileName;
+            this.directory = directory;
+            this.size = size;
+            this.tempFile = tempFile;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getUserId() {
+            return userId;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getOffset() {
+            lock.lock();
+            try {
+                return offset;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Offset inviato dal client diverso da quello atteso dal server
+     */
+    public static final class OffsetMismatchException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final long expectedOffset;
+
+        OffsetMismatchException(long expectedOffset) {
+            super("Expected offset " + expectedOffset);
+            this.expectedOffset = expectedOffset;
+        }
+
+        public long getExpectedOffset() {
+            return expectedOffset;
+        }
+    }
+
+    /**
+     * Apre una sessione dopo aver controllato directory, estensione e dimensione dichiarata
+     */
+    public UploadSession create(int userId, String fileName, String directory, long size)
+            throws IOException, SecurityException {
+        purgeExpired();
+
+        if (!"songs".equals(directory) && !"covers".equals(directory)) {
+            throw new SecurityException("Invalid directory: " + directory);
+        }
+        String extension = FileStorageManager.getExtension(fileName);
+        boolean validType = "covers".equals(directory)
+                ? FileStorageManager.isValidImageExtension(extension)
+                : FileStorageManager.isValidAudioExtension(extension);
+        if (!validType) {
+            throw new SecurityException("File type not allowed: " + fileName);
+        }
+        long maxSize = "covers".equals(directory) ? MAX_IMAGE_SIZE : MAX_AUDIO_SIZE;
+        if (size <= 0 || size > maxSize) {
+            throw new SecurityException("File size must be between 1 and " + maxSize + " bytes");
+        }
+        if (countSessions(userId) >= MAX_SESSIONS_PER_USER) {
+            throw new SecurityException("Too many uploads in progress");
+        }
+
+        UploadSession session = new UploadSession(UUID.randomUUID().toString(), userId, fileName, directory, size,
+                FileStorageManager.createTempUploadFile());
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * Restituisce la sessione se esiste ed appartiene all'utente, altrimenti null
+     */
+    public UploadSession get(String uploadId, int userId) {
+        if (uploadId == null) {
+            return null;
+        }
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || session.userId != userId) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Accoda un blocco a partire da offset. Se un blocco precedente era stato scritto solo in parte
+     * (connessione interrotta), il file viene troncato all'ultimo offset confermato.
+     * @return Il nuovo offset
+     */
+    public long appendChunk(UploadSession session, long offset, InputStream input)
+            throws IOException, OffsetMismatchException {
+        session.lock.lock();
+        try {
+            if (offset != session.offset) {
+                throw new OffsetMismatchException(session.offset);
+            }
+            session.lastActivity = System.currentTimeMillis();
+
+            long written;
+            try (FileChannel channel = FileChannel.open(session.tempFile, StandardOpenOption.WRITE)) {
+                channel.truncate(session.offset);
+                channel.position(session.offset);
+                OutputStream output = Channels.newOutputStream(channel);
+                // Il digest viene aggiornato su una copia: se il blocco fallisce a metà il client lo reinvia
+                MessageDigest chunkDigest = cloneDigest(session.digest);
+                written = FileStorageManager.copyAndHash(input, output, chunkDigest, session.size - session.offset);
+                session.digest = chunkDigest;
+            }
+            session.offset += written;
+            return session.offset;
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Conclude l'upload: verifica che siano arrivati tutti i byte e sposta il file nello storage.
+     * La sessione viene chiusa anche se la verifica del contenuto fallisce.
+     */
+    public FileStorageManager.StoredFile complete(UploadSession session) throws IOException, SecurityException {
+        session.lock.lock();
+        try {
+            if (session.offset != session.size) {
+                throw new IOException("Upload incomplete: " + session.offset + " of " + session.size + " bytes");
+            }
+            sessions.remove(session.id);
+            try {
+                return FileStorageManager.storeTempFile(session.tempFile, session.directory, session.fileName,
+                        session.size, FileStorageManager.toHex(session.digest.digest()));
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(session.tempFile);
+                throw e;
+            }
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    /**
+     * Annulla la sessione ed elimina il file temporaneo
+     */
+    public void abort(UploadSession session) {
+        sessions.remove(session.id);
+        deleteTempFile(session);
+    }
+
+    private int countSessions(int userId) {
+        int count = 0;
+        for (UploadSession session : sessions.values()) {
+            if (session.userId == userId) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<UploadSession> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            UploadSession session = iterator.next();
+            if (now - session.lastActivity > SESSION_TTL_MS) {
+                iterator.remove();
+                deleteTempFile(session);
+            }
+        }
+    }
+
+    private static void deleteTempFile(UploadSession session) {
+        try {
+            Files.deleteIfExists(session.tempFile);
+        } catch (IOException e) {
+            System.err.println("Could not delete temporary upload " + session.tempFile + ": " + e.getMessage());
+        }
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) throws IOException {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IOException("Digest state cannot be saved", e);
+        }
+    }
+}
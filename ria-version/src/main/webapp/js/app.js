@@ -64,28 +64,161 @@ const App = (() => {
             } // Basic error handling for brevity
         });
 
-        // Fetch user's playlists
-        makeCall('GET', '/api/playlists', null, (req) => {
-            if (req.readyState === XMLHttpRequest.DONE && req.status === 200) {
-                const response = JSON.parse(req.responseText);
-                if (response.status === 'success') {
-                    State.setPlaylists(response.data);
+        fetchLibrary();
+    };
+
+    let syncCursor = null; // Library version held by State, null until a complete library is loaded
+    let syncRunning = false;
+    let syncPending = false; // Another sync was requested while one was running
+    let eventSource = null;
+    let reconnectTimer = null;
+    const EVENTS_RETRY_MS = 30000; // Wait before reopening a stream the server refused
+    // Identifies this tab's stream: tabs of the same browser share the session but keep a stream each
+    const tabId = Date.now().toString(36) + Math.random().toString(36).slice(2, 10);
+
+    /**
+     * Loads songs and playlists, downloading only what changed since the previous visit
+     * Called by fetchInitialData(): the saved snapshot is shown at once, then /api/sync brings it up to date;
+     * without a snapshot (or when the server asks for a reset) the whole library is loaded.
+     * Afterwards the /api/events stream announces every change, so the library is never polled
+     */
+    const fetchLibrary = () => {
+        const stored = LibraryStore.load(State.getCurrentUser().id);
+        if (stored) {
+            State.setPlaylists(stored.playlists);
+            State.setSongs(stored.songs);
+            syncCursor = stored.cursor;
+        }
+        syncLibrary(); // Opens the event stream once the library is up to date
+    };
+
+    /**
+     * Applies the changes made after syncCursor (or loads the whole library when there is no cursor)
+     * Called at startup and for each "library" event; calls made while a sync is running are merged into one
+     */
+    const syncLibrary = () => {
+        if (syncRunning) {
+            syncPending = true;
+            return;
+        }
+        syncRunning = true;
+        const userId = State.getCurrentUser().id;
+        const finish = () => {
+            syncRunning = false;
+            if (!eventSource && !reconnectTimer) connectEvents();
+            if (syncPending && State.getCurrentUser()) {
+                syncPending = false;
+                syncLibrary();
+            }
+        };
+
+        const url = syncCursor !== null ? '/api/sync?since=' + encodeURIComponent(syncCursor) : '/api/sync';
+        makeCall('GET', url, null, (req) => {
+            if (req.readyState !== XMLHttpRequest.DONE) return;
+            if (!State.getCurrentUser()) return; // Logged out meanwhile
+            if (req.status !== 200) {
+                console.error("Library sync failed with status", req.status);
+                if (syncCursor === null) {
+                    fetchWholeLibrary(null, finish);
+                } else {
+                    finish();
                 }
+                return;
+            }
+            const delta = JSON.parse(req.responseText).data;
+            if (delta.reset) {
+                fetchWholeLibrary(delta.cursor, finish);
+            } else {
+                State.applySync(delta);
+                syncCursor = delta.cursor;
+                LibraryStore.save(userId, delta.cursor, State.getSongs(), State.getPlaylists());
+                finish();
             }
         });
-        
-        // Fetch all user's songs (optional, could be fetched on demand)
-        // For now, let's assume we load them for easier client-side operations
-        makeCall('GET', '/api/songs', null, (req) => {
-            if (req.readyState === XMLHttpRequest.DONE && req.status === 200) {
-                const response = JSON.parse(req.responseText);
-                if (response.status === 'success') {
-                    State.setSongs(response.data); // This sets the global list of songs
+    };
+
+    /**
+     * Loads all playlists and all songs (streamed, so large libraries start rendering before the list is complete)
+     * Called by syncLibrary() when there is no usable cursor; onDone runs when both requests have ended
+     * Saves the snapshot with the given cursor once both lists are complete (the cursor was read first,
+     * so changes made meanwhile are sent again by the next sync instead of being lost)
+     */
+    const fetchWholeLibrary = (cursor, onDone) => {
+        const userId = State.getCurrentUser().id;
+        let pending = 2;
+        let failed = false;
+        const done = (ok) => {
+            pending--;
+            failed = failed || !ok;
+            if (pending === 0) {
+                if (!failed && cursor !== null) {
+                    syncCursor = cursor;
+                    LibraryStore.save(userId, cursor, State.getSongs(), State.getPlaylists());
                 }
+                onDone();
+            }
+        };
+
+        // Fetch user's playlists
+        makeCall('GET', '/api/playlists', null, (req) => {
+            if (req.readyState !== XMLHttpRequest.DONE) return;
+            const response = req.status === 200 ? JSON.parse(req.responseText) : null;
+            if (response && response.status === 'success') {
+                State.setPlaylists(response.data);
+                done(true);
+            } else {
+                done(false);
+            }
+        });
+
+        State.setSongs([]);
+        streamNdjson('/api/songs', (songs) => State.appendSongs(songs), (error) => {
+            if (error) {
+                console.error("Loading songs failed:", error);
             }
+            done(!error);
         });
     };
 
+    /**
+     * Opens the /api/events stream (one per tab) and syncs when it announces a newer library version
+     * The stream starts from syncCursor: changes made before it opened are announced at once.
+     * The browser reopens a dropped stream by itself, sending the last event id as the cursor
+     */
+    const connectEvents = () => {
+        if (typeof EventSource === 'undefined' || eventSource || !State.getCurrentUser()) return;
+        reconnectTimer = null;
+        let url = '/api/events?tab=' + encodeURIComponent(tabId);
+        if (syncCursor !== null) {
+            url += '&since=' + encodeURIComponent(syncCursor);
+        }
+        eventSource = new EventSource(baseURL + url);
+        eventSource.addEventListener('library', (event) => {
+            const change = JSON.parse(event.data);
+            if (syncCursor === null || change.version > syncCursor) {
+                syncLibrary();
+            }
+        });
+        eventSource.addEventListener('error', () => {
+            // A refused stream (e.g. 503 when the server has too many) is not reopened by the browser
+            if (eventSource && eventSource.readyState === EventSource.CLOSED) {
+                eventSource = null;
+                reconnectTimer = setTimeout(connectEvents, EVENTS_RETRY_MS);
+            }
+        });
+    };
+
+    const disconnectEvents = () => {
+        if (reconnectTimer) {
+            clearTimeout(reconnectTimer);
+            reconnectTimer = null;
+        }
+        if (eventSource) {
+            eventSource.close();
+            eventSource = null;
+        }
+    };
+
     /**
      * Completely resets application state
      * Called by Auth.handleLogout() before redirecting to login page
@@ -93,6 +226,10 @@ const App = (() => {
      */
     const reset = () => {
         currentUser = null;
+        disconnectEvents();
+        syncCursor = null;
+        syncRunning = false;
+        syncPending = false;
         State.resetState(); // Use State's reset function
         const appContent = document.getElementById('app-content');
         if(appContent) appContent.innerHTML = '';
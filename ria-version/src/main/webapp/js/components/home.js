@@ -42,6 +42,7 @@ const Home = (() => {
         // Subscribe to state changes to re-render if necessary
         State.subscribe('playlistsChanged', () => renderPlaylists(playlistsSection));
         State.subscribe('songsChanged', () => renderCreatePlaylistForm(createPlaylistSection));
+        State.subscribe('songsAppended', (songs) => appendSongOptions(createPlaylistSection, songs));
         State.subscribe('genresChanged', () => renderUploadSongForm(uploadSongSection));
     };
 
@@ -139,20 +140,9 @@ const Home = (() => {
 
         const form = document.createElement('form');
         form.id = 'createPlaylistForm';
-        let songsHtml = '<p>No songs available to add. Upload songs first.</p>';
+        let songsHtml = '<p id="noSongsMessage">No songs available to add. Upload songs first.</p>';
         if (allSongs && allSongs.length > 0) {
-            songsHtml = allSongs.map(song => SecurityUtils.createSafeHTML(`
-                <div>
-                    <input type="checkbox" id="song-{{songId}}" name="selectedSongs" value="{{songId}}">
-                    <label for="song-{{songId}}">{{name}} - {{artistName}} ({{albumName}}, {{albumReleaseYear}})</label>
-                </div>
-            `, {
-                songId: song.ID,
-                name: song.name,
-                artistName: song.artistName,
-                albumName: song.albumName,
-                albumReleaseYear: song.albumReleaseYear
-            })).join('');
+            songsHtml = allSongs.map(songOptionHtml).join('');
         }
 
         form.innerHTML = `
@@ -168,10 +158,45 @@ const Home = (() => {
         sectionElement.appendChild(form);
     };
     
+    /**
+     * Builds the checkbox of one song in the playlist creation form
+     * Called by renderCreatePlaylistForm() and appendSongOptions()
+     */
+    const songOptionHtml = (song) => SecurityUtils.createSafeHTML(`
+                <div>
+                    <input type="checkbox" id="song-{{songId}}" name="selectedSongs" value="{{songId}}">
+                    <label for="song-{{songId}}">{{name}} - {{artistName}} ({{albumName}}, {{albumReleaseYear}})</label>
+                </div>
+            `, {
+        songId: song.ID,
+        name: song.name,
+        artistName: song.artistName,
+        albumName: song.albumName,
+        albumReleaseYear: song.albumReleaseYear
+    });
+
+    /**
+     * Adds checkboxes for newly received songs to the playlist creation form
+     * Called for each group of songs of the streamed library, so the form grows while the list loads
+     * Keeps the songs already checked by the user instead of re-rendering the whole form
+     */
+    const appendSongOptions = (sectionElement, songs) => {
+        const fieldset = sectionElement.querySelector('#createPlaylistForm fieldset');
+        if (!fieldset) {
+            renderCreatePlaylistForm(sectionElement);
+            return;
+        }
+        const placeholder = fieldset.querySelector('#noSongsMessage');
+        if (placeholder) {
+            placeholder.remove();
+        }
+        fieldset.insertAdjacentHTML('beforeend', songs.map(songOptionHtml).join(''));
+    };
+
     /**
      * Handles song upload form submission
      * Called when upload song form is submitted
-     * Validates file data and sends multipart form data to server
+     * Large audio files are first sent in resumable chunks, then the form references them by upload ID
      */
     const handleUploadSong = (event) => {
         event.preventDefault();
@@ -179,7 +204,34 @@ const Home = (() => {
         const formData = new FormData(form);
         const messageArea = document.getElementById('uploadSongMessage');
         messageArea.textContent = 'Uploading...';
+        messageArea.className = 'message-area';
 
+        const audioFile = formData.get('audioFile');
+        if (!(audioFile instanceof File) || audioFile.size <= CHUNKED_UPLOAD_THRESHOLD) {
+            submitSongForm(form, formData, messageArea);
+            return;
+        }
+
+        uploadInChunks(audioFile, 'audio', (sent, total) => {
+            messageArea.textContent = `Uploading audio... ${Math.floor(sent * 100 / total)}%`;
+        }, (error, uploadId) => {
+            if (error) {
+                messageArea.textContent = `Error: ${error}`;
+                messageArea.className = 'message-area error';
+                return;
+            }
+            formData.delete('audioFile');
+            formData.append('audioUploadId', uploadId);
+            messageArea.textContent = 'Saving song...';
+            submitSongForm(form, formData, messageArea);
+        });
+    };
+
+    /**
+     * Sends the song metadata and files (or upload IDs) to the server
+     * Called by handleUploadSong once any chunked upload has completed
+     */
+    const submitSongForm = (form, formData, messageArea) => {
         makeCall('POST', '/api/songs', formData, (req) => {
             if (req.readyState === XMLHttpRequest.DONE) {
                 try {
@@ -235,9 +287,7 @@ const Home = (() => {
                     if (req.status === 201 && response.status === 'success') {
                         messageArea.textContent = 'Playlist created successfully!';
                         messageArea.className = 'message-area success';
-                        console.log(response.data);
-						State.setPlaylists(response.data);
-						//State.updatePlaylist(response.data); // Add to global playlists
+                        State.updatePlaylist(response.data); // Add to global playlists
                         form.reset();
                     } else {
                         messageArea.textContent = `Error: ${response.message || 'Creation failed.'} ${response.errors ? JSON.stringify(response.errors) : ''}`;
@@ -59,7 +59,7 @@ const PlayerComponent = (() => {
         const detailsDiv = document.createElement('div');
         detailsDiv.className = 'song-full-details';
 
-        const coverPath = currentSongObj.albumCoverPath ? `${baseURL}/GetFile${currentSongObj.albumCoverPath}` : '/covers/default.jpg'; // Adjust default path
+        const coverPath = currentSongObj.albumCoverPath ? `${baseURL}/GetFile${currentSongObj.albumCoverPath}?size=320` : '/covers/default.jpg'; // Adjust default path
         
         detailsDiv.innerHTML = SecurityUtils.createSafeHTML(`
             <img src="{{coverPath}}" alt="Album cover for {{albumName}}" class="player-album-cover" style="max-width: 300px; margin-bottom: 15px;">
@@ -67,17 +67,34 @@ const PlayerComponent = (() => {
             <p><strong>Artist:</strong> {{artistName}}</p>
             <p><strong>Album:</strong> {{albumName}} ({{albumReleaseYear}})</p>
             <p><strong>Genre:</strong> {{genre}}</p>
+            <p><strong>Duration:</strong> {{duration}}</p>
+            <p class="song-format">{{format}}</p>
         `, {
             coverPath: coverPath,
             albumName: currentSongObj.albumName,
             name: currentSongObj.name,
             artistName: currentSongObj.artistName,
             albumReleaseYear: currentSongObj.albumReleaseYear,
-            genre: currentSongObj.genre
+            genre: currentSongObj.genre,
+            duration: formatDuration(currentSongObj.durationMs) || 'unknown',
+            format: describeFormat(currentSongObj)
         });
         sectionElement.appendChild(detailsDiv);
     };
 
+    /**
+     * Builds a short technical description of the audio file, e.g. "MP3 · 320 kbps · 44.1 kHz · stereo"
+     * Called by renderSongDetails() with the metadata read by the server at upload time
+     */
+    const describeFormat = (song) => {
+        const parts = [];
+        if (song.codec) parts.push(song.codec.toUpperCase());
+        if (song.bitrate) parts.push(`${song.bitrate} kbps`);
+        if (song.sampleRate) parts.push(`${song.sampleRate / 1000} kHz`);
+        if (song.channels) parts.push(song.channels === 1 ? 'mono' : song.channels === 2 ? 'stereo' : `${song.channels} channels`);
+        return parts.join(' · ');
+    };
+
     /**
      * Renders HTML5 audio player element for song playback
      * Called by render() to create audio controls for the current song
@@ -90,16 +107,107 @@ const PlayerComponent = (() => {
         const audioEl = document.createElement('audio');
         audioEl.controls = true;
         audioEl.src = currentSongObj.audioFilePath ? `${baseURL}/GetFile${currentSongObj.audioFilePath}`  : '';
+        // Prefer the HLS segments when the browser plays them natively (Safari, mobile browsers)
+        if (audioEl.src && currentSongObj.hlsPlaylistPath && audioEl.canPlayType('application/vnd.apple.mpegurl')) {
+            audioEl.src = `${baseURL}/GetFile${currentSongObj.hlsPlaylistPath}`;
+        }
         audioEl.id = 'html5-audio-player';
         
         if (!audioEl.src) {
             audioPlayerDiv.innerHTML += '<p>Audio file not available for this song.</p>';
         } else {
             audioPlayerDiv.appendChild(audioEl);
+            loadWaveform(audioPlayerDiv, audioEl, currentSongObj.ID, 0);
         }
         sectionElement.appendChild(audioPlayerDiv);
     };
 
+    /**
+     * Fetches the precomputed waveform peaks and draws them above the audio element
+     * Called by renderAudioPlayer(); retries while the server is still computing them (202)
+     * Songs without a waveform (unsupported format, errors) just keep the plain player
+     */
+    const loadWaveform = (playerDiv, audioEl, songId, attempt) => {
+        const maxAttempts = 5;
+        const req = new XMLHttpRequest();
+        req.open('GET', `${baseURL}/api/songs/${songId}/waveform`);
+        req.setRequestHeader("X-Requested-With", "XMLHttpRequest");
+        req.responseType = 'arraybuffer';
+        req.onload = () => {
+            // The user may have moved to another song in the meantime
+            if (!currentSongObj || currentSongObj.ID !== songId) return;
+            if (req.status === 200) {
+                const peaks = parsePeaks(req.response);
+                if (peaks) drawWaveform(playerDiv, audioEl, peaks);
+            } else if (req.status === 202 && attempt + 1 < maxAttempts) {
+                const retryAfter = parseInt(req.getResponseHeader('Retry-After'), 10) || 2;
+                setTimeout(() => loadWaveform(playerDiv, audioEl, songId, attempt + 1), retryAfter * 1000);
+            }
+        };
+        req.send();
+    };
+
+    /**
+     * Decodes the binary peaks file: "PEAK", version, bits, pair count, then (min, max) signed bytes
+     * Called by loadWaveform(); returns null if the data is not in the expected format
+     */
+    const parsePeaks = (buffer) => {
+        if (!buffer || buffer.byteLength < 8) return null;
+        const view = new DataView(buffer);
+        const magic = String.fromCharCode(view.getUint8(0), view.getUint8(1), view.getUint8(2), view.getUint8(3));
+        const count = view.getUint16(6);
+        if (magic !== 'PEAK' || view.getUint8(4) !== 1 || buffer.byteLength !== 8 + 2 * count) return null;
+        return new Int8Array(buffer, 8, 2 * count);
+    };
+
+    /**
+     * Draws the waveform on a canvas, highlights the played part and seeks on click
+     * Called by loadWaveform() once the peaks are available
+     */
+    const drawWaveform = (playerDiv, audioEl, peaks) => {
+        const canvas = document.createElement('canvas');
+        canvas.className = 'waveform';
+        canvas.height = 80;
+        canvas.width = Math.max(200, playerDiv.clientWidth || 600);
+        playerDiv.insertBefore(canvas, audioEl);
+
+        const ctx = canvas.getContext('2d');
+        const pairs = peaks.length / 2;
+        const styles = getComputedStyle(canvas);
+        const playedColor = styles.getPropertyValue('--waveform-played').trim() || '#ff5b4c';
+        const restColor = styles.getPropertyValue('--waveform-rest').trim() || '#a0a0b0';
+
+        const paint = () => {
+            const middle = canvas.height / 2;
+            const progress = audioEl.duration ? audioEl.currentTime / audioEl.duration : 0;
+            ctx.clearRect(0, 0, canvas.width, canvas.height);
+            for (let x = 0; x < canvas.width; x++) {
+                // Each column shows the widest peak among the pairs it covers
+                const from = Math.floor(x * pairs / canvas.width);
+                const to = Math.max(from + 1, Math.floor((x + 1) * pairs / canvas.width));
+                let min = 0;
+                let max = 0;
+                for (let i = from; i < to && i < pairs; i++) {
+                    min = Math.min(min, peaks[2 * i]);
+                    max = Math.max(max, peaks[2 * i + 1]);
+                }
+                ctx.fillStyle = x / canvas.width < progress ? playedColor : restColor;
+                const top = middle - (max / 127) * middle;
+                const bottom = middle - (min / 127) * middle;
+                ctx.fillRect(x, top, 1, Math.max(1, bottom - top));
+            }
+        };
+
+        canvas.addEventListener('click', (event) => {
+            if (!audioEl.duration) return;
+            const rect = canvas.getBoundingClientRect();
+            audioEl.currentTime = (event.clientX - rect.left) / rect.width * audioEl.duration;
+        });
+        audioEl.addEventListener('timeupdate', paint);
+        audioEl.addEventListener('loadedmetadata', paint);
+        paint();
+    };
+
     /**
      * Renders action buttons for the player (delete song)
      * Called by render() to create interactive controls for song management
@@ -101,6 +101,14 @@ const PlaylistComponent = (() => {
         const totalSongs = songsToDisplay.length;
         const totalPages = Math.ceil(totalSongs / songsPerPage);
 
+        // Total length, counting only songs whose duration is known
+        const totalDuration = songsToDisplay.reduce((sum, song) => sum + (song.durationMs || 0), 0);
+        const summary = document.createElement('p');
+        summary.className = 'playlist-summary';
+        summary.textContent = `${totalSongs} song${totalSongs === 1 ? '' : 's'}` +
+            (totalDuration > 0 ? `, ${formatDuration(totalDuration)} total` : '');
+        sectionElement.appendChild(summary);
+
         const startIndex = (currentPage - 1) * songsPerPage;
         const endIndex = startIndex + songsPerPage;
         const paginatedSongs = songsToDisplay.slice(startIndex, endIndex);
@@ -112,16 +120,18 @@ const PlaylistComponent = (() => {
             const songCard = document.createElement('div');
             songCard.className = 'song-card';
             // Use a placeholder if albumCoverPath is null or empty
-            const coverPath = `${baseURL}/GetFile${song.albumCoverPath}`;
+            const coverPath = `${baseURL}/GetFile${song.albumCoverPath}?size=160`; // 100px card, 160px thumbnail for HiDPI
             songCard.innerHTML = SecurityUtils.createSafeHTML(`
                 <img src="{{coverPath}}" alt="{{albumName}}" width="100" height="100" style="object-fit: cover;">
                 <h4>{{name}}</h4>
                 <p>{{artistName}}</p>
+                <p class="song-duration">{{duration}}</p>
             `, {
                 coverPath: coverPath,
                 albumName: song.albumName,
                 name: song.name,
-                artistName: song.artistName
+                artistName: song.artistName,
+                duration: formatDuration(song.durationMs)
             });
             songCard.addEventListener('click', () => {
                 State.setCurrentSong(song);
@@ -282,13 +292,15 @@ const PlaylistComponent = (() => {
         }
     });
 
-    // Subscription for when global songs list changes
-    State.subscribe('songsChanged', () => {
+    // Subscription for when global songs list changes (also while the library is still being streamed)
+    const refreshAddSongsForm = () => {
         const addSongs = document.getElementById('playlist-add-songs');
         if (addSongs && currentPlaylistObj) {
             renderAddSongsForm(addSongs);
         }
-    });
+    };
+    State.subscribe('songsChanged', refreshAddSongsForm);
+    State.subscribe('songsAppended', refreshAddSongsForm);
     
     return {
         renderDetails
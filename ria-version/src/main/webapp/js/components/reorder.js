@@ -2,6 +2,7 @@ const ReorderComponent = (() => {
     let modalElement;
     let playlistToListElement;
     let currentPlaylistForReorder;
+    let originalSongOrderIds = [];
     let draggedItem = null;
 
     /**
@@ -79,6 +80,9 @@ const ReorderComponent = (() => {
                             // Update currentPlaylistForReorder with complete data including songs
                             currentPlaylistForReorder = response.data;
                             
+                            // Remember the order shown to the user to detect single moves on save
+                            originalSongOrderIds = response.data.songs.map(song => song.ID);
+
                             // Render songs list with complete data
                             renderSongListForReorder([...response.data.songs]);
                             
@@ -115,6 +119,7 @@ const ReorderComponent = (() => {
         }
         playlistToListElement.innerHTML = ''; // Clear list
         currentPlaylistForReorder = null;
+        originalSongOrderIds = [];
         draggedItem = null;
     };
 
@@ -239,6 +244,37 @@ const ReorderComponent = (() => {
     };
     
 
+    /**
+     * Checks whether newOrder is originalOrder with exactly one song moved
+     * Called by handleSaveOrder() to avoid sending the whole order for a single drag
+     * Returns { songId, position } for a single move, null otherwise
+     */
+    const findSingleMove = (originalOrder, newOrder) => {
+        if (originalOrder.length !== newOrder.length) return null;
+
+        let first = 0;
+        while (first < newOrder.length && originalOrder[first] === newOrder[first]) first++;
+        if (first === newOrder.length) return null; // Nothing changed
+
+        let last = newOrder.length - 1;
+        while (originalOrder[last] === newOrder[last]) last--;
+
+        // Moved down: the first changed song now sits at the last changed index, the others shifted up
+        const movedDown = newOrder[last] === originalOrder[first] &&
+            newOrder.slice(first, last).every((id, i) => id === originalOrder[first + i + 1]);
+        if (movedDown) {
+            return { songId: originalOrder[first], position: last };
+        }
+
+        // Moved up: the last changed song now sits at the first changed index, the others shifted down
+        const movedUp = newOrder[first] === originalOrder[last] &&
+            newOrder.slice(first + 1, last + 1).every((id, i) => id === originalOrder[first + i]);
+        if (movedUp) {
+            return { songId: originalOrder[last], position: first };
+        }
+        return null;
+    };
+
     /**
      * Handles saving the new song order to the server
      * Called when save button is clicked in reorder modal
@@ -258,9 +294,14 @@ const ReorderComponent = (() => {
             return;
         }
 
-        const payload = { songIDs: newSongOrderIds };
+        // A single drag only updates the moved song, otherwise the whole order is sent
+        const move = findSingleMove(originalSongOrderIds, newSongOrderIds);
+        const url = move
+            ? `/api/playlists/${currentPlaylistForReorder.ID}/songs/${move.songId}/position`
+            : `/api/playlists/${currentPlaylistForReorder.ID}/order`;
+        const payload = move ? { position: move.position } : { songIDs: newSongOrderIds };
 
-        makeCall('PUT', `/api/playlists/${currentPlaylistForReorder.ID}/order`, JSON.stringify(payload), (req) => {
+        makeCall('PUT', url, JSON.stringify(payload), (req) => {
             if (req.readyState === XMLHttpRequest.DONE) {
                 try {
                     const response = JSON.parse(req.responseText);
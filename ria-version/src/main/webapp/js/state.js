@@ -86,7 +86,7 @@ const State = (() => {
             if (index > -1) {
                 playlists[index] = playlist;
             } else {
-                playlists.push(playlist);
+                playlists.unshift(playlist); // New playlists come first, as in /api/playlists
             }
             notify('playlistsChanged', playlists);
             if (currentPlaylist && currentPlaylist.ID === playlist.ID) {
@@ -122,6 +122,15 @@ const State = (() => {
             songs = newSongs;
             notify('songsChanged', songs);
         },
+        /**
+         * Appends a group of songs to the list
+         * Called by App.fetchInitialData() for each group of songs received from the streamed list
+         * Notifies 'songsAppended' with just the new songs, so components can extend what they already rendered
+         */
+        appendSongs: (newSongs) => {
+            songs.push(...newSongs);
+            notify('songsAppended', newSongs);
+        },
         // Helper to add or update a single song globally (if needed)
         /**
          * Adds or updates a single song in the global state
@@ -167,6 +176,47 @@ const State = (() => {
         },
 
 
+        /**
+         * Applies the changes returned by /api/sync to songs and playlists
+         * Called by App at startup after restoring the saved library snapshot
+         * Replaces or adds changed items, removes deleted ones and keeps the server order
+         */
+        applySync: (delta) => {
+            const merge = (list, changed, deletedIds) => {
+                const deleted = new Set(deletedIds);
+                const merged = list.filter(item => !deleted.has(item.ID));
+                changed.forEach(item => {
+                    const index = merged.findIndex(existing => existing.ID === item.ID);
+                    if (index > -1) {
+                        merged[index] = item;
+                    } else {
+                        merged.push(item);
+                    }
+                });
+                return merged;
+            };
+
+            if (delta.songs.length > 0 || delta.deletedSongIDs.length > 0) {
+                songs = merge(songs, delta.songs, delta.deletedSongIDs);
+                // Same order as the server: artist, then release year
+                songs.sort((a, b) => (a.artistName || '').localeCompare(b.artistName || '')
+                    || a.albumReleaseYear - b.albumReleaseYear);
+                if (currentSong && delta.deletedSongIDs.includes(currentSong.ID)) {
+                    State.setCurrentSong(null);
+                }
+                notify('songsChanged', songs);
+            }
+            if (delta.playlists.length > 0 || delta.deletedPlaylistIDs.length > 0) {
+                playlists = merge(playlists, delta.playlists, delta.deletedPlaylistIDs);
+                // Newest first, as returned by /api/playlists
+                playlists.sort((a, b) => (b.creationDate || '').localeCompare(a.creationDate || '') || b.ID - a.ID);
+                if (currentPlaylist && delta.deletedPlaylistIDs.includes(currentPlaylist.ID)) {
+                    State.setCurrentPlaylist(null);
+                }
+                notify('playlistsChanged', playlists);
+            }
+        },
+
         /**
          * Gets the currently selected/viewed playlist
          * Called by components to access current playlist data
@@ -250,6 +300,7 @@ const State = (() => {
             currentView = 'login';
             genres = [];
             SessionManager.clearUser(); // Clear SessionManager too
+            LibraryStore.clear();
             console.log("State reset.");
             notify('stateReset');
         },
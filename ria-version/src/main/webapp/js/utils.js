@@ -62,6 +62,161 @@ function makeCall(method, url, data, cback, reset = true) {
     }
 }
 
+/**
+ * Reads a newline-delimited JSON (NDJSON) list while it is still arriving
+ * Called by App.fetchInitialData() so large song libraries are rendered progressively
+ * Calls onItems(items) for each group of complete lines received and onDone(errorMessage) at the end;
+ * the server ends the stream with a {"status": ...} line, so a truncated response is reported as an error
+ */
+function streamNdjson(url, onItems, onDone) {
+    const req = new XMLHttpRequest();
+    let offset = 0; // Start of the first line not parsed yet
+    let trailer = null;
+
+    const readLines = () => {
+        const text = req.responseText;
+        const end = text.lastIndexOf('\n');
+        if (end < offset) return; // No complete line since the last call
+        const items = [];
+        text.substring(offset, end).split('\n').forEach(line => {
+            if (!line) return;
+            const value = JSON.parse(line);
+            if (value.status) {
+                trailer = value;
+            } else {
+                items.push(value);
+            }
+        });
+        offset = end + 1;
+        if (items.length > 0) {
+            onItems(items);
+        }
+    };
+
+    req.onprogress = readLines;
+    req.onload = () => {
+        if (req.status !== 200) {
+            onDone(`Request failed with status ${req.status}.`);
+            return;
+        }
+        readLines();
+        if (!trailer) {
+            onDone('The response ended unexpectedly.');
+        } else if (trailer.status !== 'success') {
+            onDone(trailer.message || 'The server reported an error.');
+        } else {
+            onDone(null);
+        }
+    };
+    req.onerror = () => onDone('Network error.');
+    req.open('GET', baseURL + url);
+    req.setRequestHeader("X-Requested-With", "XMLHttpRequest");
+    req.setRequestHeader("Accept", "application/x-ndjson");
+    req.send();
+}
+
+// Files above this size are sent through the resumable chunked upload API
+const CHUNKED_UPLOAD_THRESHOLD = 4 * 1024 * 1024;
+
+/**
+ * Uploads a file in chunks through /api/uploads, resuming from the server offset after errors
+ * Called by Home before submitting the song form when the audio file is large
+ * Calls onProgress(sentBytes, totalBytes) after each chunk and onDone(errorMessage, uploadId) at the end
+ */
+function uploadInChunks(file, type, onProgress, onDone) {
+    const maxRetries = 5;
+    let uploadId;
+    let chunkSize;
+    let retries = 0;
+
+    const parseResponse = (req) => {
+        try {
+            return JSON.parse(req.responseText);
+        } catch (e) {
+            return null;
+        }
+    };
+
+    // Network errors and 5xx are retried with a growing delay, asking the server where to resume
+    const retry = (message) => {
+        retries++;
+        if (retries > maxRetries) {
+            onDone(message || 'Upload failed after several attempts.');
+            return;
+        }
+        setTimeout(resume, 1000 * retries);
+    };
+
+    const resume = () => {
+        makeCall('GET', '/api/uploads/' + encodeURIComponent(uploadId), null, (req) => {
+            if (req.readyState !== XMLHttpRequest.DONE) return;
+            const response = parseResponse(req);
+            if (req.status === 200 && response) {
+                sendChunk(response.data.offset);
+            } else if (req.status === 404) {
+                onDone('Upload expired, please try again.');
+            } else {
+                retry();
+            }
+        });
+    };
+
+    const sendChunk = (offset) => {
+        if (offset >= file.size) {
+            onDone(null, uploadId);
+            return;
+        }
+        const req = new XMLHttpRequest();
+        req.open('PUT', baseURL + '/api/uploads/' + encodeURIComponent(uploadId) + '?offset=' + offset);
+        req.setRequestHeader("X-Requested-With", "XMLHttpRequest");
+        req.setRequestHeader("Content-Type", "application/octet-stream");
+        req.onload = () => {
+            const response = parseResponse(req);
+            if (req.status === 200 && response) {
+                retries = 0;
+                onProgress(response.data.offset, file.size);
+                sendChunk(response.data.offset);
+            } else if (req.status === 409 && response && response.errors && retries < maxRetries) {
+                // Server has a different offset (e.g. a previous chunk was only partially received)
+                retries++;
+                sendChunk(parseInt(response.errors.offset, 10));
+            } else if (req.status >= 500) {
+                retry();
+            } else {
+                onDone(response && response.message ? response.message : 'Chunk upload failed.');
+            }
+        };
+        req.onerror = () => retry('Connection lost during upload.');
+        req.send(file.slice(offset, offset + chunkSize));
+    };
+
+    const payload = JSON.stringify({ fileName: file.name, size: file.size, type: type });
+    makeCall('POST', '/api/uploads', payload, (req) => {
+        if (req.readyState !== XMLHttpRequest.DONE) return;
+        const response = parseResponse(req);
+        if (req.status === 201 && response) {
+            uploadId = response.data.uploadId;
+            chunkSize = response.data.chunkSize;
+            sendChunk(response.data.offset);
+        } else {
+            onDone(response && response.message ? response.message : 'Could not start upload.');
+        }
+    });
+}
+
+/**
+ * Formats a duration in milliseconds as m:ss (or h:mm:ss), '' when unknown
+ * Called by Playlist and Player to show song and playlist lengths
+ */
+function formatDuration(ms) {
+    if (ms == null || ms < 0) return '';
+    const totalSeconds = Math.round(ms / 1000);
+    const hours = Math.floor(totalSeconds / 3600);
+    const minutes = Math.floor((totalSeconds % 3600) / 60);
+    const seconds = String(totalSeconds % 60).padStart(2, '0');
+    return hours > 0 ? `${hours}:${String(minutes).padStart(2, '0')}:${seconds}` : `${minutes}:${seconds}`;
+}
+
 // Session Management Utility
 const SessionManager = {
     /**
@@ -115,6 +270,45 @@ const SessionManager = {
     }
 };
 
+// Library snapshot kept between page loads, so a reload only asks /api/sync for the changes
+const LibraryStore = {
+    /**
+     * Saves songs and playlists with the sync cursor they correspond to
+     * Called by App after a full load or a delta sync
+     * Quota errors (very large libraries) are ignored: the next load is simply a full one
+     */
+    save(userId, cursor, songs, playlists) {
+        try {
+            localStorage.setItem('library', JSON.stringify({ userId, cursor, songs, playlists }));
+        } catch (e) {
+            console.warn('Library snapshot not saved:', e);
+            this.clear();
+        }
+    },
+
+    /**
+     * Returns the saved snapshot of the given user, or null
+     * Called by App at startup before asking /api/sync for the changes since its cursor
+     */
+    load(userId) {
+        try {
+            const stored = JSON.parse(localStorage.getItem('library'));
+            return stored && stored.userId === userId ? stored : null;
+        } catch (e) {
+            this.clear();
+            return null;
+        }
+    },
+
+    /**
+     * Removes the saved snapshot
+     * Called by State.resetState() on logout, so the library is not left on a shared browser
+     */
+    clear() {
+        localStorage.removeItem('library');
+    }
+};
+
 /**
  * Security utilities for preventing XSS attacks
  */